@@ -16,20 +16,42 @@
  */
 package com.mastfrog.acteur.wicket;
 
-import com.google.common.collect.Maps;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import com.mastfrog.acteur.HttpEvent;
 import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_MAX_SESSIONS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_SESSION_IDLE_TIMEOUT_MINUTES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_SESSION_PASSIVATE_AFTER_MINUTES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_SESSION_SHARDS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_MAX_SESSIONS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SESSION_IDLE_TIMEOUT_MINUTES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SESSION_PASSIVATE_AFTER_MINUTES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SESSION_PASSIVATION_DIR;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SESSION_SHARDS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SESSION_SNAPSHOT_FILE;
 import com.mastfrog.acteur.wicket.adapters.RequestAdapter;
+import com.mastfrog.settings.Settings;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.inject.Inject;
 
 import javax.servlet.http.HttpServletRequest;
@@ -39,13 +61,10 @@ import javax.servlet.http.HttpSessionBindingListener;
 
 import org.apache.wicket.Application;
 import org.apache.wicket.Session;
-import org.apache.wicket.core.request.ClientInfo;
 import org.apache.wicket.markup.MarkupParser;
 import org.apache.wicket.protocol.http.IRequestLogger;
 import org.apache.wicket.protocol.http.WebApplication;
-import org.apache.wicket.protocol.http.request.WebClientInfo;
 import org.apache.wicket.request.Request;
-import org.apache.wicket.request.cycle.RequestCycle;
 import org.apache.wicket.request.http.WebRequest;
 import org.apache.wicket.session.ISessionStore;
 import org.slf4j.Logger;
@@ -54,6 +73,28 @@ import org.slf4j.LoggerFactory;
 /**
  * Implementation of {@link ISessionStore} that works with web applications and
  * provides some specific http servlet/ session related functionality.
+ * <p>
+ * Sessions which have been idle longer than the configured timeout are
+ * expired by a hashed timing wheel, and if the number of sessions exceeds the
+ * configured maximum, the least recently used ones (approximated by a CLOCK
+ * sweep) are evicted.  Either way, registered {@link UnboundListener}s are
+ * notified.
+ * <p>
+ * Sessions are spread across independently locked shards by id hash, each
+ * with its own eviction queue and statistics (see {@link #statistics()}).
+ * The session for a request is looked up once and cached in the request
+ * scope, so attribute access does not repeat the lookup.
+ * <p>
+ * If passivation is enabled, sessions idle for longer than the configured
+ * period are moved out of the heap into a {@link SessionPassivator}, and
+ * moved back the next time they are requested.
+ * <p>
+ * If a snapshot file is configured, all sessions are written to it when the
+ * application is shut down, and restored from it on demand after restart.
+ * <p>
+ * A {@link SessionStorage} can keep sessions elsewhere as well - it is told
+ * which attributes each request changed, and asked for sessions this node
+ * does not have.
  *
  * @author jcompagner
  * @author Eelco Hillenius
@@ -77,15 +118,133 @@ public class ActeurSessionStore implements ISessionStore {
 
     private final Set<BindListener> bindListeners = new CopyOnWriteArraySet<BindListener>();
 
-    private final Map<String, SessionImpl> sessions = Maps.newConcurrentMap();
-    private final Provider<SessionId> sessionId;
+    private final SessionShards sessions;
+    private final Provider<CurrentSession> currentSession;
+    private final long idleTimeoutMillis;
+    private final SessionIdGenerator ids;
+    private final ClientInfoCache clientInfos;
+    private final long passivateAfterMillis;
+    private final SessionPassivator passivator;
+    private final File snapshotFile;
+    private final AtomicBoolean snapshotted = new AtomicBoolean();
+    private volatile SessionSnapshot restored;
+    /**
+     * Held while moving sessions between the heap and passivated or restored
+     * storage.
+     */
+    private final Object cold = new Object();
+    /**
+     * Null if sessions are only kept here.
+     */
+    private final SessionStorage storage;
+    private volatile String attributePrefix;
+    private final HashedWheelTimer expiryTimer = new HashedWheelTimer(
+            new DefaultThreadFactory("wicket-session-expiry", true), 1, TimeUnit.SECONDS, 512);
 
     /**
      * Construct.
      */
     @Inject
-    public ActeurSessionStore(Provider<SessionId> sessionId) {
-        this.sessionId = sessionId;
+    public ActeurSessionStore(Provider<CurrentSession> currentSession, Settings settings, SessionStorage storage, SessionIdGenerator ids, ClientInfoCache clientInfos) {
+        this(currentSession, settings, storage, ids, clientInfos,
+                TimeUnit.MINUTES.toMillis(settings.getLong(SETTINGS_KEY_SESSION_IDLE_TIMEOUT_MINUTES,
+                        DEFAULT_SESSION_IDLE_TIMEOUT_MINUTES)),
+                TimeUnit.MINUTES.toMillis(settings.getLong(SETTINGS_KEY_SESSION_PASSIVATE_AFTER_MINUTES,
+                        DEFAULT_SESSION_PASSIVATE_AFTER_MINUTES)));
+    }
+
+    /**
+     * Construct with timeouts finer than the minutes settings allow, for
+     * tests.
+     */
+    ActeurSessionStore(Provider<CurrentSession> currentSession, Settings settings, SessionStorage storage,
+            SessionIdGenerator ids, ClientInfoCache clientInfos, long idleTimeoutMillis, long passivateAfter) {
+        this.currentSession = currentSession;
+        this.ids = ids;
+        this.clientInfos = clientInfos;
+        this.storage = storage instanceof LocalSessionStorage ? null : storage;
+        if (this.storage != null) {
+            storage.attach(new StorageListener());
+        }
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        sessions = new SessionShards(settings.getInt(SETTINGS_KEY_SESSION_SHARDS, DEFAULT_SESSION_SHARDS),
+                settings.getInt(SETTINGS_KEY_MAX_SESSIONS, DEFAULT_MAX_SESSIONS));
+        SessionPassivator pass = null;
+        if (passivateAfter > 0 && passivateAfter < idleTimeoutMillis) {
+            File dir = new File(settings.getString(SETTINGS_KEY_SESSION_PASSIVATION_DIR,
+                    System.getProperty("java.io.tmpdir")));
+            try {
+                pass = new SessionPassivator(dir);
+                scheduleSweep();
+            } catch (IOException ex) {
+                log.warn("Could not create session passivation file in " + dir
+                        + " - sessions will stay in memory", ex);
+            }
+        }
+        passivator = pass;
+        passivateAfterMillis = pass == null ? 0 : passivateAfter;
+        String snapshotPath = settings.getString(SETTINGS_KEY_SESSION_SNAPSHOT_FILE);
+        snapshotFile = snapshotPath == null ? null : new File(snapshotPath);
+        if (snapshotFile != null) {
+            restored = SessionSnapshot.open(snapshotFile, System.currentTimeMillis() - idleTimeoutMillis);
+            if (restored != null) {
+                expiryTimer.newTimeout(new TimerTask() {
+                    @Override
+                    public void run(Timeout timeout) throws Exception {
+                        discardSnapshot();
+                    }
+                }, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void discardSnapshot() {
+        List<String> unclaimed;
+        synchronized (cold) {
+            if (restored == null) {
+                return;
+            }
+            unclaimed = restored.close();
+            restored = null;
+        }
+        // Sessions nobody came back for within the idle timeout - let
+        // Wicket clean up their page stores
+        for (String id : unclaimed) {
+            sessions.countExpiry(id);
+            for (UnboundListener listener : unboundListeners) {
+                listener.sessionUnbound(id);
+            }
+        }
+    }
+
+    /**
+     * Write every session to the snapshot file, if one is configured, so
+     * they can be restored after a restart.  Called before the Wicket
+     * application is destroyed, while its page manager can still serialize
+     * pages;  only the first call does anything.
+     */
+    public void snapshot() {
+        if (snapshotFile == null || snapshotted.getAndSet(true)) {
+            return;
+        }
+        try (SessionSnapshot.Writer writer = new SessionSnapshot.Writer(snapshotFile)) {
+            for (SessionImpl sess : sessions.values()) {
+                if (sess.live) {
+                    writer.write(sess);
+                }
+            }
+            synchronized (cold) {
+                if (passivator != null) {
+                    passivator.writeTo(writer);
+                }
+                if (restored != null) {
+                    restored.writeTo(writer);
+                }
+            }
+            writer.commit();
+        } catch (IOException ex) {
+            log.warn("Could not write session snapshot " + snapshotFile, ex);
+        }
     }
 
     /**
@@ -112,16 +271,286 @@ public class ActeurSessionStore implements ISessionStore {
      * {@code create} is false and the {@code request} has no valid session
      */
     final SessionImpl getHttpSession(final Request request, final boolean create) {
-        SessionId id = this.sessionId.get();
-        SessionImpl sess = id == null ? null : sessions.get(id.toString());
+        CurrentSession current = currentSession.get();
+        SessionImpl sess;
+        sess = current.isResolved() ? current.session() : null;
+        if (sess == null || !sess.live) {
+            // Not looked up yet, or invalidated or passivated since
+            SessionId id = current.id();
+            for (;;) {
+                sess = id == null ? null : find(id.toString());
+                // Counted as in use before checking it is live;  passivation
+                // marks it not live before checking whether it is in use, so
+                // one of the two always sees the other
+                current.resolved(sess);
+                if (sess == null || sess.live) {
+                    break;
+                }
+            }
+            if (sess != null) {
+                sess.touch();
+            }
+        }
         if (sess == null && create) {
-            sess = new SessionImpl(request, id);
-            bind(request, sess);
-            sessions.put(id.toString(), sess);
+            // Always a fresh id, never one the client sent for a session
+            // we do not have
+            sess = new SessionImpl(current.create(ids),
+                    ((RequestAdapter) request).evt.getHeader(Headers.USER_AGENT));
+            current.resolved(sess);
+            register(sess);
+            IRequestLogger logger = Application.get().getRequestLogger();
+            if (logger != null) {
+                logger.sessionCreated(sess.id);
+            }
         }
         return sess;
     }
 
+    private SessionImpl find(String id) {
+        SessionImpl result = sessions.get(id);
+        if (result != null && result.live) {
+            return result;
+        }
+        if (passivator != null || restored != null || storage != null) {
+            // Under a lock, so concurrent requests for the same session
+            // reactivate it only once, and one which found it while it was
+            // being passivated waits until that has finished or backed off
+            synchronized (cold) {
+                result = sessions.peek(id);
+                if (result != null && !result.live) {
+                    result = null;
+                }
+                if (result == null && passivator != null) {
+                    result = passivator.activate(id);
+                }
+                SessionSnapshot snapshot = restored;
+                if (result == null && snapshot != null) {
+                    result = snapshot.restore(id);
+                }
+                if (result == null && storage != null) {
+                    SessionChange loaded = storage.load(id);
+                    if (loaded != null) {
+                        result = new SessionImpl(id, loaded.userAgent(), loaded.created(), loaded.lastAccessed());
+                        result.attributes.putAll(loaded.changed());
+                    }
+                }
+                if (result != null && result != sessions.peek(id)) {
+                    log.debug("Session reactivated: {}", id);
+                    result.touch();
+                    register(result);
+                }
+            }
+        } else if (result != null) {
+            // Removed, and nowhere else to find it
+            result = null;
+        }
+        return result;
+    }
+
+    private void register(SessionImpl sess) {
+        // Share the string with other sessions from the same browser
+        sess.ua = clientInfos.intern(sess.ua);
+        scheduleExpiry(sess, passivator == null ? idleTimeoutMillis : passivateAfterMillis);
+        for (SessionImpl evicted : sessions.put(sess)) {
+            log.debug("Session evicted: {}", evicted.id);
+            release(evicted);
+        }
+    }
+
+    /**
+     * Get statistics for each shard of the session store.  Computing the
+     * estimated size of the sessions in each shard means serializing their
+     * attributes, so this is expensive with many sessions, and is intended
+     * for occasional monitoring.
+     *
+     * @return A list of statistics, one per shard
+     */
+    public List<ShardStatistics> statistics() {
+        return sessions.statistics();
+    }
+
+    private void scheduleExpiry(final SessionImpl sess, long delay) {
+        sess.expiry = expiryTimer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                long idle = System.currentTimeMillis() - sess.lastAccessed;
+                if (idle >= idleTimeoutMillis) {
+                    log.debug("Session expired: {}", sess.id);
+                    if (sessions.remove(sess)) {
+                        sessions.countExpiry(sess.id);
+                        release(sess);
+                    }
+                } else if (passivator != null && idle >= passivateAfterMillis) {
+                    passivate(sess, idle);
+                } else if (sess.live) {
+                    // Accessed since we were scheduled - the cheap way to
+                    // extend the timeout is to check again when it would
+                    // expire or be passivated now
+                    scheduleExpiry(sess, (passivator == null ? idleTimeoutMillis : passivateAfterMillis) - idle);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void passivate(SessionImpl sess, long idle) {
+        synchronized (cold) {
+            if (!sess.live) {
+                return;
+            }
+            if (sess.inUse.get() > 0) {
+                // A request is still running with it - look again later
+                scheduleExpiry(sess, passivateAfterMillis);
+                return;
+            }
+            long lastAccessed = sess.lastAccessed;
+            if (!passivator.passivate(sess)) {
+                // Not serializable, or too large - just let it expire
+                scheduleExpiry(sess, idleTimeoutMillis - idle);
+                return;
+            }
+            // Not unbound - requests which look it up from now on see it is
+            // not live and wait for us, then look it up again
+            sess.live = false;
+            boolean pickedUp = sess.inUse.get() > 0 || sess.lastAccessed != lastAccessed;
+            if (pickedUp || !sessions.remove(sess)) {
+                // A request picked it up while we were writing it, or it was
+                // invalidated or evicted meanwhile
+                passivator.discard(sess.id);
+                if (pickedUp && sessions.peek(sess.id) == sess) {
+                    sess.live = true;
+                    scheduleExpiry(sess, passivateAfterMillis);
+                }
+                return;
+            }
+            sess.attributes.clear();
+        }
+        log.debug("Session passivated: {}", sess.id);
+    }
+
+    private void scheduleSweep() {
+        long interval = Math.max(TimeUnit.MINUTES.toMillis(1), idleTimeoutMillis / 10);
+        expiryTimer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                List<SessionImpl> expired;
+                synchronized (cold) {
+                    expired = passivator.expire(System.currentTimeMillis() - idleTimeoutMillis);
+                }
+                // Read back, so the Wicket session is told it is invalid just
+                // as if it had expired in memory
+                for (SessionImpl sess : expired) {
+                    log.debug("Passivated session expired: {}", sess.id);
+                    sessions.countExpiry(sess.id);
+                    release(sess);
+                }
+                scheduleSweep();
+            }
+        }, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Remove a session, notifying listeners that it is gone - the equivalent
+     * of a servlet container invalidating an HttpSession.
+     */
+    void unbind(SessionImpl sess) {
+        if (sessions.remove(sess)) {
+            release(sess);
+        }
+    }
+
+    /**
+     * Called when a request cycle has completed, whether or not it
+     * succeeded, to pass whatever it changed in its session to the
+     * SessionStorage, if there is one - or just that it was used, if it
+     * changed nothing - and let the session be passivated again.
+     */
+    void requestCompleted() {
+        CurrentSession current = currentSession.get();
+        try {
+            storeChanges(current.session());
+        } finally {
+            current.release();
+        }
+    }
+
+    private void storeChanges(SessionImpl sess) {
+        if (storage == null || sess == null || !sess.live) {
+            return;
+        }
+        Map<String, Serializable> changed = new HashMap<>();
+        Set<String> removed = new HashSet<>();
+        for (Iterator<String> it = sess.dirty.iterator(); it.hasNext();) {
+            String name = it.next();
+            it.remove();
+            Serializable value = sess.attributes.get(name);
+            if (value == null) {
+                removed.add(name);
+            } else {
+                changed.put(name, value);
+            }
+        }
+        try {
+            storage.changed(new SessionChange(sess.id, sess.ua, sess.created, sess.lastAccessed, changed, removed));
+        } catch (RuntimeException ex) {
+            // The user's request has already been handled - don't fail it
+            log.warn("Could not store changes to session " + sess.id, ex);
+        }
+    }
+
+    /**
+     * Drop the in-memory copy of a session without notifying anyone, because
+     * a newer one exists elsewhere.
+     */
+    private void drop(String id) {
+        synchronized (cold) {
+            SessionImpl sess = sessions.peek(id);
+            if (sess != null && sessions.remove(sess)) {
+                sess.live = false;
+                Timeout expiry = sess.expiry;
+                if (expiry != null) {
+                    expiry.cancel();
+                }
+            }
+        }
+    }
+
+    private final class StorageListener implements SessionStorage.Listener {
+
+        @Override
+        public void stale(String sessionId) {
+            drop(sessionId);
+        }
+
+        @Override
+        public void removed(String sessionId) {
+            SessionImpl sess = sessions.peek(sessionId);
+            if (sess != null) {
+                unbind(sess);
+            }
+        }
+    }
+
+    private void release(SessionImpl sess) {
+        sess.live = false;
+        Timeout expiry = sess.expiry;
+        if (expiry != null) {
+            expiry.cancel();
+        }
+        boolean notified = false;
+        for (Serializable value : sess.attributes.values()) {
+            if (value instanceof SessionBindingListener) {
+                ((SessionBindingListener) value).unbound(sess.id);
+                notified = true;
+            }
+        }
+        if (!notified) {
+            for (UnboundListener listener : unboundListeners) {
+                listener.sessionUnbound(sess.id);
+            }
+        }
+        sess.attributes.clear();
+    }
+
     /**
      * @see org.apache.wicket.session.ISessionStore#bind(Request, Session)
      */
@@ -134,7 +563,7 @@ public class ActeurSessionStore implements ISessionStore {
                 listener.bindingSession(request, newSession);
             }
 
-            Session httpSession = getHttpSession(request, false);
+            SessionImpl httpSession = getHttpSession(request, false);
 
             if (httpSession != null) {
                 // register an unbinding listener for cleaning up
@@ -163,12 +592,26 @@ public class ActeurSessionStore implements ISessionStore {
      */
     @Override
     public void destroy() {
+        snapshot();
         try {
-            for (Session s : sessions.values()) {
-                s.detach();
+            for (SessionImpl s : sessions.values()) {
+                s.live = false;
             }
         } finally {
             sessions.clear();
+            expiryTimer.stop();
+            if (passivator != null) {
+                passivator.close();
+            }
+            if (storage != null) {
+                storage.close();
+            }
+            synchronized (cold) {
+                if (restored != null) {
+                    restored.close();
+                    restored = null;
+                }
+            }
         }
     }
 
@@ -179,7 +622,8 @@ public class ActeurSessionStore implements ISessionStore {
      */
     @Override
     public String getSessionId(final Request request, final boolean create) {
-        return EnsureSessionId.findSessionId(((RequestAdapter) request).evt) + "";
+        SessionImpl sess = getHttpSession(request, create);
+        return sess == null ? null : sess.id;
     }
 
     /**
@@ -187,10 +631,13 @@ public class ActeurSessionStore implements ISessionStore {
      */
     @Override
     public final void invalidate(final Request request) {
-        Session httpSession = getHttpSession(request, false);
+        SessionImpl httpSession = getHttpSession(request, false);
         if (httpSession != null) {
-            // tell the app server the session is no longer valid
-            httpSession.invalidate();
+            // what the app server would do if told the session is no longer valid
+            unbind(httpSession);
+            if (storage != null) {
+                storage.removed(httpSession.id);
+            }
         }
     }
 
@@ -228,7 +675,10 @@ public class ActeurSessionStore implements ISessionStore {
      * @param sessionId The session id of the session that was invalidated.
      */
     protected void onUnbind(final String sessionId) {
-        sessions.remove(new SessionId(sessionId));
+        SessionImpl sess = sessions.get(sessionId);
+        if (sess != null && !sess.live) {
+            sessions.remove(sess);
+        }
     }
 
     /**
@@ -240,13 +690,18 @@ public class ActeurSessionStore implements ISessionStore {
      * @return the prefix for storing variables in the actual session
      */
     private String getSessionAttributePrefix(final Request request) {
-        String sessionAttributePrefix = MarkupParser.WICKET;
+        // Constant for the one application this store serves, so compute it
+        // once rather than on every attribute access
+        String sessionAttributePrefix = attributePrefix;
+        if (sessionAttributePrefix == null) {
+            sessionAttributePrefix = MarkupParser.WICKET;
 
-        if (request instanceof WebRequest) {
-            sessionAttributePrefix = WebApplication.get().getSessionAttributePrefix(
-                    (WebRequest) request, null);
+            if (request instanceof WebRequest) {
+                sessionAttributePrefix = WebApplication.get().getSessionAttributePrefix(
+                        (WebRequest) request, null);
+            }
+            attributePrefix = sessionAttributePrefix;
         }
-
         return sessionAttributePrefix;
     }
 
@@ -259,7 +714,7 @@ public class ActeurSessionStore implements ISessionStore {
     public final Serializable getAttribute(final Request request, final String name) {
         SessionImpl httpSession = getHttpSession(request, false);
         if (httpSession != null) {
-            return (Serializable) httpSession.getAttribute(getSessionAttributePrefix(request) + name);
+            return httpSession.getAttribute(getSessionAttributePrefix(request) + name);
         }
         return null;
     }
@@ -434,8 +889,10 @@ public class ActeurSessionStore implements ISessionStore {
          */
         @Override
         public void valueUnbound(final HttpSessionBindingEvent evt) {
-            String sessionId = evt.getSession().getId();
+            unbound(evt.getSession().getId());
+        }
 
+        void unbound(final String sessionId) {
             log.debug("Session unbound: {}", sessionId);
 
             if (wicketSession != null) {
@@ -461,23 +918,129 @@ public class ActeurSessionStore implements ISessionStore {
         }
     }
 
-    class SessionImpl extends Session {
+    /**
+     * Point-in-time statistics for one shard of the session store.
+     */
+    public static final class ShardStatistics {
 
-        private final String ua;
-        private final SessionId id;
+        /**
+         * The index of the shard.
+         */
+        public final int shard;
+        /**
+         * The number of sessions currently held by the shard.
+         */
+        public final int liveSessions;
+        /**
+         * The number of lookups which found a session.
+         */
+        public final long hits;
+        /**
+         * The number of lookups for a session id the shard did not have.
+         */
+        public final long misses;
+        /**
+         * The number of sessions removed to keep within the session limit.
+         */
+        public final long evictions;
+        /**
+         * The number of sessions removed for being idle too long.
+         */
+        public final long expirations;
+        /**
+         * The approximate serialized size of the attributes of all sessions
+         * in the shard.
+         */
+        public final long estimatedBytes;
 
-        public SessionImpl(Request request, SessionId id) {
-            super(request);
-            super.setAttribute(Session.SESSION_ATTRIBUTE_NAME, id.toString());
-            RequestAdapter adap = (RequestAdapter) request;
-            ua = adap.evt.getHeader(Headers.USER_AGENT);
-            this.id = id;
+        ShardStatistics(int shard, int liveSessions, long hits, long misses, long evictions, long expirations, long estimatedBytes) {
+            this.shard = shard;
+            this.liveSessions = liveSessions;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.expirations = expirations;
+            this.estimatedBytes = estimatedBytes;
+        }
+
+        ShardStatistics withEstimatedBytes(long bytes) {
+            return new ShardStatistics(shard, liveSessions, hits, misses, evictions, expirations, bytes);
         }
 
         @Override
-        public ClientInfo getClientInfo() {
-            return new WebClientInfo(RequestCycle.get(), ua);
+        public String toString() {
+            return "shard " + shard + ": " + liveSessions + " sessions, " + hits
+                    + " hits, " + misses + " misses, " + evictions + " evictions, "
+                    + expirations + " expirations, ~" + estimatedBytes + " bytes";
         }
+    }
 
+    /**
+     * What a servlet container would keep as the HttpSession - the attributes
+     * Wicket stores, and the bookkeeping needed to expire and evict it.
+     */
+    static final class SessionImpl {
+
+        final String id;
+        volatile String ua;
+        final ConcurrentMap<String, Serializable> attributes = new ConcurrentHashMap<>();
+        /**
+         * Names of attributes set or removed since changes were last passed
+         * to the SessionStorage.
+         */
+        final Set<String> dirty = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final long created;
+        volatile long lastAccessed;
+        /**
+         * Set on each access, cleared when the eviction clock hand passes.
+         */
+        volatile boolean referenced = true;
+        volatile boolean live = true;
+        volatile Timeout expiry;
+        /**
+         * The number of requests currently using this session;  it is not
+         * passivated while any are.
+         */
+        final AtomicInteger inUse = new AtomicInteger();
+
+        SessionImpl(SessionId id, String ua) {
+            this.id = id.toString();
+            this.ua = ua;
+            lastAccessed = created = System.currentTimeMillis();
+        }
+
+        SessionImpl(String id, String ua, long created, long lastAccessed) {
+            this.id = id;
+            this.ua = ua;
+            this.created = created;
+            this.lastAccessed = lastAccessed;
+        }
+
+        void touch() {
+            lastAccessed = System.currentTimeMillis();
+            referenced = true;
+        }
+
+        Serializable getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        void setAttribute(String name, Serializable value) {
+            if (value == null) {
+                attributes.remove(name);
+            } else {
+                attributes.put(name, value);
+            }
+            dirty.add(name);
+        }
+
+        void removeAttribute(String name) {
+            attributes.remove(name);
+            dirty.add(name);
+        }
+
+        Set<String> getAttributeNames() {
+            return attributes.keySet();
+        }
     }
 }
@@ -0,0 +1,65 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.headers.Headers;
+import com.mastfrog.acteur.wicket.LoadShedder.RequestKind;
+import com.mastfrog.acteur.wicket.adapters.RequestCookies;
+import io.netty.handler.codec.http.HttpHeaders;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import javax.inject.Inject;
+
+/**
+ * Refuses work while the server is overloaded, before a session is looked up
+ * or created.
+ *
+ * @see LoadShedder
+ * @author Tim Boudreau
+ */
+final class AdmissionControl extends Acteur {
+
+    @Inject
+    AdmissionControl(HttpEvent evt, LoadShedder shedder, CurrentSession session, RequestCookies cookies, PageOutputCache pages) {
+        if (!shedder.isEnabled() || shedder.admit(kind(evt, session))) {
+            setState(new ConsumedLockedState());
+        } else {
+            String pageKey = pages.key(evt, cookies);
+            if (pageKey != null) {
+                // Let requests waiting for this one to render the page do so
+                pages.release(pageKey, evt);
+            }
+            add(Headers.stringHeader(HttpHeaders.Names.RETRY_AFTER), "1");
+            reply(SERVICE_UNAVAILABLE);
+        }
+    }
+
+    private static RequestKind kind(HttpEvent evt, CurrentSession session) {
+        if (WicketActeur.isResourceOrAjaxRequest(evt)) {
+            return RequestKind.AJAX_OR_RESOURCE;
+        }
+        return session.id() == null ? RequestKind.NEW_SESSION_PAGE : RequestKind.PAGE;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.google.inject.Singleton;
+import java.lang.reflect.Field;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.inject.Inject;
+import org.apache.wicket.Application;
+import org.apache.wicket.ISessionListener;
+import org.apache.wicket.Session;
+import org.apache.wicket.protocol.http.request.WebClientInfo;
+import org.apache.wicket.request.Request;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.request.http.WebRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Canonical user-agent strings and the client info parsed from them, so the
+ * many sessions from the same browser build share one string and parse it
+ * once.  Bounded - when full, an arbitrary entry is dropped to make room,
+ * which for the handful of user agents real traffic is made of almost never
+ * happens.
+ * <p>
+ * Wicket sessions are given the shared client info as they are created, in
+ * place of parsing the header again in WebSession.newClientInfo().  It
+ * carries nothing specific to a request or user - in particular no remote
+ * address - and is not modified unless the application gathers extended
+ * browser info, which writes the time zone and screen size into it;  in
+ * that case sessions are left to parse their own.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class ClientInfoCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ClientInfoCache.class);
+    private static final int MAX_USER_AGENTS = 2048;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicBoolean warned = new AtomicBoolean();
+    private final int max;
+
+    @Inject
+    ClientInfoCache() {
+        this(MAX_USER_AGENTS);
+    }
+
+    ClientInfoCache(int max) {
+        this.max = max;
+    }
+
+    /**
+     * Get the canonical instance of a user-agent string.
+     *
+     * @param userAgent A user agent, or null
+     * @return An equal string, shared with other sessions
+     */
+    String intern(String userAgent) {
+        return userAgent == null ? null : entry(userAgent).userAgent;
+    }
+
+    /**
+     * Get client info for a user agent, without parsing it again if another
+     * session has the same one.
+     *
+     * @param userAgent A user agent, or null
+     * @return Client info shared with other sessions, which must not be
+     * modified
+     */
+    WebClientInfo clientInfo(String userAgent) {
+        return entry(userAgent == null ? "" : userAgent).clientInfo();
+    }
+
+    /**
+     * Listener which gives each new Wicket session the shared client info
+     * for the user agent of the request creating it.
+     */
+    ISessionListener listener() {
+        return new ISessionListener() {
+            @Override
+            public void onCreated(Session session) {
+                if (!Application.get().getRequestCycleSettings().getGatherExtendedBrowserInfo()) {
+                    install(session);
+                }
+            }
+
+            @Override
+            public void onUnbound(String sessionId) {
+            }
+        };
+    }
+
+    private void install(Session session) {
+        Request request = RequestCycle.get() == null ? null : RequestCycle.get().getRequest();
+        if (!(request instanceof WebRequest)) {
+            return;
+        }
+        try {
+            // WebSession only calls newClientInfo() while this is null
+            Field field = Session.class.getDeclaredField("clientInfo");
+            field.setAccessible(true);
+            field.set(session, clientInfo(((WebRequest) request).getHeader("User-Agent")));
+        } catch (NoSuchFieldException | IllegalAccessException | RuntimeException ex) {
+            if (warned.compareAndSet(false, true)) {
+                log.warn("Could not share client info between sessions", ex);
+            }
+        }
+    }
+    private Entry entry(String userAgent) {
+        Entry result = entries.get(userAgent);
+        if (result == null) {
+            if (entries.size() >= max) {
+                Iterator<String> it = entries.keySet().iterator();
+                if (it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+            }
+            result = new Entry(userAgent);
+            Entry old = entries.putIfAbsent(userAgent, result);
+            if (old != null) {
+                result = old;
+            }
+        }
+        return result;
+    }
+
+    private static final class Entry {
+
+        final String userAgent;
+        private volatile WebClientInfo clientInfo;
+
+        Entry(String userAgent) {
+            this.userAgent = userAgent;
+        }
+
+        WebClientInfo clientInfo() {
+            // Parsing twice in a race is harmless
+            WebClientInfo result = clientInfo;
+            if (result == null) {
+                clientInfo = result = new ParsedClientInfo(userAgent);
+            }
+            return result;
+        }
+    }
+
+    private static final class ParsedClientInfo extends WebClientInfo {
+
+        ParsedClientInfo(String userAgent) {
+            super(RequestCycle.get(), userAgent);
+        }
+
+        @Override
+        protected String getRemoteAddr(RequestCycle requestCycle) {
+            // Shared with other users, so it must not hold one user's address
+            // - and the default implementation assumes a servlet request
+            return null;
+        }
+    }
+}
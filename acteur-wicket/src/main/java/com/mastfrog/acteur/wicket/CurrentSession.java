@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tim.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.wicket.ActeurSessionStore.SessionImpl;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_SESSION_COOKIE_MAX_AGE_HOURS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SESSION_COOKIE_MAX_AGE_HOURS;
+import com.mastfrog.settings.Settings;
+import io.netty.handler.codec.http.Cookie;
+import io.netty.handler.codec.http.DefaultCookie;
+import org.joda.time.Duration;
+
+/**
+ * Request-scoped record of the session id for the current request - the one
+ * the client sent, if any, or one issued during this request because Wicket
+ * bound a stateful session.  Ids are only issued when actually needed, so
+ * stateless requests never cause a session to be allocated.
+ *
+ * @author Tim Boudreau
+ */
+final class CurrentSession {
+
+    // Written on the rendering thread, read on the one which replies
+    private volatile SessionId id;
+    private volatile boolean created;
+    private SessionImpl session;
+    private boolean resolved;
+
+    CurrentSession(SessionId id) {
+        this.id = id;
+    }
+
+    /**
+     * The session id for this request.
+     *
+     * @return The id, or null if the client did not send one and none has
+     * been created
+     */
+    SessionId id() {
+        return id;
+    }
+
+    /**
+     * Issue a new session id for this request.
+     *
+     * @param ids The generator
+     * @return The new id
+     */
+    SessionId create(SessionIdGenerator ids) {
+        created = true;
+        return id = new SessionId(ids.next());
+    }
+
+    /**
+     * Whether a session id was issued during this request, so the client
+     * needs to be sent a cookie for it.
+     *
+     * @return true if the id is new
+     */
+    boolean isNew() {
+        return created;
+    }
+
+    /**
+     * Whether the session store has already looked up the session for this
+     * request, so it need not do so on every attribute access.
+     *
+     * @return true if {@link #session()} is meaningful
+     */
+    boolean isResolved() {
+        return resolved;
+    }
+
+    /**
+     * The session the store found or created for this request.
+     *
+     * @return The session, or null if there is none
+     */
+    SessionImpl session() {
+        return session;
+    }
+
+    /**
+     * Record the session found or created for this request, counting it as
+     * in use until {@link #release()}.
+     */
+    void resolved(SessionImpl session) {
+        if (session != this.session) {
+            if (session != null) {
+                session.inUse.incrementAndGet();
+            }
+            if (this.session != null) {
+                this.session.inUse.decrementAndGet();
+            }
+        }
+        this.session = session;
+        resolved = true;
+    }
+
+    /**
+     * Called when the request is finished with its session.
+     */
+    void release() {
+        SessionImpl old = session;
+        session = null;
+        resolved = false;
+        if (old != null) {
+            old.inUse.decrementAndGet();
+        }
+    }
+
+    Cookie cookie(Settings settings) {
+        DefaultCookie ck = new DefaultCookie(ActeurSessionStore.COOKIE_NAME, id.toString());
+        long maxAge = Duration.standardHours(
+                settings.getLong(SETTINGS_KEY_SESSION_COOKIE_MAX_AGE_HOURS, DEFAULT_SESSION_COOKIE_MAX_AGE_HOURS)).toStandardSeconds().getSeconds();
+        ck.setMaxAge(maxAge);
+        ck.setPath("/");
+        return ck;
+    }
+}
@@ -25,62 +25,41 @@ package com.mastfrog.acteur.wicket;
 
 import com.mastfrog.acteur.Acteur;
 import com.mastfrog.acteur.HttpEvent;
-import com.mastfrog.acteur.headers.Headers;
-import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_SESSION_COOKIE_MAX_AGE_HOURS;
-import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SESSION_COOKIE_MAX_AGE_HOURS;
-import com.mastfrog.settings.Settings;
-import io.netty.handler.codec.http.Cookie;
-import io.netty.handler.codec.http.DefaultCookie;
+import com.mastfrog.acteur.wicket.adapters.RequestCookies;
 import javax.inject.Inject;
-import org.apache.wicket.Application;
-import org.apache.wicket.protocol.http.IRequestLogger;
-import org.joda.time.Duration;
 
 /**
- * Ensures that a jsessionid cookie is set and the current session id is
- * available for injection.
+ * Makes the session id the client sent, if any, available for injection, and
+ * provides the request-scoped CurrentSession through which a new id is issued
+ * if Wicket binds a stateful session.  No id is created here, so requests
+ * for stateless pages and resources never cause one to be allocated.
+ * Also provides the request's RequestCookies, so the Cookie header is
+ * decoded at most once per request.
  *
  * @author Tim Boudreau
  */
 final class EnsureSessionId extends Acteur {
 
-    public static final Duration MAX_SESSION_AGE = Duration.standardDays(1);
-
     @Inject
-    EnsureSessionId(HttpEvent evt, Application app, Settings settings) {
-        SessionId id = findSessionId(evt);
+    EnsureSessionId(HttpEvent evt) {
+        RequestCookies cookies = new RequestCookies(evt);
+        SessionId id = findSessionId(cookies);
+        CurrentSession current = new CurrentSession(id);
         if (id == null) {
-            id = new SessionId();
-            DefaultCookie ck = new DefaultCookie(ActeurSessionStore.COOKIE_NAME, id.toString());
-            long maxAge = Duration.standardHours(
-                    settings.getLong(SETTINGS_KEY_SESSION_COOKIE_MAX_AGE_HOURS, DEFAULT_SESSION_COOKIE_MAX_AGE_HOURS)).toStandardSeconds().getSeconds();
-            ck.setMaxAge(maxAge);
-            add(Headers.SET_COOKIE, ck);
-            String sv = Headers.COOKIE.toString(new Cookie[]{ck});
-            evt.getRequest().headers().add(Headers.SET_COOKIE.name(), sv);
-            IRequestLogger logger = app.getRequestLogger();
-            if (logger != null) {
-                logger.sessionCreated(id.toString());
-            }
+            setState(new ConsumedLockedState(current, cookies));
+        } else {
+            setState(new ConsumedLockedState(current, cookies, id));
         }
-        setState(new ConsumedLockedState(id));
     }
 
     /**
-     * Locate the session id in the request cookies
-     * @param evt The HTTP request
+     * Locate the session id in the request cookies, without decoding any
+     * other cookies
+     * @param cookies The request's cookies
      * @return A session id if the cookie is present, or null if it is not
      */
-    static SessionId findSessionId(HttpEvent evt) {
-        Cookie[] cookies = evt.getHeader(Headers.COOKIE);
-        SessionId result = null;
-        if (cookies != null && cookies.length > 0) {
-            for (Cookie ck : cookies) {
-                if (ActeurSessionStore.COOKIE_NAME.equals(ck.getName())) {
-                    result = new SessionId(ck.getValue());
-                }
-            }
-        }
-        return result;
+    static SessionId findSessionId(RequestCookies cookies) {
+        String value = cookies.value(ActeurSessionStore.COOKIE_NAME);
+        return value == null ? null : new SessionId(value);
     }
 }
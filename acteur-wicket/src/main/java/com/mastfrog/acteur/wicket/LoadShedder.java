@@ -0,0 +1,169 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.google.inject.Singleton;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_ADMISSION_CONTROL;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_ADMISSION_INTERVAL_MILLIS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_ADMISSION_TARGET_MILLIS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_REQUEST_CYCLE_EXECUTOR;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_ADMISSION_CONTROL;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_ADMISSION_INTERVAL_MILLIS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_ADMISSION_TARGET_MILLIS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_REQUEST_CYCLE_EXECUTOR;
+import com.mastfrog.settings.Settings;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Admission control state, following the CoDel control law:  queueing delay
+ * samples come from the WicketExecutor as request cycles start;  once the
+ * delay has stayed above the target for a full interval we are in the
+ * dropping state until a sample comes in under the target again - or until
+ * no cycle is waiting for a thread, or none has started for an interval,
+ * since refusing work means no samples may arrive to end it.  While
+ * dropping, requests which would create a new session are always refused,
+ * other page requests are refused at intervals which shrink with the square
+ * root of the number refused so far, and Ajax and resource requests for
+ * existing sessions are always admitted, so users already on the site keep a
+ * responsive UI.
+ * <p>
+ * Request cycles which run inline never queue anywhere this can see, so
+ * admission control is switched off, with a warning, in that mode.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class LoadShedder {
+
+    private static final Logger log = LoggerFactory.getLogger(LoadShedder.class);
+
+    enum RequestKind {
+        NEW_SESSION_PAGE, PAGE, AJAX_OR_RESOURCE
+    }
+
+    private final boolean enabled;
+    private final long target;
+    private final long interval;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private long lastSample;
+    private long firstAboveTime;
+    private boolean dropping;
+    private long dropNext;
+    private int count;
+
+    @Inject
+    LoadShedder(Settings settings) {
+        boolean on = settings.getBoolean(SETTINGS_KEY_ADMISSION_CONTROL, DEFAULT_ADMISSION_CONTROL);
+        if (on && WicketExecutor.mode(settings.getString(SETTINGS_KEY_REQUEST_CYCLE_EXECUTOR,
+                DEFAULT_REQUEST_CYCLE_EXECUTOR)) == WicketExecutor.Mode.INLINE) {
+            log.warn("{} is set but {} is inline, so there is no queueing delay to measure - "
+                    + "admission control is OFF.  Set {} to pool or virtual to use it.",
+                    SETTINGS_KEY_ADMISSION_CONTROL, SETTINGS_KEY_REQUEST_CYCLE_EXECUTOR,
+                    SETTINGS_KEY_REQUEST_CYCLE_EXECUTOR);
+            on = false;
+        }
+        enabled = on;
+        target = TimeUnit.MILLISECONDS.toNanos(settings.getLong(SETTINGS_KEY_ADMISSION_TARGET_MILLIS, DEFAULT_ADMISSION_TARGET_MILLIS));
+        interval = TimeUnit.MILLISECONDS.toNanos(settings.getLong(SETTINGS_KEY_ADMISSION_INTERVAL_MILLIS, DEFAULT_ADMISSION_INTERVAL_MILLIS));
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Note that a request cycle is waiting for a thread.
+     */
+    void queued() {
+        waiting.incrementAndGet();
+    }
+
+    /**
+     * Note that a request cycle is no longer waiting for a thread, because
+     * it started or was refused.
+     */
+    void dequeued() {
+        waiting.decrementAndGet();
+    }
+
+    /**
+     * Record how long a request cycle waited before it started running.
+     *
+     * @param sojournNanos The queueing delay
+     */
+    synchronized void sample(long sojournNanos) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        lastSample = now;
+        if (sojournNanos < target) {
+            firstAboveTime = 0;
+            dropping = false;
+        } else if (firstAboveTime == 0) {
+            firstAboveTime = now + interval;
+        } else if (!dropping && now - firstAboveTime >= 0) {
+            dropping = true;
+            // Start where we left off if we were dropping recently
+            count = count > 2 && now - dropNext < 16 * interval ? count - 2 : 1;
+            dropNext = now;
+        }
+    }
+
+    /**
+     * Decide whether to take on a request.
+     *
+     * @param kind What sort of request it is
+     * @return true if it should be processed
+     */
+    synchronized boolean admit(RequestKind kind) {
+        if (!enabled || !dropping) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (waiting.get() <= 0 || now - lastSample >= interval) {
+            // Nothing is queued, or nothing has run to tell us it still is
+            dropping = false;
+            firstAboveTime = 0;
+            return true;
+        }
+        switch (kind) {
+            case AJAX_OR_RESOURCE:
+                return true;
+            case NEW_SESSION_PAGE:
+                return false;
+            default:
+                if (now - dropNext >= 0) {
+                    count++;
+                    dropNext = now + (long) (interval / Math.sqrt(count));
+                    return false;
+                }
+                return true;
+        }
+    }
+}
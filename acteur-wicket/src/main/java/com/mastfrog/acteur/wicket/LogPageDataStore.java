@@ -0,0 +1,840 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.google.inject.Singleton;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_PAGES_IN_MEMORY_PER_SESSION;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_PAGES_IN_MEMORY_PER_SESSION;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_PAGE_STORE_DIR;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SESSION_SNAPSHOT_FILE;
+import com.mastfrog.settings.Settings;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.inject.Inject;
+import org.apache.wicket.pageStore.IDataStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Page data store for Wicket which keeps the most recently stored pages of
+ * each session in memory, and writes pages pushed out of memory behind, on
+ * a background thread, to a single append-only file shared by all sessions.
+ * When most of the file is garbage - pages of expired sessions, or pages
+ * overwritten since - the live pages are copied into a new file and the old
+ * one is deleted.
+ * <p>
+ * The first version of a page written to the file is kept as a base for
+ * later ones:  when a page stored again - say after Ajax requests against
+ * an older tab - is written out again, only a delta against its base is
+ * written, unless the delta is no longer much smaller than the page, or
+ * enough deltas have been written against the base that a fresh full
+ * version is due;  reads reconstruct the page from the two.
+ * <p>
+ * Unlike Wicket's DiskDataStore, this needs no servlet temp directory and
+ * creates no file per session.  Unless sessions are snapshotted across
+ * restarts, the file is a temporary one, deleted when the application is
+ * destroyed.  If they are, the file is kept beside the snapshot file under
+ * a fixed name, and on shutdown the pages still in memory are written to
+ * it, followed by an index of where each session's pages are, which is
+ * read back at startup - so restored sessions get their pages back too.
+ * The index is deleted once read, so after a crash the file is discarded.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class LogPageDataStore implements IDataStore {
+
+    private static final Logger log = LoggerFactory.getLogger(LogPageDataStore.class);
+    private static final int HEADER = 4 + 4 + 2;
+    private static final long MIN_COMPACTION_SIZE = 16 * 1024 * 1024;
+    private static final long MAX_PENDING_BYTES = 64 * 1024 * 1024;
+    private static final int MAX_DELTAS_PER_BASE = 16;
+    private final ConcurrentMap<String, SessionPages> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Write> writes = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong garbage = new AtomicLong();
+    private final ReadWriteLock fileLock = new ReentrantReadWriteLock();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(
+            new DefaultThreadFactory("wicket-page-writer", true));
+    private final int pagesInMemory;
+    private final File dir;
+    /**
+     * Path the files are named after if they outlive the process, or null.
+     */
+    private final File persistent;
+    /**
+     * Two files, indexed by the low bit of the generation, so that locations
+     * from before and after a compaction can be told apart.
+     */
+    private final LogFile[] files = new LogFile[2];
+    private volatile int generation;
+
+    @Inject
+    LogPageDataStore(Settings settings) throws IOException {
+        pagesInMemory = Math.max(1, settings.getInt(SETTINGS_KEY_PAGES_IN_MEMORY_PER_SESSION,
+                DEFAULT_PAGES_IN_MEMORY_PER_SESSION));
+        dir = new File(settings.getString(SETTINGS_KEY_PAGE_STORE_DIR, System.getProperty("java.io.tmpdir")));
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        String snapshot = settings.getString(SETTINGS_KEY_SESSION_SNAPSHOT_FILE);
+        persistent = snapshot == null ? null : new File(snapshot + ".pages");
+        if (persistent == null || !restore(new File(snapshot))) {
+            if (persistent != null) {
+                // Left by a crash, or by a run whose sessions are gone
+                deleteLogFiles();
+            }
+            files[0] = newLogFile(0);
+        }
+    }
+
+    private void deleteLogFiles() throws IOException {
+        for (int gen = 0; gen < 2; gen++) {
+            File file = logFile(gen);
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Could not delete " + file);
+            }
+        }
+    }
+
+    private LogFile newLogFile(int generation) throws IOException {
+        if (persistent == null) {
+            File file = File.createTempFile("wicket-pages-", ".log", dir);
+            file.deleteOnExit();
+            return new LogFile(file);
+        }
+        File file = logFile(generation);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+        return new LogFile(file);
+    }
+
+    private File logFile(int generation) {
+        return new File(persistent.getPath() + '.' + (generation & 1));
+    }
+
+    private File indexFile() {
+        return new File(persistent.getPath() + ".index");
+    }
+
+    /**
+     * Load the index written when the application was last destroyed, if
+     * it was written along with the session snapshot.
+     *
+     * @return true if the file it describes is now in use
+     */
+    private boolean restore(File snapshot) {
+        File index = indexFile();
+        if (!index.exists()) {
+            return false;
+        }
+        LogFile file = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+            if (!snapshot.exists()) {
+                // Pages of sessions nobody can come back for
+                return false;
+            }
+            int gen = in.readInt();
+            long size = in.readLong();
+            file = new LogFile(logFile(gen));
+            if (file.size < size) {
+                throw new IOException(file.file + " is shorter than its index says");
+            }
+            // Anything past the end was written after the index
+            file.size = size;
+            for (int i = 0, count = in.readInt(); i < count; i++) {
+                String sessionId = in.readUTF();
+                SessionPages pages = new SessionPages();
+                for (int j = 0, n = in.readInt(); j < n; j++) {
+                    pages.locations.put(in.readInt(), in.readLong());
+                }
+                for (int j = 0, n = in.readInt(); j < n; j++) {
+                    pages.bases.put(in.readInt(), new Base(in.readLong(), in.readInt()));
+                }
+                sessions.put(sessionId, pages);
+            }
+            garbage.set(in.readLong());
+            generation = gen;
+            files[gen & 1] = file;
+            log.info("Restored pages of {} sessions from {}", sessions.size(), file.file);
+            return true;
+        } catch (IOException ex) {
+            log.warn("Could not restore pages from " + index, ex);
+            sessions.clear();
+            if (file != null) {
+                file.close();
+            }
+            return false;
+        } finally {
+            // Stale as soon as anything is appended
+            if (!index.delete()) {
+                log.warn("Could not delete {}", index);
+            }
+        }
+    }
+
+    /**
+     * Write every page still in memory to the file, then the index.
+     * Synchronized, as it appends.
+     */
+    private synchronized void persist() {
+        for (Map.Entry<String, SessionPages> e : sessions.entrySet()) {
+            SessionPages pages = e.getValue();
+            synchronized (pages) {
+                for (Map.Entry<Integer, byte[]> page : pages.recent.entrySet()) {
+                    pages.pending.put(page.getKey(), page.getValue());
+                    pendingBytes.addAndGet(page.getValue().length);
+                    writes.add(new Write(e.getKey(), pages, page.getKey(), page.getValue()));
+                }
+                pages.recent.clear();
+            }
+        }
+        drain();
+        int gen = generation;
+        File index = indexFile();
+        File temp = new File(index.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(gen);
+                out.writeLong(files[gen & 1].size);
+                out.writeInt(sessions.size());
+                for (Map.Entry<String, SessionPages> e : sessions.entrySet()) {
+                    SessionPages pages = e.getValue();
+                    synchronized (pages) {
+                        out.writeUTF(e.getKey());
+                        out.writeInt(pages.locations.size());
+                        for (Map.Entry<Integer, Long> loc : pages.locations.entrySet()) {
+                            out.writeInt(loc.getKey());
+                            out.writeLong(loc.getValue());
+                        }
+                        out.writeInt(pages.bases.size());
+                        for (Map.Entry<Integer, Base> base : pages.bases.entrySet()) {
+                            out.writeInt(base.getKey());
+                            out.writeLong(base.getValue().location);
+                            out.writeInt(base.getValue().deltas);
+                        }
+                    }
+                }
+                out.writeLong(garbage.get());
+            }
+            if (!temp.renameTo(index)) {
+                throw new IOException("Could not rename " + temp + " to " + index);
+            }
+        } catch (IOException ex) {
+            log.warn("Could not write page index " + index, ex);
+            temp.delete();
+        }
+    }
+
+    @Override
+    public byte[] getData(String sessionId, int id) {
+        SessionPages pages = sessions.get(sessionId);
+        if (pages == null) {
+            return null;
+        }
+        long location;
+        synchronized (pages) {
+            byte[] result = pages.recent.get(id);
+            if (result == null) {
+                result = pages.pending.get(id);
+            }
+            if (result != null) {
+                return result;
+            }
+            Long loc = pages.locations.get(id);
+            if (loc == null) {
+                return null;
+            }
+            location = loc;
+        }
+        fileLock.readLock().lock();
+        try {
+            // A compaction may have moved the page since we looked - if so,
+            // look again, now that it cannot happen again until we are done
+            synchronized (pages) {
+                Long loc = pages.locations.get(id);
+                if (loc == null) {
+                    return null;
+                }
+                location = loc;
+            }
+            return read(location);
+        } catch (IOException | RuntimeException ex) {
+            log.warn("Could not read page " + id + " of session " + sessionId, ex);
+            return null;
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeData(String sessionId, int id) {
+        SessionPages pages = sessions.get(sessionId);
+        if (pages != null) {
+            synchronized (pages) {
+                pages.recent.remove(id);
+                discardPending(pages.pending.remove(id));
+                retire(pages.locations.remove(id));
+                Base base = pages.bases.remove(id);
+                if (base != null) {
+                    discard(base.location);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void removeData(String sessionId) {
+        SessionPages pages = sessions.remove(sessionId);
+        if (pages != null) {
+            synchronized (pages) {
+                pages.removed = true;
+                pages.recent.clear();
+                for (byte[] data : pages.pending.values()) {
+                    discardPending(data);
+                }
+                pages.pending.clear();
+                for (Long loc : pages.locations.values()) {
+                    retire(loc);
+                }
+                pages.locations.clear();
+                for (Base base : pages.bases.values()) {
+                    discard(base.location);
+                }
+                pages.bases.clear();
+            }
+        }
+    }
+
+    @Override
+    public void storeData(String sessionId, int id, byte[] data) {
+        SessionPages pages = sessions.get(sessionId);
+        if (pages == null) {
+            pages = new SessionPages();
+            SessionPages old = sessions.putIfAbsent(sessionId, pages);
+            if (old != null) {
+                pages = old;
+            }
+        }
+        List<Write> evicted = null;
+        synchronized (pages) {
+            discardPending(pages.pending.remove(id));
+            // A full version in the file stays, as the base for the next
+            retire(pages.locations.remove(id));
+            pages.recent.remove(id);
+            pages.recent.put(id, data);
+            if (pages.recent.size() > pagesInMemory) {
+                evicted = new ArrayList<>(1);
+                for (Iterator<Map.Entry<Integer, byte[]>> it = pages.recent.entrySet().iterator(); it.hasNext() && pages.recent.size() > pagesInMemory;) {
+                    Map.Entry<Integer, byte[]> e = it.next();
+                    it.remove();
+                    pages.pending.put(e.getKey(), e.getValue());
+                    pendingBytes.addAndGet(e.getValue().length);
+                    evicted.add(new Write(sessionId, pages, e.getKey(), e.getValue()));
+                }
+            }
+        }
+        if (evicted != null) {
+            writes.addAll(evicted);
+            if (pendingBytes.get() > MAX_PENDING_BYTES) {
+                // The writer is not keeping up - help it rather than let
+                // pending pages pile up in memory
+                drain();
+            } else {
+                scheduleDrain();
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        // Not shutdownNow() - interrupting a thread using a FileChannel
+        // closes the channel
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            log.debug("Interrupted waiting for page writer", ex);
+        }
+        if (persistent != null) {
+            persist();
+        }
+        synchronized (this) {
+            sessions.clear();
+            writes.clear();
+            for (LogFile file : files) {
+                if (file == null) {
+                    continue;
+                }
+                if (persistent != null) {
+                    file.close();
+                } else {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isReplicated() {
+        return false;
+    }
+
+    @Override
+    public boolean canBeAsynchronous() {
+        // Writes behind on its own
+        return false;
+    }
+
+    private void discardPending(byte[] data) {
+        if (data != null) {
+            pendingBytes.addAndGet(-data.length);
+        }
+    }
+
+    private void discard(Long location) {
+        if (location != null) {
+            garbage.addAndGet(sizeOf(location));
+        }
+    }
+
+    /**
+     * Account for a page's version in the file being superseded - a full
+     * version is also the page's base, so only a delta becomes garbage.
+     */
+    private void retire(Long location) {
+        if (location != null && isDelta(location)) {
+            discard(location);
+        }
+    }
+
+    /**
+     * Read a page from the file, reconstructing it from its base if the
+     * location is that of a delta.  The caller must hold the file lock or
+     * the append lock.
+     */
+    private byte[] read(long location) throws IOException {
+        byte[] data = files[generationOf(location)].readData(offsetOf(location));
+        if (!isDelta(location)) {
+            return data;
+        }
+        long baseLocation = ByteBuffer.wrap(data).getLong();
+        byte[] base = files[generationOf(baseLocation)].readData(offsetOf(baseLocation));
+        return PageDelta.apply(base, data, 8);
+    }
+
+    /**
+     * Encode a page about to be written as a delta against its base, if it
+     * has one which has not had too many deltas written against it yet, and
+     * the delta is small enough to be worth it.
+     *
+     * @return A delta record's data - the base location followed by the
+     * delta - or null to write the page in full
+     */
+    private byte[] delta(Base base, byte[] data) {
+        if (base == null || base.deltas >= MAX_DELTAS_PER_BASE) {
+            return null;
+        }
+        try {
+            byte[] delta = PageDelta.encode(read(base.location), data, data.length / 2);
+            if (delta == null) {
+                return null;
+            }
+            return ByteBuffer.allocate(8 + delta.length).putLong(base.location).put(delta).array();
+        } catch (IOException | RuntimeException ex) {
+            log.debug("Could not read base of page", ex);
+            return null;
+        }
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                writer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            drain();
+                        } finally {
+                            draining.set(false);
+                        }
+                        if (!writes.isEmpty()) {
+                            scheduleDrain();
+                        }
+                        compactIfNeeded();
+                    }
+                });
+            } catch (RuntimeException ex) {
+                // Rejected after destroy()
+                draining.set(false);
+            }
+        }
+    }
+
+    /**
+     * Append queued pages to the file.  Synchronized, as the file has a
+     * single writer - either the writer thread or, when it falls behind, a
+     * request thread.
+     */
+    synchronized void drain() {
+        List<Write> batch = new ArrayList<>();
+        for (Write w = writes.poll(); w != null; w = writes.poll()) {
+            batch.add(w);
+            if (batch.size() == 64) {
+                append(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            append(batch);
+        }
+    }
+
+    private void append(List<Write> batch) {
+        int gen = generation;
+        LogFile file = files[gen & 1];
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        long[] offsets = new long[batch.size()];
+        Base[] bases = new Base[batch.size()];
+        int[] sizes = new int[batch.size()];
+        long position = file.size;
+        for (int i = 0; i < buffers.length; i++) {
+            Write w = batch.get(i);
+            Base base;
+            synchronized (w.pages) {
+                base = w.pages.bases.get(w.id);
+            }
+            // Bases can only be deleted by compaction, which cannot run
+            // while we hold the append lock, so reading it here is safe
+            byte[] delta = delta(base, w.data);
+            if (delta == null) {
+                buffers[i] = record(w.sessionId, w.id, w.data);
+                sizes[i] = w.data.length;
+            } else {
+                bases[i] = base;
+                buffers[i] = record(w.sessionId, w.id, delta);
+                sizes[i] = delta.length;
+            }
+            offsets[i] = position;
+            position += buffers[i].remaining();
+        }
+        try {
+            file.append(buffers);
+        } catch (IOException ex) {
+            log.warn("Could not write pages to " + file.file, ex);
+            for (Write w : batch) {
+                synchronized (w.pages) {
+                    if (w.pages.pending.get(w.id) == w.data) {
+                        w.pages.pending.remove(w.id);
+                        discardPending(w.data);
+                    }
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < buffers.length; i++) {
+            Write w = batch.get(i);
+            Base base = bases[i];
+            long location = location(gen, base != null, offsets[i], sizes[i]);
+            synchronized (w.pages) {
+                if (!w.pages.removed && w.pages.pending.get(w.id) == w.data
+                        && (base == null || w.pages.bases.get(w.id) == base)) {
+                    w.pages.pending.remove(w.id);
+                    discardPending(w.data);
+                    w.pages.locations.put(w.id, location);
+                    Base old = w.pages.bases.put(w.id, base == null
+                            ? new Base(location, 0)
+                            : new Base(base.location, base.deltas + 1));
+                    if (base == null && old != null) {
+                        discard(old.location);
+                    }
+                } else {
+                    // Removed or replaced while queued - whoever did that
+                    // has already accounted for the pending bytes
+                    garbage.addAndGet(sizeOf(location));
+                }
+            }
+        }
+    }
+
+    private void compactIfNeeded() {
+        LogFile current = files[generation & 1];
+        long size = current.size;
+        long waste = garbage.get();
+        if (size < MIN_COMPACTION_SIZE || waste * 2 < size) {
+            return;
+        }
+        try {
+            compact();
+        } catch (IOException ex) {
+            log.warn("Could not compact page store", ex);
+        }
+    }
+
+    /**
+     * Copy the pages still in use into a new file and switch to it.  Runs on
+     * the writer thread and holds the append lock, so nothing is appended to
+     * the old file meanwhile.  Pages stored as deltas are
+     * copied in full, and become their own base;  bases of pages whose
+     * current version is in memory are copied as they are.
+     */
+    synchronized void compact() throws IOException {
+        int oldGen = generation;
+        int newGen = oldGen + 1;
+        LogFile old = files[oldGen & 1];
+        LogFile target = newLogFile(newGen);
+        long before = old.size;
+        // Readable as soon as the first location points into it
+        files[newGen & 1] = target;
+        for (Map.Entry<String, SessionPages> e : sessions.entrySet()) {
+            SessionPages pages = e.getValue();
+            Map<Integer, Long> locations;
+            Map<Integer, Base> bases;
+            synchronized (pages) {
+                locations = new HashMap<>(pages.locations);
+                bases = new HashMap<>(pages.bases);
+            }
+            Map<Integer, Long> moved = new HashMap<>();
+            for (Map.Entry<Integer, Long> loc : locations.entrySet()) {
+                byte[] data = read(loc.getValue());
+                long offset = target.size;
+                target.append(new ByteBuffer[]{record(e.getKey(), loc.getKey(), data)});
+                moved.put(loc.getKey(), location(newGen, false, offset, data.length));
+            }
+            Map<Integer, Long> movedBases = new HashMap<>();
+            for (Map.Entry<Integer, Base> base : bases.entrySet()) {
+                if (!locations.containsKey(base.getKey())) {
+                    long location = base.getValue().location;
+                    byte[] data = read(location);
+                    long offset = target.size;
+                    target.append(new ByteBuffer[]{record(e.getKey(), base.getKey(), data)});
+                    movedBases.put(base.getKey(), location(newGen, false, offset, data.length));
+                }
+            }
+            synchronized (pages) {
+                for (Map.Entry<Integer, Long> m : moved.entrySet()) {
+                    // Only if not removed or replaced while we were copying
+                    Integer id = m.getKey();
+                    if (locations.get(id).equals(pages.locations.get(id))
+                            && bases.get(id) == pages.bases.get(id)) {
+                        pages.locations.put(id, m.getValue());
+                        pages.bases.put(id, new Base(m.getValue(), 0));
+                    } else if (bases.get(id) != null && bases.get(id) == pages.bases.get(id)) {
+                        // Stored again meanwhile;  what we copied may have
+                        // been a delta, not the base, so the base - which
+                        // is about to be deleted with the old file - goes
+                        pages.bases.remove(id);
+                    }
+                }
+                for (Map.Entry<Integer, Long> m : movedBases.entrySet()) {
+                    Integer id = m.getKey();
+                    Base base = pages.bases.get(id);
+                    if (base != null && base == bases.get(id)) {
+                        pages.bases.put(id, new Base(m.getValue(), base.deltas));
+                    }
+                }
+            }
+        }
+        // Wait for readers which may have looked up an old location
+        fileLock.writeLock().lock();
+        try {
+            generation = newGen;
+            garbage.set(0);
+            old.delete();
+            files[oldGen & 1] = null;
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+        log.debug("Compacted page store from {} to {} bytes", before, target.size);
+    }
+
+    private static ByteBuffer record(String sessionId, int id, byte[] data) {
+        byte[] sid = sessionId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + sid.length + data.length);
+        buf.putInt(data.length).putInt(id).putShort((short) sid.length).put(sid).put(data);
+        buf.flip();
+        return buf;
+    }
+
+    // Locations pack the generation parity, whether the record is a delta,
+    // the offset and the record size into a long:  1 bit, 1 bit, 38 bits
+    // (256Gb of file), 24 bits (16Mb of page);  the size is only used to
+    // account for garbage - reads use the length in the record itself
+    private static long location(int generation, boolean delta, long offset, int size) {
+        return ((long) (generation & 1) << 63) | (delta ? 1L << 62 : 0)
+                | (offset << 24) | (size & 0xFFFFFFL);
+    }
+
+    private static int generationOf(long location) {
+        return (int) (location >>> 63);
+    }
+
+    private static boolean isDelta(long location) {
+        return (location & (1L << 62)) != 0;
+    }
+
+    private static long offsetOf(long location) {
+        return (location >>> 24) & 0x3FFFFFFFFFL;
+    }
+
+    private static int sizeOf(long location) {
+        return HEADER + (int) (location & 0xFFFFFFL);
+    }
+
+    private static final class SessionPages {
+
+        final LinkedHashMap<Integer, byte[]> recent = new LinkedHashMap<>(16, 0.75F, true);
+        final Map<Integer, byte[]> pending = new HashMap<>();
+        final Map<Integer, Long> locations = new HashMap<>();
+        /**
+         * Full versions in the file which later versions of a page may be
+         * written as deltas against;  where a page's current version in
+         * the file is a full one, it is also its base.
+         */
+        final Map<Integer, Base> bases = new HashMap<>();
+        boolean removed;
+    }
+
+    private static final class Base {
+
+        final long location;
+        final int deltas;
+
+        Base(long location, int deltas) {
+            this.location = location;
+            this.deltas = deltas;
+        }
+    }
+
+    private static final class Write {
+
+        final String sessionId;
+        final SessionPages pages;
+        final int id;
+        final byte[] data;
+
+        Write(String sessionId, SessionPages pages, int id, byte[] data) {
+            this.sessionId = sessionId;
+            this.pages = pages;
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    private static final class LogFile {
+
+        final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        volatile long size;
+
+        LogFile(File file) throws IOException {
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            size = raf.length();
+        }
+
+        void append(ByteBuffer[] buffers) throws IOException {
+            long total = 0;
+            for (ByteBuffer b : buffers) {
+                total += b.remaining();
+            }
+            long position = size;
+            long written = 0;
+            channel.position(position);
+            while (written < total) {
+                written += channel.write(buffers);
+            }
+            size = position + total;
+        }
+
+        byte[] readData(long offset) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            readFully(header, offset);
+            header.flip();
+            int length = header.getInt();
+            header.getInt();
+            int sidLength = header.getShort();
+            ByteBuffer data = ByteBuffer.allocate(length);
+            readFully(data, offset + HEADER + sidLength);
+            return data.array();
+        }
+
+        private void readFully(ByteBuffer buf, long position) throws IOException {
+            while (buf.hasRemaining()) {
+                int count = channel.read(buf, position);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                position += count;
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+                raf.close();
+            } catch (IOException ex) {
+                log.debug("Closing " + file, ex);
+            }
+        }
+
+        void delete() {
+            close();
+            if (!file.delete()) {
+                log.debug("Could not delete {}", file);
+            }
+        }
+    }
+}
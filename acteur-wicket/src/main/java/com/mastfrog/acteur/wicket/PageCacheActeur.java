@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.Deferral;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.annotations.Concluders;
+import com.mastfrog.acteur.annotations.HttpCall;
+import static com.mastfrog.acteur.headers.Method.GET;
+import static com.mastfrog.acteur.headers.Method.HEAD;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.wicket.adapters.RequestCookies;
+import com.mastfrog.acteur.wicket.adapters.ResponseCompression;
+import io.netty.handler.codec.http.HttpHeaders;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.inject.Inject;
+
+/**
+ * Serves the output of stateless pages from the {@link PageOutputCache}
+ * ahead of {@link WicketActeur}.  On a miss the request is passed on to
+ * Wicket to render the page - unless another request is already doing so,
+ * in which case this one is deferred until that is done, and then
+ * {@link SendCachedPage} looks for the output again.
+ *
+ * @author Tim Boudreau
+ */
+@HttpCall(order = Integer.MAX_VALUE - 3, scopeTypes = PageCacheActeur.Lookup.class)
+@Methods({GET, HEAD})
+@Concluders(SendCachedPage.class)
+final class PageCacheActeur extends Acteur {
+
+    @Inject
+    PageCacheActeur(HttpEvent evt, PageOutputCache cache, ResponseCompression compression, Deferral deferral) {
+        String key = cache.key(evt, new RequestCookies(evt));
+        if (key == null) {
+            reject();
+            return;
+        }
+        String encoding = compression.isEnabled()
+                ? ResponseCompression.negotiate(evt.getHeader(HttpHeaders.Names.ACCEPT_ENCODING)) : null;
+        PageOutputCache.Hit hit = cache.hit(key, encoding);
+        if (hit == null) {
+            if (cache.lead(key, evt)) {
+                // Render it - WicketActeur hands the output back to the cache
+                reject();
+                return;
+            }
+            Waiter waiter = new Waiter(deferral.defer());
+            // In case the request rendering it never finishes
+            waiter.timeout = evt.getChannel().eventLoop().schedule(waiter,
+                    PageOutputCache.FLIGHT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            cache.await(key, waiter);
+        }
+        setState(new ConsumedLockedState(new Lookup(key, encoding, hit)));
+    }
+
+    /**
+     * What was looked up, and the hit if there was one.
+     */
+    static final class Lookup {
+
+        final String key;
+        final String encoding;
+        final PageOutputCache.Hit hit;
+
+        Lookup(String key, String encoding, PageOutputCache.Hit hit) {
+            this.key = key;
+            this.encoding = encoding;
+            this.hit = hit;
+        }
+    }
+
+    /**
+     * Resumes a deferred request once, whether because the page it waits
+     * for is done or because it has waited long enough.
+     */
+    private static final class Waiter implements Runnable {
+
+        private final Deferral.Resumer resumer;
+        private final AtomicBoolean resumed = new AtomicBoolean();
+        volatile ScheduledFuture<?> timeout;
+
+        Waiter(Deferral.Resumer resumer) {
+            this.resumer = resumer;
+        }
+
+        @Override
+        public void run() {
+            if (resumed.compareAndSet(false, true)) {
+                ScheduledFuture<?> t = timeout;
+                if (t != null) {
+                    t.cancel(false);
+                }
+                resumer.resume();
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Binary delta encoding of one version of a serialized page against an
+ * earlier one.  The base is hashed in fixed-size blocks;  the new version
+ * is scanned with a rolling hash, and encoded as runs copied from the base
+ * and literal runs of new bytes.  Serialized pages mostly change in a few
+ * field values, with everything around them unchanged or shifted, which
+ * this reduces to a handful of copies.
+ * <p>
+ * The format is the length of the result, then a sequence of runs, each
+ * introduced by a varint of its length shifted left by one, with the low
+ * bit set for a copy - which is followed by a varint base offset - and
+ * clear for a literal - which is followed by its bytes.
+ *
+ * @author Tim Boudreau
+ */
+final class PageDelta {
+
+    private static final int BLOCK = 16;
+    private static final int PRIME = 0x01000193;
+    private static final int PRIME_POW;
+
+    static {
+        int p = 1;
+        for (int i = 0; i < BLOCK - 1; i++) {
+            p *= PRIME;
+        }
+        PRIME_POW = p;
+    }
+
+    private PageDelta() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Encode a page against a base version of it.
+     *
+     * @param base The base version
+     * @param target The new version
+     * @param maxSize The size beyond which a delta is not worth having
+     * @return The delta, or null if it would be larger than maxSize
+     */
+    static byte[] encode(byte[] base, byte[] target, int maxSize) {
+        if (base.length < BLOCK || target.length < BLOCK) {
+            return null;
+        }
+        int blocks = base.length / BLOCK;
+        int mask = Integer.highestOneBit(blocks * 2 - 1) * 2 - 1;
+        int[] table = new int[mask + 1];
+        // Offsets are stored plus one, so zero means empty;  later blocks
+        // are indexed first so that the earliest occurrence wins
+        for (int b = blocks - 1; b >= 0; b--) {
+            table[slot(hash(base, b * BLOCK), mask)] = b * BLOCK + 1;
+        }
+        Output out = new Output(Math.min(maxSize, target.length) + 16);
+        out.varint(target.length);
+        int literal = 0;
+        int i = 0;
+        int h = hash(target, 0);
+        while (i + BLOCK <= target.length) {
+            int match = table[slot(h, mask)] - 1;
+            if (match >= 0 && regionMatches(base, match, target, i, BLOCK)) {
+                int length = BLOCK;
+                while (match + length < base.length && i + length < target.length
+                        && base[match + length] == target[i + length]) {
+                    length++;
+                }
+                while (i > literal && match > 0 && base[match - 1] == target[i - 1]) {
+                    i--;
+                    match--;
+                    length++;
+                }
+                out.literal(target, literal, i - literal);
+                out.copy(match, length);
+                i += length;
+                literal = i;
+                if (out.size() > maxSize) {
+                    return null;
+                }
+                if (i + BLOCK <= target.length) {
+                    h = hash(target, i);
+                }
+            } else {
+                if (i + BLOCK < target.length) {
+                    h = (h - target[i] * PRIME_POW) * PRIME + target[i + BLOCK];
+                }
+                i++;
+            }
+        }
+        out.literal(target, literal, target.length - literal);
+        return out.size() > maxSize ? null : out.toByteArray();
+    }
+
+    /**
+     * Reconstruct a page from its base and a delta.
+     *
+     * @param base The base version
+     * @param delta The array holding the delta
+     * @param offset Where in it the delta starts
+     * @return The page
+     */
+    static byte[] apply(byte[] base, byte[] delta, int offset) {
+        int[] pos = new int[]{offset};
+        byte[] result = new byte[varint(delta, pos)];
+        int at = 0;
+        while (pos[0] < delta.length) {
+            int run = varint(delta, pos);
+            int length = run >>> 1;
+            if ((run & 1) != 0) {
+                System.arraycopy(base, varint(delta, pos), result, at, length);
+            } else {
+                System.arraycopy(delta, pos[0], result, at, length);
+                pos[0] += length;
+            }
+            at += length;
+        }
+        if (at != result.length) {
+            throw new IllegalStateException("Delta produced " + at + " bytes, expected " + result.length);
+        }
+        return result;
+    }
+
+    private static int hash(byte[] bytes, int offset) {
+        int h = 0;
+        for (int i = offset; i < offset + BLOCK; i++) {
+            h = h * PRIME + bytes[i];
+        }
+        return h;
+    }
+
+    private static int slot(int hash, int mask) {
+        return (hash ^ (hash >>> 15)) & mask;
+    }
+
+    private static boolean regionMatches(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int varint(byte[] bytes, int[] pos) {
+        int result = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = bytes[pos[0]++];
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+    }
+
+    private static final class Output extends ByteArrayOutputStream {
+
+        Output(int size) {
+            super(size);
+        }
+
+        void varint(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void literal(byte[] bytes, int offset, int length) {
+            if (length > 0) {
+                varint(length << 1);
+                write(bytes, offset, length);
+            }
+        }
+
+        void copy(int offset, int length) {
+            varint((length << 1) | 1);
+            varint(offset);
+        }
+    }
+}
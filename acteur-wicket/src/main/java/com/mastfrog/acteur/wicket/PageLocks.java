@@ -0,0 +1,455 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.google.inject.Singleton;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.Session;
+import org.apache.wicket.page.CouldNotLockPageException;
+import org.apache.wicket.page.IManageablePage;
+import org.apache.wicket.page.IPageManager;
+import org.apache.wicket.page.PageAccessSynchronizer;
+import org.apache.wicket.page.PageManagerDecorator;
+import org.apache.wicket.util.IProvider;
+import org.apache.wicket.util.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Page locks for all sessions of an application, replacing the map of locks
+ * Wicket's PageAccessSynchronizer creates for each session.  Locks live in
+ * a fixed table of stripes, chosen by session and page id, each guarding
+ * the handful of pages locked in it;  taking an uncontended lock touches
+ * one stripe and allocates nothing but the lock itself, and threads waiting
+ * for a page only wake for releases in its stripe.
+ * <p>
+ * The time each request waited for its page, and the number of requests
+ * which gave up waiting, are recorded per page class - see
+ * {@link #statistics()} - to find the pages where concurrent Ajax requests
+ * queue up.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+public final class PageLocks {
+
+    private static final Logger log = LoggerFactory.getLogger(PageLocks.class);
+    static final MetaDataKey<PageLocks> KEY = new MetaDataKey<PageLocks>() {
+    };
+    private static final int STRIPES = 256;
+    private static final int BUCKETS = 32;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final ConcurrentMap<Class<?>, ClassStatistics> stats = new ConcurrentHashMap<>();
+    private final AtomicBoolean warned = new AtomicBoolean();
+    private final ThreadLocal<List<Lock>> held = new ThreadLocal<List<Lock>>() {
+        @Override
+        protected List<Lock> initialValue() {
+            return new ArrayList<>(4);
+        }
+    };
+
+    PageLocks() {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Get the wait time statistics for each page class which has been
+     * locked since startup.
+     *
+     * @return A list of statistics
+     */
+    public List<PageLockStatistics> statistics() {
+        List<PageLockStatistics> result = new ArrayList<>(stats.size());
+        for (Map.Entry<Class<?>, ClassStatistics> e : stats.entrySet()) {
+            result.add(e.getValue().toStatistics(e.getKey().getName()));
+        }
+        return result;
+    }
+
+    /**
+     * Replace the page access synchronizer of a Wicket session with one
+     * using these locks.
+     *
+     * @param session The session
+     */
+    void install(Session session) {
+        try {
+            Field field = Session.class.getDeclaredField("pageAccessSynchronizer");
+            field.setAccessible(true);
+            Duration timeout = Application.get().getRequestCycleSettings().getTimeout();
+            field.set(session, new SynchronizerProvider(new StripedPageAccessSynchronizer(this, timeout)));
+        } catch (NoSuchFieldException | IllegalAccessException | RuntimeException ex) {
+            if (warned.compareAndSet(false, true)) {
+                log.warn("Could not install page locks; using Wicket's", ex);
+            }
+        }
+    }
+
+    private static PageLocks find() {
+        Application app = Application.exists() ? Application.get() : null;
+        PageLocks result = app == null ? null : app.getMetaData(KEY);
+        if (result == null) {
+            // Deserialized outside a request of the application that made it
+            result = new PageLocks();
+        }
+        return result;
+    }
+
+    private Stripe stripe(int seed, int pageId) {
+        int h = seed ^ (pageId * 0x9E3779B9);
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * Lock a page for the calling thread, waiting if another thread holds
+     * it.
+     *
+     * @return The number of nanoseconds spent waiting, or -1 if the thread
+     * already held the lock
+     */
+    private long lock(StripedPageAccessSynchronizer owner, int pageId) {
+        Stripe stripe = stripe(owner.seed, pageId);
+        Thread current = Thread.currentThread();
+        long start = 0;
+        synchronized (stripe) {
+            for (;;) {
+                Lock lock = stripe.find(owner, pageId);
+                if (lock == null) {
+                    lock = new Lock(owner, pageId, current);
+                    stripe.locks.add(lock);
+                    held.get().add(lock);
+                    return start == 0 ? 0 : System.nanoTime() - start;
+                } else if (lock.thread == current) {
+                    return -1;
+                }
+                long now = System.nanoTime();
+                if (start == 0) {
+                    start = now;
+                }
+                long remaining = owner.timeoutNanos - (now - start);
+                if (remaining <= 0) {
+                    statsFor(lock.pageClass).timeouts.incrementAndGet();
+                    throw new CouldNotLockPageException(pageId, current.getName(), owner.timeout);
+                }
+                stripe.waiters++;
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(stripe, remaining);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    statsFor(lock.pageClass).timeouts.incrementAndGet();
+                    throw new CouldNotLockPageException(pageId, current.getName(), owner.timeout);
+                } finally {
+                    stripe.waiters--;
+                }
+            }
+        }
+    }
+
+    private void unlock(StripedPageAccessSynchronizer owner, int pageId) {
+        List<Lock> locks = held.get();
+        for (int i = 0; i < locks.size(); i++) {
+            Lock lock = locks.get(i);
+            if (lock.owner == owner && lock.pageId == pageId) {
+                locks.remove(i);
+                release(lock);
+                return;
+            }
+        }
+    }
+
+    private void unlockAll(StripedPageAccessSynchronizer owner) {
+        List<Lock> locks = held.get();
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            Lock lock = locks.get(i);
+            if (lock.owner == owner) {
+                locks.remove(i);
+                release(lock);
+            }
+        }
+    }
+
+    private void release(Lock lock) {
+        Stripe stripe = stripe(lock.owner.seed, lock.pageId);
+        synchronized (stripe) {
+            stripe.locks.remove(lock);
+            if (stripe.waiters > 0) {
+                stripe.notifyAll();
+            }
+        }
+    }
+
+    private void locked(StripedPageAccessSynchronizer owner, IManageablePage page, long waitNanos) {
+        if (waitNanos < 0) {
+            return;
+        }
+        Class<?> type = page.getClass();
+        Lock lock = findHeld(owner, page.getPageId());
+        if (lock != null) {
+            // So threads timing out waiting for it know what page it was
+            lock.pageClass = type;
+        }
+        statsFor(type).record(waitNanos);
+    }
+
+    private Lock findHeld(StripedPageAccessSynchronizer owner, int pageId) {
+        for (Lock lock : held.get()) {
+            if (lock.owner == owner && lock.pageId == pageId) {
+                return lock;
+            }
+        }
+        return null;
+    }
+
+    private ClassStatistics statsFor(Class<?> type) {
+        ClassStatistics result = stats.get(type);
+        if (result == null) {
+            result = new ClassStatistics();
+            ClassStatistics old = stats.putIfAbsent(type, result);
+            if (old != null) {
+                result = old;
+            }
+        }
+        return result;
+    }
+
+    private static final class Stripe {
+
+        final List<Lock> locks = new ArrayList<>(2);
+        int waiters;
+
+        Lock find(StripedPageAccessSynchronizer owner, int pageId) {
+            for (int i = 0; i < locks.size(); i++) {
+                Lock lock = locks.get(i);
+                if (lock.owner == owner && lock.pageId == pageId) {
+                    return lock;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Lock {
+
+        final StripedPageAccessSynchronizer owner;
+        final int pageId;
+        final Thread thread;
+        volatile Class<?> pageClass = IManageablePage.class;
+
+        Lock(StripedPageAccessSynchronizer owner, int pageId, Thread thread) {
+            this.owner = owner;
+            this.pageId = pageId;
+            this.thread = thread;
+        }
+    }
+
+    private static final class ClassStatistics {
+
+        final AtomicLong acquisitions = new AtomicLong();
+        final AtomicLong contended = new AtomicLong();
+        final AtomicLong timeouts = new AtomicLong();
+        final AtomicLong waitMicros = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        void record(long waitNanos) {
+            acquisitions.incrementAndGet();
+            long micros = TimeUnit.NANOSECONDS.toMicros(waitNanos);
+            if (waitNanos > 0) {
+                contended.incrementAndGet();
+                waitMicros.addAndGet(micros);
+            }
+            histogram.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        }
+
+        PageLockStatistics toStatistics(String pageClass) {
+            long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = histogram.get(i);
+            }
+            return new PageLockStatistics(pageClass, acquisitions.get(), contended.get(),
+                    timeouts.get(), waitMicros.get(), buckets);
+        }
+    }
+
+    /**
+     * Point-in-time lock statistics for one page class.
+     */
+    public static final class PageLockStatistics {
+
+        /**
+         * The name of the page class.
+         */
+        public final String pageClass;
+        /**
+         * The number of times a page of this class was locked.
+         */
+        public final long acquisitions;
+        /**
+         * The number of those which had to wait for another request.
+         */
+        public final long contended;
+        /**
+         * The number of requests which gave up waiting for a page of this
+         * class.
+         */
+        public final long timeouts;
+        /**
+         * The total time spent waiting, in microseconds.
+         */
+        public final long totalWaitMicros;
+        /**
+         * Wait times as a histogram:  element 0 counts locks taken without
+         * waiting, and element <i>n</i> those which waited from
+         * 2<sup><i>n</i>-1</sup> up to 2<sup><i>n</i></sup> microseconds.
+         */
+        public final long[] waitHistogram;
+
+        PageLockStatistics(String pageClass, long acquisitions, long contended, long timeouts, long totalWaitMicros, long[] waitHistogram) {
+            this.pageClass = pageClass;
+            this.acquisitions = acquisitions;
+            this.contended = contended;
+            this.timeouts = timeouts;
+            this.totalWaitMicros = totalWaitMicros;
+            this.waitHistogram = waitHistogram;
+        }
+
+        @Override
+        public String toString() {
+            return pageClass + ": " + acquisitions + " locks, " + contended + " contended, "
+                    + timeouts + " timeouts, " + totalWaitMicros + "us waiting";
+        }
+    }
+
+    private static final class SynchronizerProvider implements IProvider<PageAccessSynchronizer>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private final PageAccessSynchronizer synchronizer;
+
+        SynchronizerProvider(PageAccessSynchronizer synchronizer) {
+            this.synchronizer = synchronizer;
+        }
+
+        @Override
+        public PageAccessSynchronizer get() {
+            return synchronizer;
+        }
+    }
+
+    /**
+     * A session's page access synchronizer.  Serialized with the session,
+     * and reattached to the application's locks when read back.
+     */
+    static final class StripedPageAccessSynchronizer extends PageAccessSynchronizer {
+
+        private static final long serialVersionUID = 1L;
+        private final int seed = ThreadLocalRandom.current().nextInt();
+        private final Duration timeout;
+        private final long timeoutNanos;
+        private transient volatile PageLocks locks;
+
+        StripedPageAccessSynchronizer(PageLocks locks, Duration timeout) {
+            super(timeout);
+            this.locks = locks;
+            this.timeout = timeout;
+            this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout.getMilliseconds());
+        }
+
+        private PageLocks locks() {
+            PageLocks result = locks;
+            if (result == null) {
+                locks = result = find();
+            }
+            return result;
+        }
+
+        @Override
+        public void lockPage(int pageId) throws CouldNotLockPageException {
+            locks().lock(this, pageId);
+        }
+
+        @Override
+        public void unlockPage(int pageId) {
+            locks().unlock(this, pageId);
+        }
+
+        @Override
+        public void unlockAllPages() {
+            locks().unlockAll(this);
+        }
+
+        @Override
+        public IPageManager adapt(IPageManager pageManager) {
+            return new PageManagerDecorator(pageManager) {
+                @Override
+                public IManageablePage getPage(int id) {
+                    IManageablePage page = null;
+                    long waited = locks().lock(StripedPageAccessSynchronizer.this, id);
+                    try {
+                        page = super.getPage(id);
+                    } finally {
+                        if (page == null) {
+                            unlockPage(id);
+                        }
+                    }
+                    if (page == null) {
+                        // Expired or never existed - nothing to record
+                        return null;
+                    }
+                    locks().locked(StripedPageAccessSynchronizer.this, page, waited);
+                    return page;
+                }
+
+                @Override
+                public void touchPage(IManageablePage page) {
+                    long waited = locks().lock(StripedPageAccessSynchronizer.this, page.getPageId());
+                    locks().locked(StripedPageAccessSynchronizer.this, page, waited);
+                    super.touchPage(page);
+                }
+
+                @Override
+                public void commitRequest() {
+                    try {
+                        super.commitRequest();
+                    } finally {
+                        unlockAllPages();
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,512 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.google.common.net.MediaType;
+import com.google.inject.Singleton;
+import com.mastfrog.acteur.HttpEvent;
+import static com.mastfrog.acteur.headers.Method.GET;
+import static com.mastfrog.acteur.headers.Method.HEAD;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_PAGE_OUTPUT_CACHE;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_PAGE_OUTPUT_CACHE_BYTES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_PAGE_OUTPUT_CACHE_TTL_SECONDS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_PAGE_OUTPUT_CACHE;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_PAGE_OUTPUT_CACHE_BYTES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_PAGE_OUTPUT_CACHE_TTL_SECONDS;
+import com.mastfrog.acteur.wicket.adapters.RequestCookies;
+import com.mastfrog.acteur.wicket.adapters.ResponseAdapter;
+import com.mastfrog.acteur.wicket.adapters.ResponseCompression;
+import com.mastfrog.settings.Settings;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.IllegalReferenceCountException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.inject.Inject;
+import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.core.request.handler.IPageRequestHandler;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.component.IRequestablePage;
+import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
+import org.apache.wicket.request.cycle.IRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.request.mapper.parameter.INamedParameters.NamedPair;
+import org.apache.wicket.request.mapper.parameter.PageParameters;
+
+/**
+ * Cache of the rendered output of stateless, bookmarkable pages, for
+ * clients which have no session.  Pages are cached under their URL - with
+ * query parameters in a canonical order - and the locale they were
+ * rendered in, and served by {@link PageCacheActeur} until their time to
+ * live runs out, without instantiating or rendering the page.
+ * <p>
+ * When many requests for a page which is not cached arrive at once, one
+ * renders it while the rest are deferred - without holding a thread - until
+ * it is done, rather than all rendering it at once.
+ * <p>
+ * Since requests with a session are never served from the cache, and pages
+ * rendered for them are never cached, per-user content does not leak
+ * between clients;  pages must still not depend on anything but their URL,
+ * such as other cookies or headers, for this cache to be used.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+public final class PageOutputCache {
+
+    static final MetaDataKey<Rendered> RENDERED = new MetaDataKey<Rendered>() {
+    };
+    static final long FLIGHT_TIMEOUT_MILLIS = 5000;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<String> order = new ConcurrentLinkedQueue<>();
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final boolean enabled;
+    private final long maxBytes;
+    private final long ttl;
+    private final Locale locale;
+    private final ResponseCompression compression;
+
+    @Inject
+    PageOutputCache(Settings settings, WicketConfig config, ResponseCompression compression) {
+        enabled = settings.getBoolean(SETTINGS_KEY_PAGE_OUTPUT_CACHE, DEFAULT_PAGE_OUTPUT_CACHE);
+        maxBytes = settings.getLong(SETTINGS_KEY_PAGE_OUTPUT_CACHE_BYTES, DEFAULT_PAGE_OUTPUT_CACHE_BYTES);
+        ttl = TimeUnit.SECONDS.toMillis(settings.getInt(SETTINGS_KEY_PAGE_OUTPUT_CACHE_TTL_SECONDS,
+                DEFAULT_PAGE_OUTPUT_CACHE_TTL_SECONDS));
+        // Requests are rendered in the configured locale - see RequestAdapter
+        locale = config.locale();
+        this.compression = compression;
+    }
+
+    /**
+     * Remove all cached output of a page class.
+     *
+     * @param pageClass The page class
+     */
+    public void invalidate(Class<? extends IRequestablePage> pageClass) {
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Entry> e = it.next();
+            if (e.getValue().pageClass == pageClass) {
+                remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Remove the cached output of a page class rendered with the passed
+     * parameters - in any order.
+     *
+     * @param pageClass The page class
+     * @param parameters The parameters
+     */
+    public void invalidate(Class<? extends IRequestablePage> pageClass, PageParameters parameters) {
+        String params = normalize(parameters);
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Entry> e = it.next();
+            if (e.getValue().pageClass == pageClass && e.getValue().parameters.equals(params)) {
+                remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Remove all cached output.
+     */
+    public void invalidateAll() {
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Entry> e = it.next();
+            remove(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Get the key a request's output would be cached under, if it is one
+     * whose output could come from or go into the cache.
+     *
+     * @return A key, or null
+     */
+    String key(HttpEvent evt, RequestCookies cookies) {
+        if (!enabled || (evt.getMethod() != GET && evt.getMethod() != HEAD)
+                || WicketActeur.isResourceOrAjaxRequest(evt)
+                || EnsureSessionId.findSessionId(cookies) != null) {
+            return null;
+        }
+        String uri = evt.getRequest().getUri();
+        int q = uri.indexOf('?');
+        StringBuilder sb = new StringBuilder(uri.length() + 8);
+        if (q < 0) {
+            sb.append(uri);
+        } else {
+            sb.append(uri, 0, q + 1);
+            String[] params = uri.substring(q + 1).split("&");
+            Arrays.sort(params);
+            for (int i = 0; i < params.length; i++) {
+                if (i > 0) {
+                    sb.append('&');
+                }
+                sb.append(params[i]);
+            }
+        }
+        return sb.append('|').append(locale).toString();
+    }
+
+    /**
+     * Called on a miss, to make the caller the request which renders the
+     * page, unless another request already is.  If this returns true,
+     * {@link #completed} or {@link #release} must be called with the same
+     * event when it is done.
+     *
+     * @param key The key
+     * @param evt The request
+     * @return Whether the caller should render the page
+     */
+    boolean lead(String key, HttpEvent evt) {
+        Flight flight = new Flight(evt);
+        for (;;) {
+            Flight existing = flights.putIfAbsent(key, flight);
+            if (existing == null) {
+                return true;
+            }
+            if (existing.started + FLIGHT_TIMEOUT_MILLIS >= System.currentTimeMillis()) {
+                return false;
+            }
+            // The request rendering it went astray - take over, and let
+            // those waiting for it try again
+            if (flights.replace(key, existing, flight)) {
+                existing.done();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Arrange for the passed callback to be run when the request rendering
+     * a page is done with it - at once if none is.  Nothing is blocked
+     * waiting;  the caller is expected to defer its request and resume it
+     * from the callback, and then look for the output with {@link #hit}
+     * again.
+     *
+     * @param key The key
+     * @param onDone Run when the output may be cached
+     */
+    void await(String key, Runnable onDone) {
+        Flight flight = flights.get(key);
+        if (flight == null || !flight.await(onDone)) {
+            onDone.run();
+        }
+    }
+
+    /**
+     * Get the cached output for a key, with the content in the passed
+     * encoding retained for the caller, who must release it.
+     *
+     * @return A hit, or null
+     */
+    Hit hit(String key, String encoding) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires < System.currentTimeMillis()) {
+            remove(key, entry);
+            return null;
+        }
+        if (encoding != null && !compression.accepts(entry.contentType, entry.identity.readableBytes())) {
+            encoding = null;
+        }
+        ByteBuf content = entry.content(encoding);
+        return content == null ? null : new Hit(entry, content, content == entry.identity ? null : encoding);
+    }
+
+    /**
+     * Called when a request whose output might be cached has been
+     * processed, before the response is finished, to cache it if it is the
+     * output of a stateless bookmarkable page, and let anyone waiting for
+     * it know.
+     *
+     * @param key The key
+     * @param evt The request
+     * @param rendered What Wicket rendered, if a page
+     * @param response The response, or null if the request failed
+     * @param sessionCreated Whether rendering created a session
+     */
+    void completed(String key, HttpEvent evt, Rendered rendered, ResponseAdapter response, boolean sessionCreated) {
+        try {
+            if (rendered != null && response != null && !sessionCreated && response.isReplayable()) {
+                store(key, rendered, response);
+            }
+        } finally {
+            release(key, evt);
+        }
+    }
+
+    /**
+     * Called if a request which was to render a page will not, so those
+     * waiting for it can render it themselves.  Does nothing if the
+     * request is not the one rendering it - which may also be because it
+     * took too long and another took over.
+     *
+     * @param key The key
+     * @param evt The request
+     */
+    void release(String key, HttpEvent evt) {
+        Flight flight = flights.get(key);
+        if (flight != null && flight.leader == evt && flights.remove(key, flight)) {
+            flight.done();
+        }
+    }
+
+    private void remove(String key, Entry entry) {
+        if (entries.remove(key, entry)) {
+            order.remove(key);
+            bytes.addAndGet(-entry.evict());
+        }
+    }
+
+    private void store(String key, Rendered rendered, ResponseAdapter response) {
+        ByteBuf content = response.copyBody();
+        if (content == null) {
+            return;
+        }
+        int size = content.readableBytes();
+        if (size > maxBytes / 8) {
+            content.release();
+            return;
+        }
+        Entry entry = new Entry(content, response.contentType(), response.cacheControl(),
+                rendered.pageClass, rendered.parameters, System.currentTimeMillis() + ttl);
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            bytes.addAndGet(-old.evict());
+        } else {
+            order.add(key);
+        }
+        trim(size);
+    }
+
+    private void trim(int added) {
+        for (long total = bytes.addAndGet(added); total > maxBytes; total = bytes.get()) {
+            String eldest = order.poll();
+            if (eldest == null) {
+                break;
+            }
+            Entry evicted = entries.remove(eldest);
+            if (evicted != null) {
+                bytes.addAndGet(-evicted.evict());
+            }
+        }
+    }
+
+    /**
+     * Listener which notes, in the request cycle, which stateless
+     * bookmarkable page a request rendered - for this cache, and so that
+     * only such pages are given ETags.
+     */
+    IRequestCycleListener listener() {
+        return new AbstractRequestCycleListener() {
+            @Override
+            public void onRequestHandlerExecuted(RequestCycle cycle, IRequestHandler handler) {
+                if (!(handler instanceof IPageRequestHandler)) {
+                    return;
+                }
+                IPageRequestHandler pageHandler = (IPageRequestHandler) handler;
+                if (!pageHandler.isPageInstanceCreated()) {
+                    return;
+                }
+                IRequestablePage page = pageHandler.getPage();
+                if (page.isPageStateless() && Application.get().getPageFactory().isBookmarkable(page.getClass())) {
+                    cycle.setMetaData(RENDERED, new Rendered(page.getClass(), normalize(page.getPageParameters())));
+                }
+            }
+        };
+    }
+
+    /**
+     * Page parameters as a string independent of the order they were
+     * added in.
+     */
+    static String normalize(PageParameters parameters) {
+        if (parameters == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < parameters.getIndexedCount(); i++) {
+            sb.append('/').append(parameters.get(i));
+        }
+        List<NamedPair> named = new ArrayList<>(parameters.getAllNamed());
+        Collections.sort(named, new Comparator<NamedPair>() {
+            @Override
+            public int compare(NamedPair a, NamedPair b) {
+                int result = a.getKey().compareTo(b.getKey());
+                return result != 0 ? result : a.getValue().compareTo(b.getValue());
+            }
+        });
+        for (NamedPair pair : named) {
+            sb.append('&').append(pair.getKey()).append('=').append(pair.getValue());
+        }
+        return sb.toString();
+    }
+
+    static final class Rendered {
+
+        final Class<? extends IRequestablePage> pageClass;
+        final String parameters;
+
+        Rendered(Class<? extends IRequestablePage> pageClass, String parameters) {
+            this.pageClass = pageClass;
+            this.parameters = parameters;
+        }
+    }
+
+    private static final class Flight {
+
+        final HttpEvent leader;
+        final long started = System.currentTimeMillis();
+        private List<Runnable> waiting = new ArrayList<>();
+
+        Flight(HttpEvent leader) {
+            this.leader = leader;
+        }
+
+        synchronized boolean await(Runnable onDone) {
+            if (waiting == null) {
+                return false;
+            }
+            waiting.add(onDone);
+            return true;
+        }
+
+        void done() {
+            List<Runnable> toRun;
+            synchronized (this) {
+                toRun = waiting;
+                waiting = null;
+            }
+            if (toRun != null) {
+                for (Runnable r : toRun) {
+                    r.run();
+                }
+            }
+        }
+    }
+
+    static final class Hit {
+
+        final Entry entry;
+        final ByteBuf content;
+        final String encoding;
+
+        Hit(Entry entry, ByteBuf content, String encoding) {
+            this.entry = entry;
+            this.content = content;
+            this.encoding = encoding;
+        }
+    }
+
+    final class Entry {
+
+        final ByteBuf identity;
+        final MediaType contentType;
+        final String cacheControl;
+        final Class<? extends IRequestablePage> pageClass;
+        final String parameters;
+        final long expires;
+        private ByteBuf gzip;
+        private ByteBuf deflate;
+        private boolean evicted;
+
+        Entry(ByteBuf identity, MediaType contentType, String cacheControl, Class<? extends IRequestablePage> pageClass, String parameters, long expires) {
+            this.identity = identity;
+            this.contentType = contentType;
+            this.cacheControl = cacheControl;
+            this.pageClass = pageClass;
+            this.parameters = parameters;
+            this.expires = expires;
+        }
+
+        /**
+         * Get the content in an encoding, compressing it the first time
+         * it is asked for, retained for the caller.
+         */
+        synchronized ByteBuf content(String encoding) {
+            if (evicted) {
+                return null;
+            }
+            ByteBuf result = identity;
+            if (ResponseCompression.GZIP.equals(encoding)) {
+                if (gzip == null) {
+                    gzip = compressed(encoding);
+                }
+                result = gzip;
+            } else if (ResponseCompression.DEFLATE.equals(encoding)) {
+                if (deflate == null) {
+                    deflate = compressed(encoding);
+                }
+                result = deflate;
+            }
+            try {
+                return result.retain();
+            } catch (IllegalReferenceCountException ex) {
+                return null;
+            }
+        }
+
+        private ByteBuf compressed(String encoding) {
+            ByteBuf result = compression.compress(identity, encoding, UnpooledByteBufAllocator.DEFAULT);
+            if (result.readableBytes() >= identity.readableBytes()) {
+                result.release();
+                return identity;
+            }
+            bytes.addAndGet(result.readableBytes());
+            return result;
+        }
+
+        synchronized long evict() {
+            evicted = true;
+            long size = identity.readableBytes();
+            identity.release();
+            if (gzip != null && gzip != identity) {
+                size += gzip.readableBytes();
+                gzip.release();
+            }
+            if (deflate != null && deflate != identity) {
+                size += deflate.readableBytes();
+                deflate.release();
+            }
+            return size;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.google.inject.Singleton;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_SERIALIZER_COMPRESSION;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SERIALIZER_COMPRESSION;
+import com.mastfrog.settings.Settings;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import javax.inject.Inject;
+import org.apache.wicket.Application;
+import org.apache.wicket.serialize.ISerializer;
+import org.apache.wicket.serialize.java.JavaSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Page serializer which replaces the full class descriptors Java
+ * serialization writes for every class in every page - field names, types,
+ * serial version ids, per class in the hierarchy - with just the class name,
+ * resolved when reading through a per-application table of classes and
+ * their descriptors.  Output is written to a per-thread buffer which is
+ * reused from page to page, and can optionally be deflated.
+ * <p>
+ * Descriptors are resolved against the classes of the running application,
+ * so data can be read by any node running the same build of it, but not
+ * across changes to the serialized classes - which for pages, which only
+ * live as long as a session, is not a concern.  Data written by Wicket's
+ * default serializer is still readable, and anything this serializer
+ * cannot write is handed to the default one, which logs why.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class PageSerializer implements ISerializer {
+
+    private static final Logger log = LoggerFactory.getLogger(PageSerializer.class);
+    private static final byte MAGIC = 0x57;
+    private static final byte PLAIN = 0;
+    private static final byte DEFLATED = 1;
+    private static final int MAX_RETAINED_BUFFER = 256 * 1024;
+    private final ConcurrentMap<String, ObjectStreamClass> descriptors = new ConcurrentHashMap<>();
+    private final String applicationKey;
+    private final JavaSerializer fallback;
+    private final boolean compress;
+    private final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    @Inject
+    PageSerializer(WicketConfig config, Settings settings) {
+        // WicketApplicationInitializer names the application after its class
+        this(config.applicationClass().getName(),
+                settings.getBoolean(SETTINGS_KEY_SERIALIZER_COMPRESSION, DEFAULT_SERIALIZER_COMPRESSION));
+    }
+
+    PageSerializer(String applicationKey, boolean compress) {
+        this.applicationKey = applicationKey;
+        this.compress = compress;
+        this.fallback = new JavaSerializer(applicationKey);
+    }
+
+    @Override
+    public byte[] serialize(Object object) {
+        Buffer buffer = buffers.get();
+        buffer.reset();
+        buffer.write(MAGIC);
+        buffer.write(compress ? DEFLATED : PLAIN);
+        try {
+            if (compress) {
+                Deflater deflater = deflaters.get();
+                deflater.reset();
+                DeflaterOutputStream deflate = new DeflaterOutputStream(buffer, deflater, 8192);
+                try (ObjectOutputStream out = new NameTableOutputStream(deflate)) {
+                    out.writeObject(object);
+                    out.flush();
+                    deflate.finish();
+                }
+            } else {
+                try (ObjectOutputStream out = new NameTableOutputStream(buffer)) {
+                    out.writeObject(object);
+                }
+            }
+            return buffer.toByteArray();
+        } catch (NotSerializableException ex) {
+            // Let Wicket's serializer report the path to the culprit
+            return fallback.serialize(object);
+        } catch (IOException | RuntimeException ex) {
+            log.error("Could not serialize " + object, ex);
+            return null;
+        } finally {
+            buffer.trim();
+        }
+    }
+
+    @Override
+    public Object deserialize(byte[] data) {
+        if (data == null || data.length < 2 || data[0] != MAGIC) {
+            return fallback.deserialize(data);
+        }
+        InputStream in = new ByteArrayInputStream(data, 2, data.length - 2);
+        Inflater inflater = null;
+        if (data[1] == DEFLATED) {
+            inflater = new Inflater();
+            in = new InflaterInputStream(in, inflater, 8192);
+        }
+        try (ObjectInputStream oin = new NameTableInputStream(in)) {
+            return oin.readObject();
+        } catch (IOException | ClassNotFoundException | RuntimeException ex) {
+            log.error("Could not deserialize page", ex);
+            return null;
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    private ObjectStreamClass descriptor(String name) throws ClassNotFoundException {
+        ObjectStreamClass result = descriptors.get(name);
+        if (result == null) {
+            result = ObjectStreamClass.lookupAny(resolve(name));
+            descriptors.putIfAbsent(name, result);
+        }
+        return result;
+    }
+
+    private Class<?> resolve(String name) throws ClassNotFoundException {
+        Application app = Application.get(applicationKey);
+        if (app != null) {
+            try {
+                return app.getApplicationSettings().getClassResolver().resolveClass(name);
+            } catch (ClassNotFoundException ex) {
+                // fall through
+            }
+        }
+        ClassLoader ldr = Thread.currentThread().getContextClassLoader();
+        return Class.forName(name, false, ldr == null ? PageSerializer.class.getClassLoader() : ldr);
+    }
+
+    private static final class NameTableOutputStream extends ObjectOutputStream {
+
+        NameTableOutputStream(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        @Override
+        protected void writeStreamHeader() throws IOException {
+            // The serializer writes its own
+        }
+
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+            writeUTF(desc.getName());
+        }
+    }
+
+    private final class NameTableInputStream extends ObjectInputStream {
+
+        NameTableInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected void readStreamHeader() throws IOException {
+            // Written by the serializer, already skipped
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            return descriptor(readUTF());
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            return desc.forClass() != null ? desc.forClass() : resolve(desc.getName());
+        }
+    }
+
+    /**
+     * Per-thread output buffer, reused from page to page, and shrunk again
+     * if one exceptionally large page grew it.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(8192);
+        }
+
+        void trim() {
+            if (buf.length > MAX_RETAINED_BUFFER) {
+                buf = new byte[8192];
+            }
+            count = 0;
+        }
+    }
+}
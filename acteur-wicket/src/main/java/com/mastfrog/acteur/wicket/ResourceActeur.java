@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.annotations.HttpCall;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Method.GET;
+import static com.mastfrog.acteur.headers.Method.HEAD;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.wicket.adapters.ContentWriter;
+import com.mastfrog.acteur.wicket.adapters.ResponseCompression;
+import com.mastfrog.settings.Settings;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaders;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import javax.inject.Inject;
+import org.joda.time.DateTime;
+
+/**
+ * Serves package resources from the {@link ResourceCache} ahead of
+ * {@link WicketActeur}, so requests for them need no session and no
+ * request cycle.  Anything not in the cache is passed on to Wicket.
+ * Compressible resources are sent gzipped or deflated if the client's
+ * Accept-Encoding header allows it.
+ *
+ * @author Tim Boudreau
+ */
+@HttpCall(order = Integer.MAX_VALUE - 2)
+@Methods({GET, HEAD})
+final class ResourceActeur extends Acteur {
+
+    @Inject
+    ResourceActeur(HttpEvent evt, ResourceCache cache, Settings settings) {
+        String uri = evt.getRequest().getUri();
+        ResourceCache.Resource resource = uri.contains(ResourceCache.RESOURCE_PATH) ? cache.get(uri) : null;
+        if (resource == null) {
+            reject();
+            return;
+        }
+        boolean keepAlive = ContentWriter.isKeepAlive(settings, evt);
+        String encoding = resource.compressible
+                ? ResponseCompression.negotiate(evt.getHeader(HttpHeaders.Names.ACCEPT_ENCODING)) : null;
+        ByteBuf content = cache.content(resource, encoding);
+        if (content == null) {
+            // Evicted since we looked it up
+            reject();
+            return;
+        }
+        if (content == resource.identity) {
+            // Not compressed, or not smaller for it
+            encoding = null;
+        }
+        String etag = resource.etag(encoding);
+        if (resource.compressible) {
+            add(Headers.stringHeader(HttpHeaders.Names.VARY), HttpHeaders.Names.ACCEPT_ENCODING);
+        }
+        add(Headers.ETAG, etag);
+        add(Headers.LAST_MODIFIED, new DateTime(resource.lastModified));
+        add(Headers.stringHeader(HttpHeaders.Names.CACHE_CONTROL), resource.cacheControl);
+        String connection = ContentWriter.connectionHeader(keepAlive, evt);
+        if (connection != null) {
+            add(Headers.stringHeader(HttpHeaders.Names.CONNECTION), connection);
+        }
+        if (notModified(evt, resource, etag)) {
+            // No Content-Length:  on a 304 it would describe the
+            // representation, and zero is wrong
+            content.release();
+            reply(NOT_MODIFIED);
+            return;
+        }
+        add(Headers.CONTENT_TYPE, resource.contentType);
+        if (encoding != null) {
+            add(Headers.stringHeader(HttpHeaders.Names.CONTENT_ENCODING), encoding);
+        }
+        add(Headers.CONTENT_LENGTH, (long) content.readableBytes());
+        if (evt.getMethod() == HEAD) {
+            content.release();
+        } else {
+            response().setBodyWriter(new ContentWriter(content.duplicate(), keepAlive));
+        }
+        reply(OK);
+    }
+
+    private static boolean notModified(HttpEvent evt, ResourceCache.Resource resource, String etag) {
+        String etags = evt.getHeader(HttpHeaders.Names.IF_NONE_MATCH);
+        if (etags != null) {
+            return etags.contains(etag) || "*".equals(etags.trim());
+        }
+        DateTime since = evt.getHeader(Headers.IF_MODIFIED_SINCE);
+        return since != null && since.getMillis() >= resource.lastModified;
+    }
+}
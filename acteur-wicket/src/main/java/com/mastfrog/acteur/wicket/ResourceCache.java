@@ -0,0 +1,269 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.google.common.hash.Hashing;
+import com.google.common.net.MediaType;
+import com.google.inject.Singleton;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_RESOURCE_CACHE;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_RESOURCE_CACHE_BYTES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_RESOURCE_CACHE;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_RESOURCE_CACHE_BYTES;
+import com.mastfrog.acteur.wicket.adapters.ResponseAdapter;
+import com.mastfrog.acteur.wicket.adapters.ResponseCompression;
+import com.mastfrog.settings.Settings;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.util.IllegalReferenceCountException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.inject.Inject;
+
+/**
+ * Cache of versioned Wicket package resources, filled from the responses
+ * Wicket sends the first time each is requested, and served from by
+ * {@link ResourceActeur}.  Since a resource's URL changes with its
+ * content, entries never go stale;  the oldest are dropped when the cache
+ * is full.  Content is held in direct buffers, which are written to
+ * clients without copying.
+ * <p>
+ * Text resources - scripts, stylesheets and the like - are also kept
+ * gzipped and deflated, each encoding compressed the first time a client
+ * asks for it and counted against the same limit, so the work is done
+ * once per resource rather than once per response.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class ResourceCache {
+
+    static final String RESOURCE_PATH = "wicket/resource/";
+    private static final String VERSION_MARKER = "-ver-";
+    private final ConcurrentMap<String, Resource> resources = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<String> order = new ConcurrentLinkedQueue<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final boolean enabled;
+    private final long maxBytes;
+
+    @Inject
+    ResourceCache(Settings settings) {
+        enabled = settings.getBoolean(SETTINGS_KEY_RESOURCE_CACHE, DEFAULT_RESOURCE_CACHE);
+        maxBytes = settings.getLong(SETTINGS_KEY_RESOURCE_CACHE_BYTES, DEFAULT_RESOURCE_CACHE_BYTES);
+    }
+
+    /**
+     * Whether a response to a request for this URI could be cached.
+     */
+    boolean isCandidate(String uri) {
+        return enabled && uri.contains(RESOURCE_PATH) && uri.contains(VERSION_MARKER)
+                && !resources.containsKey(uri);
+    }
+
+    /**
+     * Get a cached resource.
+     *
+     * @return A resource or null
+     */
+    Resource get(String uri) {
+        return enabled ? resources.get(uri) : null;
+    }
+
+    /**
+     * Get the content of a resource in an encoding, compressing it if that
+     * has not been done yet, retained for the caller, who must release it.
+     *
+     * @param resource The resource
+     * @param encoding {@link ResponseCompression#GZIP},
+     * {@link ResponseCompression#DEFLATE} or null for the content as it
+     * is;  callers must check that the resource is compressible before
+     * asking for a compressed encoding
+     * @return A buffer, or null if the resource has been evicted
+     */
+    ByteBuf content(Resource resource, String encoding) {
+        ByteBuf result;
+        synchronized (resource) {
+            if (resource.evicted) {
+                return null;
+            }
+            if (ResponseCompression.GZIP.equals(encoding)) {
+                if (resource.gzip == null) {
+                    resource.gzip = compress(resource.identity, true);
+                }
+                result = resource.gzip;
+            } else if (ResponseCompression.DEFLATE.equals(encoding)) {
+                if (resource.deflate == null) {
+                    resource.deflate = compress(resource.identity, false);
+                }
+                result = resource.deflate;
+            } else {
+                result = resource.identity;
+            }
+            try {
+                result.retain();
+            } catch (IllegalReferenceCountException ex) {
+                return null;
+            }
+        }
+        if (result != resource.identity) {
+            trim(0);
+        }
+        return result;
+    }
+
+    private ByteBuf compress(ByteBuf identity, boolean gzip) {
+        int size = identity.readableBytes();
+        ByteBuf out = Unpooled.directBuffer(size / 3 + 64);
+        // GZIPOutputStream ends its own deflater when closed;  one passed to
+        // a DeflaterOutputStream holds native memory until we end it
+        Deflater deflater = gzip ? null : new Deflater(Deflater.BEST_COMPRESSION);
+        try (OutputStream stream = gzip
+                ? new GZIPOutputStream(new ByteBufOutputStream(out), 8192) {
+                    {
+                        def.setLevel(Deflater.BEST_COMPRESSION);
+                    }
+                }
+                : new DeflaterOutputStream(new ByteBufOutputStream(out), deflater, 8192)) {
+            identity.getBytes(identity.readerIndex(), stream, size);
+        } catch (IOException ex) {
+            // Cannot happen writing to a buffer
+            out.release();
+            return identity;
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        if (out.readableBytes() >= size) {
+            // Not worth it - clients asking for it get the original
+            out.release();
+            return identity;
+        }
+        bytes.addAndGet(out.readableBytes());
+        return out;
+    }
+
+    /**
+     * Cache the response Wicket produced for a resource, if it can be.
+     * Called before the response is finished.
+     */
+    void offer(String uri, ResponseAdapter response) {
+        if (!response.isPubliclyCacheable()) {
+            return;
+        }
+        ByteBuf content = response.copyBody();
+        if (content == null) {
+            return;
+        }
+        int size = content.readableBytes();
+        if (size > maxBytes / 8) {
+            content.release();
+            return;
+        }
+        byte[] hash = new byte[size];
+        content.getBytes(content.readerIndex(), hash);
+        String etag = Hashing.murmur3_128().hashBytes(hash).toString();
+        long lastModified = response.lastModified() < 0
+                ? System.currentTimeMillis() : response.lastModified();
+        Resource resource = new Resource(content, response.contentType(), response.cacheControl(),
+                etag, lastModified - lastModified % 1000);
+        if (resources.putIfAbsent(uri, resource) != null) {
+            content.release();
+            return;
+        }
+        order.add(uri);
+        trim(size);
+    }
+
+    private void trim(int added) {
+        for (long total = bytes.addAndGet(added); total > maxBytes; total = bytes.get()) {
+            String eldest = order.poll();
+            if (eldest == null) {
+                break;
+            }
+            Resource evicted = resources.remove(eldest);
+            if (evicted != null) {
+                bytes.addAndGet(-evicted.evict());
+            }
+        }
+    }
+
+    private static boolean isCompressible(MediaType type) {
+        String subtype = type.subtype();
+        return "text".equals(type.type()) || subtype.contains("javascript")
+                || subtype.contains("json") || subtype.contains("xml");
+    }
+
+    static final class Resource {
+
+        final ByteBuf identity;
+        final MediaType contentType;
+        final String cacheControl;
+        final boolean compressible;
+        final long lastModified;
+        private final String etag;
+        private ByteBuf gzip;
+        private ByteBuf deflate;
+        private boolean evicted;
+
+        Resource(ByteBuf identity, MediaType contentType, String cacheControl, String etag, long lastModified) {
+            this.identity = identity;
+            this.contentType = contentType;
+            this.cacheControl = cacheControl;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.compressible = isCompressible(contentType);
+        }
+
+        /**
+         * Get the entity tag for the content in an encoding - which must
+         * differ between encodings, since the bytes do.
+         */
+        String etag(String encoding) {
+            return encoding == null ? '"' + etag + '"' : '"' + etag + '-' + encoding + '"';
+        }
+
+        synchronized long evict() {
+            evicted = true;
+            long size = identity.readableBytes();
+            identity.release();
+            if (gzip != null && gzip != identity) {
+                size += gzip.readableBytes();
+                gzip.release();
+            }
+            if (deflate != null && deflate != identity) {
+                size += deflate.readableBytes();
+                deflate.release();
+            }
+            return size;
+        }
+    }
+}
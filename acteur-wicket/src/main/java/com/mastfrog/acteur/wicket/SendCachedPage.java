@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Method.HEAD;
+import com.mastfrog.acteur.wicket.adapters.ContentWriter;
+import com.mastfrog.acteur.wicket.adapters.ResponseCompression;
+import com.mastfrog.settings.Settings;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaders;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import javax.inject.Inject;
+
+/**
+ * Replies with the page output {@link PageCacheActeur} found in the cache,
+ * or - for a request deferred while another rendered the page - looks for
+ * it again.
+ *
+ * @author Tim Boudreau
+ */
+final class SendCachedPage extends Acteur {
+
+    @Inject
+    SendCachedPage(HttpEvent evt, PageCacheActeur.Lookup lookup, PageOutputCache cache, ResponseCompression compression, Settings settings) {
+        PageOutputCache.Hit hit = lookup.hit != null ? lookup.hit : cache.hit(lookup.key, lookup.encoding);
+        if (hit == null) {
+            // The output was not cacheable after all, or rendering it failed
+            // - render it here, without holding up anyone else
+            reject();
+            return;
+        }
+        ByteBuf content = hit.content;
+        boolean keepAlive = ContentWriter.isKeepAlive(settings, evt);
+        if (compression.accepts(hit.entry.contentType, hit.entry.identity.readableBytes())) {
+            add(Headers.stringHeader(HttpHeaders.Names.VARY), HttpHeaders.Names.ACCEPT_ENCODING);
+        }
+        if (hit.entry.cacheControl != null) {
+            add(Headers.stringHeader(HttpHeaders.Names.CACHE_CONTROL), hit.entry.cacheControl);
+        }
+        String connection = ContentWriter.connectionHeader(keepAlive, evt);
+        if (connection != null) {
+            add(Headers.stringHeader(HttpHeaders.Names.CONNECTION), connection);
+        }
+        add(Headers.CONTENT_TYPE, hit.entry.contentType);
+        if (hit.encoding != null) {
+            add(Headers.stringHeader(HttpHeaders.Names.CONTENT_ENCODING), hit.encoding);
+        }
+        add(Headers.CONTENT_LENGTH, (long) content.readableBytes());
+        if (evt.getMethod() == HEAD) {
+            content.release();
+        } else {
+            response().setBodyWriter(new ContentWriter(content.duplicate(), keepAlive));
+        }
+        reply(OK);
+    }
+}
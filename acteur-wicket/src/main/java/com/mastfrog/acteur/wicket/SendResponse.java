@@ -0,0 +1,68 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.headers.Headers;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.util.Exceptions;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import javax.inject.Inject;
+
+/**
+ * Replies with the response of the request cycle {@link WicketActeur}
+ * started, once it has been committed - which may be on another thread,
+ * after WicketActeur has returned.
+ *
+ * @author Tim Boudreau
+ */
+final class SendResponse extends Acteur {
+
+    @Inject
+    SendResponse(WicketActeur.Cycle cycle, CurrentSession session, Settings settings) {
+        if (cycle.overloaded) {
+            add(Headers.stringHeader(HttpHeaders.Names.RETRY_AFTER), "1");
+            reply(SERVICE_UNAVAILABLE);
+            return;
+        }
+        // Once streaming, the status is sent whatever happens afterwards
+        boolean streaming = cycle.response.isCommittedEarly();
+        if (!streaming && cycle.failure != null) {
+            Exceptions.chuck(cycle.failure);
+        }
+        if (!streaming && !cycle.processed) {
+            reject();
+            return;
+        }
+        cycle.response.applyTo(response());
+        if (session.isNew()) {
+            add(Headers.SET_COOKIE, session.cookie(settings));
+        }
+        HttpResponseStatus status = cycle.response.status();
+        reply(status == null ? OK : status);
+    }
+}
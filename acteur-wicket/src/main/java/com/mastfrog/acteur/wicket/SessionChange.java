@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Attributes of a session which were set or removed by a request, passed to
+ * a {@link SessionStorage};  or, when returned from
+ * {@link SessionStorage#load(String)}, all of a session's attributes.
+ *
+ * @author Tim Boudreau
+ */
+public final class SessionChange {
+
+    private final String id;
+    private final String userAgent;
+    private final long created;
+    private final long lastAccessed;
+    private final Map<String, Serializable> changed;
+    private final Set<String> removed;
+
+    public SessionChange(String id, String userAgent, long created, long lastAccessed, Map<String, Serializable> changed, Set<String> removed) {
+        this.id = id;
+        this.userAgent = userAgent;
+        this.created = created;
+        this.lastAccessed = lastAccessed;
+        this.changed = Collections.unmodifiableMap(changed);
+        this.removed = Collections.unmodifiableSet(removed);
+    }
+
+    /**
+     * The session id.
+     */
+    public String id() {
+        return id;
+    }
+
+    /**
+     * The user agent of the client which created the session, if known.
+     */
+    public String userAgent() {
+        return userAgent;
+    }
+
+    /**
+     * When the session was created, in milliseconds since the epoch.
+     */
+    public long created() {
+        return created;
+    }
+
+    /**
+     * When the session was last used, in milliseconds since the epoch.
+     */
+    public long lastAccessed() {
+        return lastAccessed;
+    }
+
+    /**
+     * Attributes which were set, by name.
+     */
+    public Map<String, Serializable> changed() {
+        return changed;
+    }
+
+    /**
+     * Names of attributes which were removed.
+     */
+    public Set<String> removed() {
+        return removed;
+    }
+
+    @Override
+    public String toString() {
+        return id + " changed " + changed.keySet() + " removed " + removed;
+    }
+}
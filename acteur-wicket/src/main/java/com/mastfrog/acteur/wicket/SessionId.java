@@ -23,23 +23,51 @@
  */
 package com.mastfrog.acteur.wicket;
 
-import com.mastfrog.util.GUIDFactory;
 import java.io.Serializable;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Arrays;
 
 /**
  * The ID of the current session, as set in the jsessionid cookie.  The
- * value of its toString() method returns the ID value.  The EnsureSessionId
- * acteur guarantees that the cookie is set and any object created with Guice
- * can have this value injected.
+ * value of its toString() method returns the ID value.  When the request
+ * carries the cookie, the EnsureSessionId acteur makes it available so any
+ * object created with Guice can have this value injected;  sessions are
+ * created lazily, so requests without one do not have it.
+ * <p>
+ * New ids, generated by {@link SessionIdGenerator}, are {@link #LENGTH}
+ * characters of the URL-safe base 64 alphabet, each field occupying whole
+ * characters:  the id of the node which created the session (2 characters,
+ * so 0 - 4095), the creation time in milliseconds (7), a per-thread counter
+ * (5), and 108 random bits (18).  So a
+ * proxy or peer can find the node which owns a session from the first two
+ * characters of the cookie, using {@link #ownerNode(CharSequence)} or a
+ * simple pattern match, without any shared lookup table.
  *
  * @author Tim Boudreau
  */
 class SessionId implements Serializable {
 
-    private static final AtomicLong ids = new AtomicLong(Long.MIN_VALUE);
+    /**
+     * The length of generated ids.
+     */
+    public static final int LENGTH = 32;
+    /**
+     * The number of leading characters which encode the owner node.
+     */
+    public static final int NODE_CHARS = 2;
+    /**
+     * The largest usable node id.
+     */
+    public static final int MAX_NODE_ID = (1 << (6 * NODE_CHARS)) - 1;
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        Arrays.fill(VALUES, (byte) -1);
+        char[] alphabet = SessionIdGenerator.ALPHABET;
+        for (int i = 0; i < alphabet.length; i++) {
+            VALUES[alphabet[i]] = (byte) i;
+        }
+    }
     private final String id;
-    private static final long LOAD_TIME = System.currentTimeMillis();
 
     /**
      * Create a session id with a known value
@@ -50,14 +78,35 @@ class SessionId implements Serializable {
     }
 
     /**
-     * Create a new session id
+     * The node which created this session.
+     *
+     * @return The node id, or -1 if this id was not generated by SessionIdGenerator
+     */
+    public int ownerNode() {
+        return ownerNode(id);
+    }
+
+    /**
+     * Find the node which created a session from its id, without parsing
+     * or allocating anything.
+     *
+     * @param id A session id, e.g. a cookie value
+     * @return The node id, or -1 if the id was not generated by SessionIdGenerator
      */
-    public SessionId() {
-        String rnd = GUIDFactory.get().newGUID(2, 5);
-        String inc = Long.toString(ids.getAndIncrement(), 36);
-        String dt = Long.toString(System.currentTimeMillis(), 36);
-        String lt = Long.toString(LOAD_TIME, 36);
-        this.id = rnd + ':' + inc + ':' + dt + ':' + lt;
+    public static int ownerNode(CharSequence id) {
+        if (id == null || id.length() != LENGTH) {
+            return -1;
+        }
+        int result = 0;
+        for (int i = 0; i < NODE_CHARS; i++) {
+            char c = id.charAt(i);
+            int value = c < VALUES.length ? VALUES[c] : -1;
+            if (value < 0) {
+                return -1;
+            }
+            result = (result << 6) | value;
+        }
+        return result;
     }
 
     public boolean equals(Object o) {
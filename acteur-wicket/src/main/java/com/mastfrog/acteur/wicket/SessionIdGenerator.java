@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.google.inject.Singleton;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_NODE_ID;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_NODE_ID;
+import com.mastfrog.settings.Settings;
+import java.security.SecureRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.inject.Inject;
+
+/**
+ * Generates new session ids in the format described in {@link SessionId}.
+ * Ids come from a small fixed pool of generators - a few per core - each
+ * with its own SecureRandom, which it draws random bytes from in bulk, its
+ * own counter and its own character buffer.  A thread uses the generator
+ * its id maps to, or the next free one if that is busy, so threads rarely
+ * contend, generating an id allocates nothing but the resulting string,
+ * and the pool stays the same size however many threads there are - a
+ * SecureRandom per thread would be seeded afresh for every short-lived or
+ * virtual thread.
+ * <p>
+ * Each generator's counter starts at a random value, so ids from different
+ * generators created in the same millisecond may share a counter value;
+ * uniqueness and unguessability both rest on the 108 random bits, as they
+ * did on the random part of the GUID before.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class SessionIdGenerator {
+
+    static final char[] ALPHABET
+            = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final int RANDOM_CHARS = 18;
+    private static final int IDS_PER_REFILL = 64;
+    private final char[] node = new char[SessionId.NODE_CHARS];
+    private final State[] stripes;
+    private final int mask;
+
+    @Inject
+    SessionIdGenerator(Settings settings) {
+        this(settings.getInt(SETTINGS_KEY_NODE_ID, DEFAULT_NODE_ID));
+    }
+
+    SessionIdGenerator(int nodeId) {
+        if (nodeId < 0 || nodeId > SessionId.MAX_NODE_ID) {
+            throw new IllegalArgumentException(SETTINGS_KEY_NODE_ID + " must be between 0 and "
+                    + SessionId.MAX_NODE_ID + " but was " + nodeId);
+        }
+        encode(nodeId, node, 0, node.length);
+        int count = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+        stripes = new State[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new State();
+        }
+        mask = count - 1;
+    }
+
+    /**
+     * Generate a new session id.
+     *
+     * @return A new id
+     */
+    String next() {
+        int home = (int) Thread.currentThread().getId();
+        for (int i = 0; i < stripes.length; i++) {
+            State state = stripes[(home + i) & mask];
+            if (state.lock.tryLock()) {
+                try {
+                    return state.next(node);
+                } finally {
+                    state.lock.unlock();
+                }
+            }
+        }
+        State state = stripes[home & mask];
+        state.lock.lock();
+        try {
+            return state.next(node);
+        } finally {
+            state.lock.unlock();
+        }
+    }
+
+    private static void encode(long value, char[] into, int offset, int count) {
+        for (int i = offset + count - 1; i >= offset; i--) {
+            into[i] = ALPHABET[(int) (value & 0x3F)];
+            value >>>= 6;
+        }
+    }
+
+    private static final class State {
+
+        final ReentrantLock lock = new ReentrantLock();
+        private final SecureRandom random = new SecureRandom();
+        private final byte[] bytes = new byte[RANDOM_CHARS * IDS_PER_REFILL];
+        private int position = bytes.length;
+        private final char[] chars = new char[SessionId.LENGTH];
+        private int counter = random.nextInt();
+
+        String next(char[] node) {
+            System.arraycopy(node, 0, chars, 0, node.length);
+            encode(System.currentTimeMillis(), chars, 2, 7);
+            encode(counter++, chars, 9, 5);
+            if (position == bytes.length) {
+                random.nextBytes(bytes);
+                position = 0;
+            }
+            // Six bits of each random byte - 108 bits per id
+            for (int i = SessionId.LENGTH - RANDOM_CHARS; i < SessionId.LENGTH; i++) {
+                chars[i] = ALPHABET[bytes[position++] & 0x3F];
+            }
+            return new String(chars);
+        }
+    }
+}
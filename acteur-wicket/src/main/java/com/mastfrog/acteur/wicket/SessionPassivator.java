@@ -0,0 +1,458 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.wicket.ActeurSessionStore.SessionImpl;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cold storage for idle sessions:  each session is serialized and appended to
+ * a memory-mapped local file, and located through an open-addressing index
+ * kept in a direct buffer, so a passivated session costs nothing on the heap
+ * but its share of the index.  The file is divided into fixed size segments;
+ * a segment is reused once every session written to it has been reactivated
+ * or expired.  Passivated sessions do not survive a restart - the file is
+ * deleted when the store is closed.
+ * <p>
+ * Each record is the length of the serialized session, the session id (so
+ * expired sessions can be reported without deserializing them) and the
+ * serialized session.
+ * <p>
+ * All methods are synchronized;  this is the slow path, used only for
+ * sessions which have not been touched in a while.
+ *
+ * @author Tim Boudreau
+ */
+final class SessionPassivator {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionPassivator.class);
+    private static final int SEGMENT_SIZE = 32 * 1024 * 1024;
+    // Index slots:  hash, location (segment << 32 | offset), last accessed,
+    // record length, state
+    private static final int SLOT_SIZE = 32;
+    private static final int HASH = 0;
+    private static final int LOCATION = 8;
+    private static final int LAST_ACCESSED = 16;
+    private static final int LENGTH = 24;
+    private static final int STATE = 28;
+    private static final int EMPTY = 0;
+    private static final int OCCUPIED = 1;
+    private static final int DELETED = 2;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private int[] liveRecords = new int[4];
+    private final ArrayDeque<Integer> freeSegments = new ArrayDeque<>();
+    private int currentSegment = -1;
+    private ByteBuffer index;
+    private int slots;
+    private int occupied;
+    private int used;
+
+    SessionPassivator(File dir) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        file = File.createTempFile("wicket-sessions-", ".passivated", dir);
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        allocateIndex(1024);
+    }
+
+    private void allocateIndex(int slots) {
+        this.slots = slots;
+        index = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+        used = 0;
+        occupied = 0;
+    }
+
+    /**
+     * Number of sessions currently passivated.
+     */
+    synchronized int size() {
+        return occupied;
+    }
+
+    /**
+     * Serialize a session into the file.
+     *
+     * @param sess The session
+     * @return false if the session could not be written, in which case it
+     * should be left live
+     */
+    synchronized boolean passivate(SessionImpl sess) {
+        byte[] bytes;
+        try {
+            bytes = serialize(sess);
+        } catch (IOException | RuntimeException ex) {
+            log.debug("Could not passivate session " + sess.id, ex);
+            return false;
+        }
+        byte[] id = sess.id.getBytes(StandardCharsets.UTF_8);
+        int length = 4 + 2 + id.length + bytes.length;
+        if (length > SEGMENT_SIZE || id.length > Short.MAX_VALUE) {
+            return false;
+        }
+        try {
+            MappedByteBuffer segment = writableSegment(length);
+            int offset = segment.position();
+            segment.putInt(bytes.length);
+            segment.putShort((short) id.length);
+            segment.put(id);
+            segment.put(bytes);
+            liveRecords[currentSegment]++;
+            int existing = find(sess.id);
+            if (existing >= 0) {
+                // Passivated again without an intervening activation
+                remove(existing, (int) (index.getLong(existing * SLOT_SIZE + LOCATION) >>> 32));
+            }
+            insert(hash(sess.id), ((long) currentSegment << 32) | offset, sess.lastAccessed, length);
+            return true;
+        } catch (IOException ex) {
+            log.warn("Could not write to " + file, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Remove a passivated session from the file and deserialize it.
+     *
+     * @param id The session id
+     * @return The session, or null if it was not passivated here or could
+     * not be read back
+     */
+    synchronized SessionImpl activate(String id) {
+        int slot = find(id);
+        if (slot < 0) {
+            return null;
+        }
+        int base = slot * SLOT_SIZE;
+        long location = index.getLong(base + LOCATION);
+        int segment = (int) (location >>> 32);
+        ByteBuffer buf = segments.get(segment).duplicate();
+        buf.position((int) location);
+        byte[] bytes = new byte[buf.getInt()];
+        buf.position(buf.position() + 2 + buf.getShort(buf.position()));
+        buf.get(bytes);
+        remove(slot, segment);
+        try {
+            return deserialize(bytes);
+        } catch (IOException | ClassNotFoundException | RuntimeException ex) {
+            log.warn("Could not reactivate session " + id, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Drop a passivated session without reading it.
+     *
+     * @param id The session id
+     * @return true if it was present
+     */
+    synchronized boolean discard(String id) {
+        int slot = find(id);
+        if (slot < 0) {
+            return false;
+        }
+        long location = index.getLong(slot * SLOT_SIZE + LOCATION);
+        remove(slot, (int) (location >>> 32));
+        return true;
+    }
+
+    /**
+     * Remove every passivated session last accessed before the passed time.
+     * Only index entries are examined to find them, but each one found is
+     * read back, so the caller can notify its attributes that it is gone;
+     * one which cannot be read is returned with no attributes.
+     *
+     * @param cutoff A time in milliseconds since the epoch
+     * @return The sessions removed
+     */
+    synchronized List<SessionImpl> expire(long cutoff) {
+        List<SessionImpl> result = new ArrayList<>();
+        for (int slot = 0; slot < slots; slot++) {
+            int base = slot * SLOT_SIZE;
+            if (index.getInt(base + STATE) == OCCUPIED && index.getLong(base + LAST_ACCESSED) < cutoff) {
+                long location = index.getLong(base + LOCATION);
+                int segment = (int) (location >>> 32);
+                ByteBuffer buf = segments.get(segment).duplicate();
+                buf.position((int) location);
+                byte[] bytes = new byte[buf.getInt()];
+                byte[] id = new byte[buf.getShort()];
+                buf.get(id);
+                buf.get(bytes);
+                remove(slot, segment);
+                String sessionId = new String(id, StandardCharsets.UTF_8);
+                try {
+                    result.add(deserialize(bytes));
+                } catch (IOException | ClassNotFoundException | RuntimeException ex) {
+                    log.debug("Could not read back expired session " + sessionId, ex);
+                    result.add(new SessionImpl(sessionId, null, 0, 0));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copy every passivated session into a snapshot, without deserializing
+     * them.
+     */
+    synchronized void writeTo(SessionSnapshot.Writer writer) throws IOException {
+        for (int slot = 0; slot < slots; slot++) {
+            int base = slot * SLOT_SIZE;
+            if (index.getInt(base + STATE) == OCCUPIED) {
+                long location = index.getLong(base + LOCATION);
+                ByteBuffer buf = segments.get((int) (location >>> 32)).duplicate();
+                buf.position((int) location);
+                byte[] bytes = new byte[buf.getInt()];
+                byte[] id = new byte[buf.getShort()];
+                buf.get(id);
+                buf.get(bytes);
+                writer.write(new String(id, StandardCharsets.UTF_8), index.getLong(base + LAST_ACCESSED), bytes);
+            }
+        }
+    }
+
+    synchronized void close() {
+        try {
+            channel.close();
+            raf.close();
+        } catch (IOException ex) {
+            log.debug("Closing " + file, ex);
+        } finally {
+            segments.clear();
+            allocateIndex(1);
+            if (!file.delete()) {
+                log.debug("Could not delete {}", file);
+            }
+        }
+    }
+
+    private MappedByteBuffer writableSegment(int length) throws IOException {
+        if (currentSegment >= 0) {
+            MappedByteBuffer seg = segments.get(currentSegment);
+            if (seg.remaining() >= length) {
+                return seg;
+            }
+            if (liveRecords[currentSegment] == 0) {
+                seg.clear();
+                return seg;
+            }
+        }
+        Integer free = freeSegments.poll();
+        if (free != null) {
+            currentSegment = free;
+            MappedByteBuffer seg = segments.get(currentSegment);
+            seg.clear();
+            return seg;
+        }
+        currentSegment = segments.size();
+        if (currentSegment == liveRecords.length) {
+            liveRecords = Arrays.copyOf(liveRecords, liveRecords.length * 2);
+        }
+        MappedByteBuffer seg = channel.map(FileChannel.MapMode.READ_WRITE,
+                (long) currentSegment * SEGMENT_SIZE, SEGMENT_SIZE);
+        segments.add(seg);
+        return seg;
+    }
+
+    private void remove(int slot, int segment) {
+        index.putInt(slot * SLOT_SIZE + STATE, DELETED);
+        occupied--;
+        if (--liveRecords[segment] == 0 && segment != currentSegment) {
+            freeSegments.offer(segment);
+        }
+    }
+
+    /**
+     * Find the slot of a session, comparing the id stored in its record, so
+     * a session whose id hashes the same as another's is never mistaken for
+     * it.
+     */
+    private int find(String id) {
+        long hash = hash(id);
+        byte[] idBytes = null;
+        int mask = slots - 1;
+        for (int i = 0, slot = (int) hash & mask; i < slots; i++, slot = (slot + 1) & mask) {
+            int base = slot * SLOT_SIZE;
+            int state = index.getInt(base + STATE);
+            if (state == EMPTY) {
+                return -1;
+            }
+            if (state == OCCUPIED && index.getLong(base + HASH) == hash) {
+                if (idBytes == null) {
+                    idBytes = id.getBytes(StandardCharsets.UTF_8);
+                }
+                if (recordHasId(index.getLong(base + LOCATION), idBytes)) {
+                    return slot;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private boolean recordHasId(long location, byte[] id) {
+        ByteBuffer buf = segments.get((int) (location >>> 32)).duplicate();
+        buf.position((int) location + 4);
+        if (buf.getShort() != id.length) {
+            return false;
+        }
+        for (byte b : id) {
+            if (buf.get() != b) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insert(long hash, long location, long lastAccessed, int length) {
+        if ((used + 1) * 2 > slots) {
+            rehash(occupied * 4 > slots ? slots * 2 : slots);
+        }
+        int mask = slots - 1;
+        int slot = (int) hash & mask;
+        while (index.getInt(slot * SLOT_SIZE + STATE) == OCCUPIED) {
+            slot = (slot + 1) & mask;
+        }
+        int base = slot * SLOT_SIZE;
+        if (index.getInt(base + STATE) == EMPTY) {
+            used++;
+        }
+        index.putLong(base + HASH, hash);
+        index.putLong(base + LOCATION, location);
+        index.putLong(base + LAST_ACCESSED, lastAccessed);
+        index.putInt(base + LENGTH, length);
+        index.putInt(base + STATE, OCCUPIED);
+        occupied++;
+    }
+
+    private void rehash(int newSlots) {
+        ByteBuffer old = index;
+        int oldSlots = slots;
+        allocateIndex(newSlots);
+        for (int slot = 0; slot < oldSlots; slot++) {
+            int base = slot * SLOT_SIZE;
+            if (old.getInt(base + STATE) == OCCUPIED) {
+                insert(old.getLong(base + HASH), old.getLong(base + LOCATION),
+                        old.getLong(base + LAST_ACCESSED), old.getInt(base + LENGTH));
+            }
+        }
+    }
+
+    static long hash(String id) {
+        // 64-bit FNV-1a - ids are random enough that collisions are rare,
+        // and find() compares the id in the record anyway
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            h ^= id.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    static byte[] serialize(SessionImpl sess) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            writeSession(sess, out);
+        }
+        return bytes.toByteArray();
+    }
+
+    static SessionImpl deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new SessionObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return readSession(in);
+        }
+    }
+
+    static void writeSession(SessionImpl sess, ObjectOutput out) throws IOException {
+        out.writeUTF(sess.id);
+        out.writeObject(sess.ua);
+        out.writeLong(sess.created);
+        out.writeLong(sess.lastAccessed);
+        Map<String, Serializable> attributes = sess.attributes;
+        out.writeInt(attributes.size());
+        for (Map.Entry<String, Serializable> e : attributes.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeObject(e.getValue());
+        }
+    }
+
+    static SessionImpl readSession(ObjectInput in) throws IOException, ClassNotFoundException {
+        SessionImpl result = new SessionImpl(in.readUTF(), (String) in.readObject(), in.readLong(), in.readLong());
+        for (int i = 0, count = in.readInt(); i < count; i++) {
+            result.attributes.put(in.readUTF(), (Serializable) in.readObject());
+        }
+        return result;
+    }
+
+    /**
+     * Resolves classes against the context class loader, so application
+     * classes are found regardless of which loader loaded this library.
+     */
+    static final class SessionObjectInputStream extends ObjectInputStream {
+
+        SessionObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            ClassLoader ldr = Thread.currentThread().getContextClassLoader();
+            if (ldr != null) {
+                try {
+                    return Class.forName(desc.getName(), false, ldr);
+                } catch (ClassNotFoundException ex) {
+                    // fall through
+                }
+            }
+            return super.resolveClass(desc);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.wicket.ActeurSessionStore.SessionImpl;
+import com.mastfrog.acteur.wicket.ActeurSessionStore.ShardStatistics;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Session storage split into shards by session id hash, each with its own
+ * lock, its own CLOCK eviction queue and its own statistics, so lookups for
+ * different sessions rarely contend.
+ *
+ * @author Tim Boudreau
+ */
+final class SessionShards {
+
+    private final Shard[] shards;
+    private final int mask;
+
+    /**
+     * Create a set of shards.
+     *
+     * @param shardCount The number of shards, rounded up to a power of two
+     * @param maxSessions The maximum number of sessions across all shards,
+     * or zero or less for no limit
+     */
+    SessionShards(int shardCount, int maxSessions) {
+        int count = Integer.highestOneBit(Math.max(1, shardCount - 1)) << 1;
+        if (shardCount <= 1) {
+            count = 1;
+        }
+        shards = new Shard[count];
+        mask = count - 1;
+        int perShard = maxSessions <= 0 ? 0 : Math.max(1, (maxSessions + count - 1) / count);
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(perShard);
+        }
+    }
+
+    private Shard shard(String id) {
+        int h = id.hashCode();
+        return shards[(h ^ (h >>> 16)) & mask];
+    }
+
+    SessionImpl get(String id) {
+        return shard(id).get(id);
+    }
+
+    /**
+     * Get a session without counting a hit or miss.
+     */
+    SessionImpl peek(String id) {
+        return shard(id).peek(id);
+    }
+
+    /**
+     * Add a session.
+     *
+     * @param sess The session
+     * @return Any sessions evicted to make room, which have already been
+     * removed and need their listeners notified
+     */
+    List<SessionImpl> put(SessionImpl sess) {
+        return shard(sess.id).put(sess);
+    }
+
+    boolean remove(SessionImpl sess) {
+        return shard(sess.id).remove(sess);
+    }
+
+    List<SessionImpl> values() {
+        List<SessionImpl> result = new ArrayList<>();
+        for (Shard shard : shards) {
+            shard.copyValuesInto(result);
+        }
+        return result;
+    }
+
+    void clear() {
+        for (Shard shard : shards) {
+            shard.clear();
+        }
+    }
+
+    void countExpiry(String id) {
+        shard(id).countExpiry();
+    }
+
+    /**
+     * The number of entries in the eviction queues, live or not.
+     */
+    int queued() {
+        int result = 0;
+        for (Shard shard : shards) {
+            result += shard.queued();
+        }
+        return result;
+    }
+
+    /**
+     * Compute statistics for each shard.  Estimating the bytes held means
+     * serializing the attributes of every session, so this is not cheap and
+     * is not done under any lock.
+     *
+     * @return A list of statistics, one per shard
+     */
+    List<ShardStatistics> statistics() {
+        List<ShardStatistics> result = new ArrayList<>(shards.length);
+        List<SessionImpl> sessions = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            sessions.clear();
+            ShardStatistics stats = shards[i].statistics(i, sessions);
+            long bytes = 0;
+            for (SessionImpl sess : sessions) {
+                bytes += estimateSize(sess);
+            }
+            result.add(stats.withEstimatedBytes(bytes));
+        }
+        return result;
+    }
+
+    static long estimateSize(SessionImpl sess) {
+        CountingOutputStream counter = new CountingOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(counter)) {
+            for (Map.Entry<String, Serializable> e : sess.attributes.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeObject(e.getValue());
+            }
+        } catch (IOException | RuntimeException ex) {
+            // Not serializable - count what we got
+        }
+        return counter.count;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    private static final class Shard {
+
+        private final Map<String, SessionImpl> sessions = new HashMap<>();
+        private final ArrayDeque<SessionImpl> clock = new ArrayDeque<>();
+        private final int max;
+        /**
+         * Entries in the clock whose session has been removed or replaced.
+         */
+        private int dead;
+        private long hits;
+        private long misses;
+        private long evictions;
+        private long expirations;
+
+        Shard(int max) {
+            this.max = max;
+        }
+
+        synchronized SessionImpl get(String id) {
+            SessionImpl result = sessions.get(id);
+            if (result == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+            return result;
+        }
+
+        synchronized SessionImpl peek(String id) {
+            return sessions.get(id);
+        }
+
+        synchronized List<SessionImpl> put(SessionImpl sess) {
+            SessionImpl old = sessions.put(sess.id, sess);
+            if (old == sess) {
+                // Already here, and queued
+                return Collections.emptyList();
+            }
+            if (max <= 0) {
+                return old == null ? Collections.<SessionImpl>emptyList() : Collections.singletonList(old);
+            }
+            if (old != null) {
+                died();
+            }
+            clock.offer(sess);
+            List<SessionImpl> evicted = old == null ? new ArrayList<SessionImpl>(1) : new ArrayList<>(Collections.singletonList(old));
+            // Each session gets a second chance if it has been used since
+            // the hand last passed it;  sessions removed by other means are
+            // dropped from the queue as the hand reaches them, or swept
+            for (int i = 0, limit = 2 * clock.size() + 1; sessions.size() > max && i < limit; i++) {
+                SessionImpl candidate = clock.poll();
+                if (candidate == null) {
+                    break;
+                }
+                if (sessions.get(candidate.id) != candidate) {
+                    dead--;
+                    continue;
+                }
+                if (candidate.referenced) {
+                    candidate.referenced = false;
+                    clock.offer(candidate);
+                } else {
+                    sessions.remove(candidate.id);
+                    evictions++;
+                    evicted.add(candidate);
+                }
+            }
+            return evicted;
+        }
+
+        /**
+         * Note that a queued session was removed or replaced, and once
+         * enough of the queue is dead, drop all such entries - the hand only
+         * drops them as it reaches them, which it may not for a long time
+         * while nothing needs evicting.
+         */
+        private void died() {
+            if (++dead > 16 && dead > sessions.size() / 4) {
+                sweep();
+            }
+        }
+
+        private void sweep() {
+            for (Iterator<SessionImpl> it = clock.iterator(); it.hasNext();) {
+                SessionImpl sess = it.next();
+                if (sessions.get(sess.id) != sess) {
+                    it.remove();
+                }
+            }
+            dead = 0;
+        }
+
+        synchronized boolean remove(SessionImpl sess) {
+            if (sessions.get(sess.id) == sess) {
+                sessions.remove(sess.id);
+                if (max > 0) {
+                    died();
+                }
+                return true;
+            }
+            return false;
+        }
+
+        synchronized int queued() {
+            return clock.size();
+        }
+
+        synchronized void countExpiry() {
+            expirations++;
+        }
+
+        synchronized void copyValuesInto(List<SessionImpl> into) {
+            into.addAll(sessions.values());
+        }
+
+        synchronized void clear() {
+            sessions.clear();
+            clock.clear();
+            dead = 0;
+        }
+
+        synchronized ShardStatistics statistics(int index, List<SessionImpl> into) {
+            into.addAll(sessions.values());
+            return new ShardStatistics(index, sessions.size(), hits, misses, evictions, expirations, 0);
+        }
+    }
+}
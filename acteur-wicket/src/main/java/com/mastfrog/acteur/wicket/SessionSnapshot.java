@@ -0,0 +1,272 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.wicket.ActeurSessionStore.SessionImpl;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A file of serialized sessions written when the server shuts down, and read
+ * back lazily when it starts:  on startup only the record headers are
+ * scanned, and each session is deserialized the first time a request for it
+ * arrives.
+ * <p>
+ * The format is a magic number followed by records, each consisting of the
+ * time the session was last accessed, the length and UTF-8 bytes of the
+ * session id, and the length and bytes of the serialized session, ending
+ * with a record whose id length is -1.  Records use the same serialized form
+ * as {@link SessionPassivator}, so passivated sessions are copied across
+ * without being deserialized.
+ * <p>
+ * The file contains serialized Java objects which are deserialized on
+ * startup, so it must be somewhere only the server can write to.
+ *
+ * @author Tim Boudreau
+ */
+final class SessionSnapshot {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionSnapshot.class);
+    private static final int MAGIC = 0x57535331; // WSS1
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+    private final Map<String, Integer> offsets;
+
+    private SessionSnapshot(File file, RandomAccessFile raf, MappedByteBuffer buffer, Map<String, Integer> offsets) {
+        this.file = file;
+        this.raf = raf;
+        this.buffer = buffer;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Open a snapshot file, if one exists, and index the sessions in it
+     * which have not been idle longer than the cutoff.  The file is renamed
+     * first, so it is restored at most once, and a new snapshot can be
+     * written in its place.
+     *
+     * @param file The file
+     * @param cutoff Sessions last accessed before this time are skipped
+     * @return A snapshot, or null if there is no usable file
+     */
+    static SessionSnapshot open(File file, long cutoff) {
+        if (!file.exists()) {
+            return null;
+        }
+        File original = file;
+        file = new File(original.getPath() + ".restoring");
+        if (!original.renameTo(file)) {
+            log.warn("Could not rename {} to {}", original, file);
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            if (raf.length() > Integer.MAX_VALUE) {
+                log.warn("Session snapshot {} is too large to restore", file);
+                raf.close();
+                return null;
+            }
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buf.remaining() < 4 || buf.getInt() != MAGIC) {
+                log.warn("{} is not a session snapshot", file);
+                raf.close();
+                return null;
+            }
+            Map<String, Integer> offsets = new HashMap<>();
+            while (buf.remaining() >= 10) {
+                int offset = buf.position();
+                long lastAccessed = buf.getLong();
+                short idLength = buf.getShort();
+                if (idLength < 0) {
+                    break;
+                }
+                byte[] id = new byte[idLength];
+                buf.get(id);
+                int length = buf.getInt();
+                buf.position(buf.position() + length);
+                if (lastAccessed >= cutoff) {
+                    offsets.put(new String(id, StandardCharsets.UTF_8), offset);
+                }
+            }
+            log.info("{} sessions available to restore from {}", offsets.size(), file);
+            return new SessionSnapshot(file, raf, buf, offsets);
+        } catch (IOException | RuntimeException ex) {
+            log.warn("Could not read session snapshot " + file, ex);
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ex1) {
+                    log.debug("Closing " + file, ex1);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Remove a session from the snapshot and deserialize it.
+     *
+     * @param id The session id
+     * @return The session, or null if it is not in the snapshot or could not
+     * be read
+     */
+    synchronized SessionImpl restore(String id) {
+        Integer offset = offsets.remove(id);
+        if (offset == null) {
+            return null;
+        }
+        ByteBuffer buf = record(offset);
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        try {
+            return SessionPassivator.deserialize(bytes);
+        } catch (IOException | ClassNotFoundException | RuntimeException ex) {
+            log.warn("Could not restore session " + id, ex);
+            return null;
+        }
+    }
+
+    private ByteBuffer record(int offset) {
+        ByteBuffer buf = buffer.duplicate();
+        buf.position(offset + 8);
+        buf.position(buf.position() + 2 + buf.getShort(buf.position()));
+        return buf;
+    }
+
+    /**
+     * Copy the sessions which have not been restored into a new snapshot.
+     */
+    synchronized void writeTo(Writer writer) throws IOException {
+        for (Map.Entry<String, Integer> e : offsets.entrySet()) {
+            long lastAccessed = buffer.getLong(e.getValue());
+            ByteBuffer buf = record(e.getValue());
+            byte[] bytes = new byte[buf.getInt()];
+            buf.get(bytes);
+            writer.write(e.getKey(), lastAccessed, bytes);
+        }
+    }
+
+    /**
+     * Discard the snapshot and delete the file.
+     *
+     * @return The ids of sessions in it which were never restored
+     */
+    synchronized List<String> close() {
+        List<String> result = new ArrayList<>(offsets.keySet());
+        offsets.clear();
+        try {
+            raf.close();
+        } catch (IOException ex) {
+            log.debug("Closing " + file, ex);
+        }
+        if (!file.delete()) {
+            log.debug("Could not delete {}", file);
+        }
+        return result;
+    }
+
+    /**
+     * Writes a new snapshot to a temporary file, which replaces the target
+     * file when committed, so a failure while writing does not leave a
+     * truncated snapshot behind.
+     */
+    static final class Writer implements Closeable {
+
+        private final File target;
+        private final File temp;
+        private final DataOutputStream out;
+        private int count;
+        private boolean committed;
+
+        Writer(File target) throws IOException {
+            this.target = target;
+            File dir = target.getAbsoluteFile().getParentFile();
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Could not create " + dir);
+            }
+            temp = new File(dir, target.getName() + ".tmp");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+            out.writeInt(MAGIC);
+        }
+
+        void write(SessionImpl sess) throws IOException {
+            byte[] bytes;
+            try {
+                bytes = SessionPassivator.serialize(sess);
+            } catch (IOException | RuntimeException ex) {
+                log.debug("Could not snapshot session " + sess.id, ex);
+                return;
+            }
+            write(sess.id, sess.lastAccessed, bytes);
+        }
+
+        void write(String id, long lastAccessed, byte[] bytes) throws IOException {
+            byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+            out.writeLong(lastAccessed);
+            out.writeShort(idBytes.length);
+            out.write(idBytes);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            count++;
+        }
+
+        void commit() throws IOException {
+            out.writeLong(0);
+            out.writeShort(-1);
+            out.close();
+            if (!temp.renameTo(target)) {
+                throw new IOException("Could not rename " + temp + " to " + target);
+            }
+            committed = true;
+            log.info("Wrote {} sessions to {}", count, target);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                out.close();
+                if (!temp.delete()) {
+                    log.debug("Could not delete {}", temp);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+/**
+ * Extension point for keeping sessions somewhere besides the heap of the JVM
+ * serving them - for example, replicated to other nodes so any node can
+ * serve any user.  {@link ActeurSessionStore} keeps live sessions in memory
+ * as always;  an implementation is told about every change made to a
+ * session by a request on this node, asked for any session this node does
+ * not have in memory, and can tell the store when a copy it holds has been
+ * changed or removed elsewhere.
+ * <p>
+ * The implementation is chosen with the setting
+ * {@link WicketActeurModule#SETTINGS_KEY_SESSION_STORAGE}, and is created
+ * by Guice.  The default keeps nothing outside the heap.
+ *
+ * @author Tim Boudreau
+ */
+public interface SessionStorage {
+
+    /**
+     * Called once, when the session store is created, with the callback
+     * the implementation uses to report changes made elsewhere.
+     *
+     * @param listener The listener
+     */
+    void attach(Listener listener);
+
+    /**
+     * A request on this node used a session, and perhaps changed some of its
+     * attributes.  Called on the request thread as the request cycle
+     * completes, with values that are still live objects - an implementation
+     * which needs them in serialized form must serialize them before
+     * returning, and must not otherwise block.  A change which sets and
+     * removes nothing only updates the time the session was last used.
+     *
+     * @param change The attributes set and removed
+     */
+    void changed(SessionChange change);
+
+    /**
+     * A session was invalidated on this node.
+     *
+     * @param sessionId The session id
+     */
+    void removed(String sessionId);
+
+    /**
+     * Find a session this node does not hold in memory.
+     *
+     * @param sessionId The session id
+     * @return The complete state of the session, or null
+     */
+    SessionChange load(String sessionId);
+
+    /**
+     * Called when the session store is destroyed.
+     */
+    void close();
+
+    /**
+     * Callback to the session store.
+     */
+    interface Listener {
+
+        /**
+         * The session was changed on another node, so any copy of it held in
+         * memory here is out of date and should be dropped, to be loaded
+         * again when next requested.
+         *
+         * @param sessionId The session id
+         */
+        void stale(String sessionId);
+
+        /**
+         * The session was invalidated on another node.
+         *
+         * @param sessionId The session id
+         */
+        void removed(String sessionId);
+    }
+}
@@ -24,7 +24,9 @@
 package com.mastfrog.acteur.wicket;
 
 import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.Deferral;
 import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.annotations.Concluders;
 import com.mastfrog.acteur.annotations.HttpCall;
 import com.mastfrog.acteur.annotations.Precursors;
 import static com.mastfrog.acteur.headers.Method.DELETE;
@@ -35,47 +37,222 @@ import static com.mastfrog.acteur.headers.Method.PUT;
 import com.mastfrog.acteur.preconditions.Methods;
 import com.mastfrog.acteur.server.PathFactory;
 import com.mastfrog.acteur.wicket.adapters.RequestAdapter;
+import com.mastfrog.acteur.wicket.adapters.RequestCookies;
 import com.mastfrog.acteur.wicket.adapters.ResponseAdapter;
+import com.mastfrog.acteur.wicket.adapters.ResponseCompression;
 import com.mastfrog.guicy.scope.ReentrantScope;
 import com.mastfrog.settings.Settings;
+import com.mastfrog.util.Exceptions;
 import com.mastfrog.util.thread.QuietAutoCloseable;
 import io.netty.buffer.ByteBufAllocator;
-import io.netty.handler.codec.http.HttpResponseStatus;
-import static io.netty.handler.codec.http.HttpResponseStatus.OK;
 import java.nio.charset.Charset;
 import javax.inject.Inject;
 import org.apache.wicket.Application;
+import org.apache.wicket.Session;
 import org.apache.wicket.ThreadContext;
+import org.apache.wicket.core.request.handler.IPageRequestHandler;
+import org.apache.wicket.request.IRequestHandler;
 import org.apache.wicket.request.Request;
 import org.apache.wicket.request.Response;
 import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.session.ISessionStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
+ * Runs the Wicket request cycle for a request.  Depending on configuration
+ * this happens on the calling thread, or on the WicketExecutor - always so if
+ * the response may be committed while the page is still rendering.  In that
+ * case the chain is deferred, and {@link SendResponse} replies as soon as the
+ * headers are final, so no Acteur thread waits for a slow page.  Resource and
+ * Ajax requests are always run inline, so they do not queue up behind slow
+ * pages.
  *
  * @author Tim Boudreau
  */
-@HttpCall(order = Integer.MAX_VALUE, scopeTypes = {SessionId.class, Request.class, Response.class, com.mastfrog.acteur.Response.class})
+@HttpCall(order = Integer.MAX_VALUE, scopeTypes = {SessionId.class, CurrentSession.class, RequestCookies.class, Request.class, Response.class, com.mastfrog.acteur.Response.class, WicketActeur.Cycle.class})
 @Methods({GET, PUT, POST, DELETE, HEAD})
-@Precursors(EnsureSessionId.class)
+@Precursors({EnsureSessionId.class, AdmissionControl.class})
+@Concluders(SendResponse.class)
 final class WicketActeur extends Acteur {
 
+    private static final Logger log = LoggerFactory.getLogger(WicketActeur.class);
+
     @Inject
-    WicketActeur(HttpEvent evt, Application application, PathFactory pf, Charset charset, WicketConfig config, ByteBufAllocator alloc, Settings settings, ReentrantScope scope) {
-        RequestAdapter request = new RequestAdapter(evt, config.locale(), charset, settings);
-        ResponseAdapter response = new ResponseAdapter(response(), charset, alloc, pf);
-        try (QuietAutoCloseable closeScope = scope.enter(request, response, response())) {
-            ThreadContext.setApplication(application);
-            RequestCycle requestCycle = application.createRequestCycle(request, response);
-            ThreadContext.setRequestCycle(requestCycle);
-            boolean processed = requestCycle.processRequestAndDetach();
-            if (!processed) {
-                reject();
-            } else {
-                HttpResponseStatus status = response.status();
-                reply(status == null ? OK : status);
+    WicketActeur(HttpEvent evt, Application application, PathFactory pf, Charset charset, WicketConfig config, ByteBufAllocator alloc, Settings settings, ReentrantScope scope, WicketExecutor executor, CurrentSession session, RequestCookies cookies, ResourceCache resources, ResponseCompression compression, PageOutputCache pages, Deferral deferral) {
+        // Non-null if PageCacheActeur passed this request on to be rendered
+        String pageKey = pages.key(evt, cookies);
+        Cycle cycle = null;
+        try {
+            RequestAdapter request = new RequestAdapter(evt, config.locale(), charset, settings, cookies);
+            ResponseAdapter response = new ResponseAdapter(response(), charset, alloc, pf, evt, settings, compression);
+            boolean inline = isResourceOrAjaxRequest(evt);
+            if (inline) {
+                response.disableStreaming();
+            }
+            try (QuietAutoCloseable closeScope = scope.enter(request, response, response())) {
+                String uri = evt.getRequest().getUri();
+                cycle = new Cycle(evt, application, request, response,
+                        evt.getMethod() == GET && resources.isCandidate(uri) ? resources : null, uri,
+                        pageKey == null ? null : pages, pageKey, session);
+                if (response.isStreaming()) {
+                    response.beforeCommit(cycle.beforeCommit());
+                }
+                if (response.isStreaming() || (!executor.isInline() && !inline)) {
+                    // SendResponse replies when the cycle commits the response;
+                    // until then this thread is free to handle other requests
+                    final Deferral.Resumer resumer = deferral.defer();
+                    response.onCommit(new Runnable() {
+                        @Override
+                        public void run() {
+                            resumer.resume();
+                        }
+                    });
+                    if (!executor.tryExecute(scope.wrap(cycle))) {
+                        cycle.overloaded = true;
+                        cycle.abandoned();
+                        response.discard();
+                    }
+                } else {
+                    cycle.run();
+                    if (cycle.failure != null) {
+                        Exceptions.chuck(cycle.failure);
+                    }
+                    if (!cycle.processed) {
+                        reject();
+                        return;
+                    }
+                }
+                setState(new ConsumedLockedState(cycle));
             }
         } finally {
-            ThreadContext.detach();
+            if (cycle == null && pageKey != null) {
+                // Failed before there was a cycle to hand the page back
+                pages.release(pageKey, evt);
+            }
+        }
+    }
+
+    static boolean isResourceOrAjaxRequest(HttpEvent evt) {
+        return evt.getRequest().headers().contains(AJAX_HEADER)
+                || evt.getRequest().getUri().contains(ResourceCache.RESOURCE_PATH);
+    }
+
+    private static final String AJAX_HEADER = "Wicket-Ajax";
+
+    static final class Cycle implements Runnable {
+
+        private final HttpEvent evt;
+        private final Application application;
+        private final RequestAdapter request;
+        final ResponseAdapter response;
+        private final ResourceCache resources;
+        private final String uri;
+        private final PageOutputCache pages;
+        private final String pageKey;
+        private final CurrentSession session;
+        private boolean issuedAtCommit;
+        volatile boolean processed;
+        volatile Throwable failure;
+        volatile boolean overloaded;
+
+        Cycle(HttpEvent evt, Application application, RequestAdapter request, ResponseAdapter response, ResourceCache resources, String uri, PageOutputCache pages, String pageKey, CurrentSession session) {
+            this.evt = evt;
+            this.application = application;
+            this.request = request;
+            this.response = response;
+            this.resources = resources;
+            this.uri = uri;
+            this.pages = pages;
+            this.pageKey = pageKey;
+            this.session = session;
+        }
+
+        /**
+         * Before a response is committed early, bind the session if the page
+         * being rendered is stateful - Wicket would bind it later anyway,
+         * and once headers are sent its id could no longer reach the client.
+         */
+        Runnable beforeCommit() {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    IRequestHandler handler = RequestCycle.get().getActiveRequestHandler();
+                    if (handler instanceof IPageRequestHandler) {
+                        IPageRequestHandler pageHandler = (IPageRequestHandler) handler;
+                        if (pageHandler.isPageInstanceCreated() && !pageHandler.getPage().isPageStateless()) {
+                            Session.get().bind();
+                        }
+                    }
+                    issuedAtCommit = session.isNew();
+                }
+            };
+        }
+
+        /**
+         * Called if the cycle will never run, so requests waiting on its
+         * output from the page cache need not wait for nothing.
+         */
+        void abandoned() {
+            if (pages != null) {
+                pages.release(pageKey, evt);
+            }
+        }
+
+        @Override
+        public void run() {
+            PageOutputCache.Rendered rendered = null;
+            boolean finished = false;
+            try {
+                ThreadContext.setApplication(application);
+                RequestCycle requestCycle = application.createRequestCycle(request, response);
+                ThreadContext.setRequestCycle(requestCycle);
+                boolean result;
+                try {
+                    result = requestCycle.processRequest();
+                    rendered = requestCycle.getMetaData(PageOutputCache.RENDERED);
+                } finally {
+                    try {
+                        requestCycle.detach();
+                    } finally {
+                        // After detach, when Wicket has written back anything
+                        // the request changed in the session
+                        ISessionStore store = application.getSessionStore();
+                        if (store instanceof ActeurSessionStore) {
+                            ((ActeurSessionStore) store).requestCompleted();
+                        }
+                    }
+                }
+                processed = result;
+                if (response.isCommittedEarly() && session.isNew() && !issuedAtCommit) {
+                    log.warn("Session {} bound after the response to {} was committed - "
+                            + "the client was not sent its cookie", session.id(), uri);
+                }
+                if (result) {
+                    if (rendered != null) {
+                        response.statelessPage();
+                    }
+                    if (resources != null) {
+                        // Serve it from the cache from now on
+                        resources.offer(uri, response);
+                    }
+                    if (pages != null) {
+                        pages.completed(pageKey, evt, rendered, response, session.isNew());
+                        finished = true;
+                    }
+                    response.finish();
+                } else {
+                    response.discard();
+                }
+            } catch (Throwable t) {
+                failure = t;
+                response.discard();
+            } finally {
+                if (pages != null && !finished) {
+                    pages.release(pageKey, evt);
+                }
+                ThreadContext.detach();
+            }
         }
     }
 }
@@ -24,11 +24,15 @@
 package com.mastfrog.acteur.wicket;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.Injector;
 import com.google.inject.Provider;
 import com.google.inject.Scopes;
 import com.google.inject.Singleton;
 import com.mastfrog.guicy.scope.ReentrantScope;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.util.Exceptions;
 import java.util.Locale;
+import javax.inject.Inject;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletContext;
 import org.apache.wicket.Application;
@@ -38,6 +42,7 @@ import org.apache.wicket.request.IRequestParameters;
 import org.apache.wicket.request.Request;
 import org.apache.wicket.request.cycle.RequestCycle;
 import org.apache.wicket.request.mapper.parameter.PageParameters;
+import org.apache.wicket.serialize.ISerializer;
 import org.apache.wicket.session.ISessionStore;
 
 /**
@@ -59,6 +64,349 @@ public class WicketActeurModule extends AbstractModule {
     public static final String SETTINGS_KEY_SESSION_COOKIE_MAX_AGE_HOURS = "session.duration.hours";
     /** The default value for session duration in hours, if not set in settings */
     public static final long DEFAULT_SESSION_COOKIE_MAX_AGE_HOURS = 48;
+    /**
+     * Minutes a session may go unused before it is expired and its unbound
+     * listeners are notified.  The default is 30.
+     */
+    public static final String SETTINGS_KEY_SESSION_IDLE_TIMEOUT_MINUTES = "wicket.session.idle.timeout.minutes";
+    /** The default session idle timeout in minutes, if not set in settings */
+    public static final long DEFAULT_SESSION_IDLE_TIMEOUT_MINUTES = 30;
+    /**
+     * The maximum number of live sessions;  when exceeded, the least recently
+     * used sessions are evicted.  Zero or less means no limit.
+     */
+    public static final String SETTINGS_KEY_MAX_SESSIONS = "wicket.session.max.count";
+    /** The default maximum number of sessions, if not set in settings */
+    public static final int DEFAULT_MAX_SESSIONS = 100000;
+    /**
+     * The number of independently locked shards sessions are spread across;
+     * rounded up to a power of two.  The session limit is divided evenly
+     * between them.
+     */
+    public static final String SETTINGS_KEY_SESSION_SHARDS = "wicket.session.shards";
+    /** The default number of session shards, if not set in settings */
+    public static final int DEFAULT_SESSION_SHARDS = 16;
+    /**
+     * Minutes a session may go unused before it is serialized to a
+     * memory-mapped local file and dropped from the heap;  it is read back
+     * transparently on the next request which uses it.  Zero or less (the
+     * default) disables passivation.  Should be less than the idle timeout.
+     */
+    public static final String SETTINGS_KEY_SESSION_PASSIVATE_AFTER_MINUTES = "wicket.session.passivate.after.minutes";
+    /** The default passivation delay in minutes, if not set in settings */
+    public static final long DEFAULT_SESSION_PASSIVATE_AFTER_MINUTES = 0;
+    /**
+     * Directory for the file passivated sessions are written to.  The
+     * default is the system temporary directory.
+     */
+    public static final String SETTINGS_KEY_SESSION_PASSIVATION_DIR = "wicket.session.passivation.dir";
+    /**
+     * If set, the path of a file all sessions are written to when the
+     * application shuts down, and restored from lazily when it next starts,
+     * so users are not logged out by a restart.  Sessions not requested
+     * within the idle timeout of startup are expired.  If the log-structured
+     * page store is in use, its files are kept beside this one, so pages
+     * survive the restart too.  The files contain serialized objects, so
+     * they must be somewhere only the server can write to.  Unset by
+     * default.
+     */
+    public static final String SETTINGS_KEY_SESSION_SNAPSHOT_FILE = "wicket.session.snapshot.file";
+    /**
+     * Fully qualified name of a {@link SessionStorage} implementation to
+     * keep sessions somewhere besides this JVM's heap, such as
+     * <code>com.mastfrog.acteur.wicket.replication.ReplicatedSessionStorage</code>.
+     * Unset by default, meaning sessions are only kept in memory.
+     */
+    public static final String SETTINGS_KEY_SESSION_STORAGE = "wicket.session.storage";
+    /**
+     * Port the replicated session storage listens on for changes from other
+     * nodes.  Zero means any free port.
+     */
+    public static final String SETTINGS_KEY_REPLICATION_PORT = "wicket.replication.port";
+    /** The default replication port, if not set in settings */
+    public static final int DEFAULT_REPLICATION_PORT = 8190;
+    /**
+     * Address the replicated session storage listens on.  Replication
+     * messages contain serialized objects, so this should only be reachable
+     * from other nodes of the same application, on a trusted network.  If
+     * it is not a loopback address, {@link #SETTINGS_KEY_REPLICATION_SECRET}
+     * must be set, or the storage fails to start.
+     */
+    public static final String SETTINGS_KEY_REPLICATION_HOST = "wicket.replication.host";
+    /** The default replication listen address, if not set in settings */
+    public static final String DEFAULT_REPLICATION_HOST = "127.0.0.1";
+    /**
+     * Comma-separated list of <code>host:port</code> addresses of the other
+     * nodes session changes are replicated to.
+     */
+    public static final String SETTINGS_KEY_REPLICATION_PEERS = "wicket.replication.peers";
+    /**
+     * Secret shared by all nodes, which replication messages are signed
+     * with so that only nodes which know it can change sessions.  Required
+     * unless {@link #SETTINGS_KEY_REPLICATION_HOST} is a loopback address.
+     */
+    public static final String SETTINGS_KEY_REPLICATION_SECRET = "wicket.replication.secret";
+    /**
+     * Comma-separated list of class name prefixes, such as
+     * <code>com.example.model.</code>, of classes session attributes
+     * replicated from other nodes may contain, besides the JDK's
+     * <code>java.lang</code>, <code>java.util</code> and a few other
+     * packages, Wicket's, this library's, and those in the application
+     * class's package.
+     * Attributes containing any other class are not deserialized.
+     */
+    public static final String SETTINGS_KEY_REPLICATION_CLASSES = "wicket.replication.classes";
+    /**
+     * Maximum size in bytes of the changes sent to peers in one message.
+     */
+    public static final String SETTINGS_KEY_REPLICATION_BATCH_BYTES = "wicket.replication.batch.bytes";
+    /** The default replication batch size, if not set in settings */
+    public static final int DEFAULT_REPLICATION_BATCH_BYTES = 65536;
+    /**
+     * Maximum size in bytes of changes waiting to be sent to peers;  beyond
+     * this, rather than making requests wait, they are discarded and peers
+     * are sent every session in full instead.
+     */
+    public static final String SETTINGS_KEY_REPLICATION_PENDING_BYTES = "wicket.replication.pending.bytes";
+    /** The default limit on unsent replication data, if not set in settings */
+    public static final int DEFAULT_REPLICATION_PENDING_BYTES = 16 * 1024 * 1024;
+    /**
+     * The id of this node, from 0 to 4095, encoded into the first two
+     * characters of every session id it issues so that a front proxy or
+     * another node can tell which node owns a session.  The default is 0.
+     */
+    public static final String SETTINGS_KEY_NODE_ID = "wicket.node.id";
+    /** The default node id, if not set in settings */
+    public static final int DEFAULT_NODE_ID = 0;
+    /**
+     * If true, Wicket's page store is replaced with one made for this
+     * container:  recent pages of each session are kept in memory, and older
+     * ones written behind to a single log-structured file, rather than a file
+     * per session in a servlet temp directory.  Ignored if the application
+     * sets its own page manager provider.  The default is false.
+     */
+    public static final String SETTINGS_KEY_LOG_PAGE_STORE = "wicket.pages.log.store";
+    /** The default for the log-structured page store, if not set in settings */
+    public static final boolean DEFAULT_LOG_PAGE_STORE = false;
+    /**
+     * The number of most recently stored pages per session the page store
+     * keeps in memory;  older pages are written to disk.
+     */
+    public static final String SETTINGS_KEY_PAGES_IN_MEMORY_PER_SESSION = "wicket.pages.memory.per.session";
+    /** The default number of in-memory pages per session, if not set in settings */
+    public static final int DEFAULT_PAGES_IN_MEMORY_PER_SESSION = 8;
+    /**
+     * Directory for the page store's file.  The default is the system
+     * temporary directory.  Not used if sessions are snapshotted, in which
+     * case the file is kept beside the snapshot.
+     */
+    public static final String SETTINGS_KEY_PAGE_STORE_DIR = "wicket.pages.dir";
+    /**
+     * If true, pages are serialized with a serializer which writes class
+     * names instead of full Java serialization class descriptors, into
+     * reused buffers, rather than with Wicket's default one.  Ignored if the
+     * application sets its own serializer.  The default is false.
+     */
+    public static final String SETTINGS_KEY_PAGE_SERIALIZER = "wicket.pages.serializer";
+    /** The default for the page serializer, if not set in settings */
+    public static final boolean DEFAULT_PAGE_SERIALIZER = false;
+    /**
+     * If true, serialized pages are deflated - trading some CPU for less
+     * memory and disk held by the page store.  The default is false.
+     */
+    public static final String SETTINGS_KEY_SERIALIZER_COMPRESSION = "wicket.pages.serializer.compress";
+    /** The default for page compression, if not set in settings */
+    public static final boolean DEFAULT_SERIALIZER_COMPRESSION = false;
+    /**
+     * If true, each Wicket session's page locks are replaced with ones taken
+     * from a striped table shared by all sessions, which records how long
+     * requests wait for pages, per page class - see {@link PageLocks}.  The
+     * default is false.
+     */
+    public static final String SETTINGS_KEY_PAGE_LOCKS = "wicket.pages.locks";
+    /** The default for striped page locks, if not set in settings */
+    public static final boolean DEFAULT_PAGE_LOCKS = false;
+    /**
+     * If true, versioned package resources - CSS, scripts and images whose
+     * URLs carry a version, under wicket/resource/ - are served by Wicket
+     * once and then from an in-memory cache, without creating a session or
+     * running a request cycle.  The default is false.
+     */
+    public static final String SETTINGS_KEY_RESOURCE_CACHE = "wicket.resources.cache";
+    /** The default for the resource cache, if not set in settings */
+    public static final boolean DEFAULT_RESOURCE_CACHE = false;
+    /**
+     * The maximum number of bytes of resource content to cache.
+     */
+    public static final String SETTINGS_KEY_RESOURCE_CACHE_BYTES = "wicket.resources.cache.bytes";
+    /** The default resource cache size in bytes, if not set in settings */
+    public static final long DEFAULT_RESOURCE_CACHE_BYTES = 32 * 1024 * 1024;
+    /**
+     * If true, the output of stateless, bookmarkable pages rendered for
+     * clients without a session is cached, and served to other such
+     * clients without running a request cycle - see {@link PageOutputCache}.
+     * Only suitable if such pages depend on nothing but their URL.  The
+     * default is false.
+     */
+    public static final String SETTINGS_KEY_PAGE_OUTPUT_CACHE = "wicket.pages.output.cache";
+    /** The default for the page output cache, if not set in settings */
+    public static final boolean DEFAULT_PAGE_OUTPUT_CACHE = false;
+    /**
+     * The maximum number of bytes of page output to cache.
+     */
+    public static final String SETTINGS_KEY_PAGE_OUTPUT_CACHE_BYTES = "wicket.pages.output.cache.bytes";
+    /** The default page output cache size in bytes, if not set in settings */
+    public static final long DEFAULT_PAGE_OUTPUT_CACHE_BYTES = 16 * 1024 * 1024;
+    /**
+     * How long cached page output is served before the page is rendered
+     * again, in seconds.
+     */
+    public static final String SETTINGS_KEY_PAGE_OUTPUT_CACHE_TTL_SECONDS = "wicket.pages.output.cache.ttl.seconds";
+    /** The default page output time to live, if not set in settings */
+    public static final int DEFAULT_PAGE_OUTPUT_CACHE_TTL_SECONDS = 60;
+    /**
+     * If true, connections from clients which ask for HTTP keep-alive are
+     * left open after a Wicket response has been written, so one connection
+     * can carry many request cycles.  The default is true.
+     */
+    public static final String SETTINGS_KEY_KEEP_ALIVE = "wicket.keep.alive";
+    /** The default value for keep-alive, if not set in settings */
+    public static final boolean DEFAULT_KEEP_ALIVE = true;
+    /**
+     * Responses whose buffered body is no larger than this many bytes are
+     * sent with a Content-Length header in a single write and flush;  larger
+     * ones are streamed to the client using chunked encoding.
+     */
+    public static final String SETTINGS_KEY_CHUNKED_RESPONSE_THRESHOLD = "wicket.response.chunked.threshold";
+    /** The default chunking threshold in bytes, if not set in settings */
+    public static final int DEFAULT_CHUNKED_RESPONSE_THRESHOLD = 262144;
+    /**
+     * If true, rendered output is encoded into pooled direct buffers which
+     * can be handed to the socket without another copy;  if false (the
+     * default) pooled heap buffers are used, which the UTF-8 encoder can
+     * write into as arrays.
+     */
+    public static final String SETTINGS_KEY_DIRECT_RESPONSE_BUFFERS = "wicket.response.direct.buffers";
+    /** The default for direct response buffers, if not set in settings */
+    public static final boolean DEFAULT_DIRECT_RESPONSE_BUFFERS = false;
+    /**
+     * If true, the request cycle is run on a separate thread, and the status,
+     * headers and everything up to the closing &lt;/head&gt; tag of a page are
+     * sent as soon as that tag has been rendered, so the browser can start
+     * fetching stylesheets and scripts while the rest of the page streams
+     * after it.  Only pages written directly to the response - i.e. using
+     * Wicket's ONE_PASS_RENDER strategy - benefit.  Resource and Ajax
+     * responses are still buffered and run inline.  With an inline
+     * {@link #SETTINGS_KEY_REQUEST_CYCLE_EXECUTOR}, streamed pages run on a
+     * pool bounded like the <code>pool</code> one, and are answered with a
+     * 503 when it is full.  The default is false.
+     */
+    public static final String SETTINGS_KEY_STREAMING_RESPONSES = "wicket.response.streaming";
+    /** The default for streaming responses, if not set in settings */
+    public static final boolean DEFAULT_STREAMING_RESPONSES = false;
+    /**
+     * If true, rendered pages and Ajax responses are gzipped or deflated as
+     * they are written, for clients which accept that.  The default is
+     * false.
+     */
+    public static final String SETTINGS_KEY_RESPONSE_COMPRESSION = "wicket.response.compress";
+    /** The default for response compression, if not set in settings */
+    public static final boolean DEFAULT_RESPONSE_COMPRESSION = false;
+    /**
+     * Responses smaller than this many bytes are not compressed.  Does not
+     * apply to streamed responses, which are committed before their size
+     * is known.
+     */
+    public static final String SETTINGS_KEY_RESPONSE_COMPRESSION_MIN_BYTES = "wicket.response.compress.min.bytes";
+    /** The default minimum size to compress, if not set in settings */
+    public static final int DEFAULT_RESPONSE_COMPRESSION_MIN_BYTES = 1024;
+    /**
+     * Comma-delimited list of the content types, without parameters, of
+     * responses to compress.
+     */
+    public static final String SETTINGS_KEY_RESPONSE_COMPRESSION_TYPES = "wicket.response.compress.types";
+    /** The default content types to compress, if not set in settings */
+    public static final String DEFAULT_RESPONSE_COMPRESSION_TYPES
+            = "text/html,text/xml,application/xml,application/xhtml+xml,text/css,"
+            + "text/javascript,application/javascript,application/json,text/plain";
+    /**
+     * The deflate level, from 1 (fastest) to 9 (smallest), for compressed
+     * responses.
+     */
+    public static final String SETTINGS_KEY_RESPONSE_COMPRESSION_LEVEL = "wicket.response.compress.level";
+    /** The default compression level, if not set in settings */
+    public static final int DEFAULT_RESPONSE_COMPRESSION_LEVEL = 6;
+    /**
+     * If true, successful responses to GET requests for stateless
+     * bookmarkable pages which are buffered until finished get a weak ETag
+     * hashed from their body, and a request whose If-None-Match matches it
+     * is answered with a 304 and no body - saving the bandwidth, though not
+     * the rendering, of pages which come out the same.  Such pages' default
+     * Cache-Control of <code>no-cache, no-store</code> is relaxed to
+     * <code>no-cache</code>, so browsers keep a copy to revalidate;  a page
+     * which must not be stored on the client should set a Cache-Control of
+     * its own in <code>setHeaders()</code>, such as <code>no-store</code>.
+     * The default is false.
+     */
+    public static final String SETTINGS_KEY_RESPONSE_ETAGS = "wicket.response.etags";
+    /** The default for response ETags, if not set in settings */
+    public static final boolean DEFAULT_RESPONSE_ETAGS = false;
+    /**
+     * Where page request cycles run:  <code>inline</code> (the default) runs
+     * them on the Acteur thread handling the request;  <code>pool</code>
+     * runs them on a dedicated, bounded thread pool;  <code>virtual</code>
+     * runs each on a new virtual thread, if the JVM supports them, with the
+     * same bounds.  Resource and Ajax requests always run inline, so they are
+     * not kept waiting behind slow pages;  page requests arriving when the
+     * pool and its queue are full are answered with a 503.
+     */
+    public static final String SETTINGS_KEY_REQUEST_CYCLE_EXECUTOR = "wicket.request.cycle.executor";
+    /** The default request cycle executor mode, if not set in settings */
+    public static final String DEFAULT_REQUEST_CYCLE_EXECUTOR = "inline";
+    /**
+     * The number of threads (or concurrently running virtual threads) page
+     * request cycles may use when not run inline.
+     */
+    public static final String SETTINGS_KEY_REQUEST_CYCLE_THREADS = "wicket.request.cycle.threads";
+    /** The default number of request cycle threads, if not set in settings */
+    public static final int DEFAULT_REQUEST_CYCLE_THREADS = 16;
+    /**
+     * The number of page request cycles which may wait for a thread when
+     * not run inline, before further ones are refused.
+     */
+    public static final String SETTINGS_KEY_REQUEST_CYCLE_QUEUE_DEPTH = "wicket.request.cycle.queue.depth";
+    /** The default request cycle queue depth, if not set in settings */
+    public static final int DEFAULT_REQUEST_CYCLE_QUEUE_DEPTH = 64;
+    /**
+     * If true, requests are subject to CoDel-style admission control:  when
+     * the time page request cycles spend waiting for a thread stays above
+     * the target for a whole interval, new work is answered with a 503 -
+     * requests which would create a new session first, then other page
+     * requests at an increasing rate, while Ajax and resource requests for
+     * existing sessions are still let through - until the delay falls under
+     * the target, the queue empties, or no request cycle has started for an
+     * interval.  Queueing delay is only
+     * measured when request cycles do not run inline, so this has no effect,
+     * and a warning is logged, unless {@link #SETTINGS_KEY_REQUEST_CYCLE_EXECUTOR}
+     * is pool or virtual.  The default is false.
+     */
+    public static final String SETTINGS_KEY_ADMISSION_CONTROL = "wicket.admission.control";
+    /** The default for admission control, if not set in settings */
+    public static final boolean DEFAULT_ADMISSION_CONTROL = false;
+    /**
+     * The queueing delay in milliseconds above which admission control
+     * considers the server to be building a queue.
+     */
+    public static final String SETTINGS_KEY_ADMISSION_TARGET_MILLIS = "wicket.admission.target.millis";
+    /** The default admission control target, if not set in settings */
+    public static final long DEFAULT_ADMISSION_TARGET_MILLIS = 50;
+    /**
+     * How long in milliseconds queueing delay must stay above the target
+     * before admission control starts refusing requests.
+     */
+    public static final String SETTINGS_KEY_ADMISSION_INTERVAL_MILLIS = "wicket.admission.interval.millis";
+    /** The default admission control interval, if not set in settings */
+    public static final long DEFAULT_ADMISSION_INTERVAL_MILLIS = 500;
 
     /**
      * Create a Wicket Acteur Module with an explicitly defined config
@@ -89,6 +437,8 @@ public class WicketActeurModule extends AbstractModule {
         bind(WicketFilter.class).to(FakeWicketFilter.class).in(Scopes.SINGLETON);
         bind(FilterConfig.class).to(FakeFilterConfig.class).in(Scopes.SINGLETON);
         bind(ISessionStore.class).to(ActeurSessionStore.class).in(Scopes.SINGLETON);
+        bind(SessionStorage.class).toProvider(SessionStorageProvider.class).in(Scopes.SINGLETON);
+        bind(ISerializer.class).to(PageSerializer.class).in(Scopes.SINGLETON);
         // Make sure a PageParameters is always available, for instantiating
         // pages - will be overrlaid with the page parameters in created from
         // the URL by the GuicePageFactory if there are real parameters to use
@@ -130,6 +480,32 @@ public class WicketActeurModule extends AbstractModule {
         }
     }
 
+    @Singleton
+    private static final class SessionStorageProvider implements Provider<SessionStorage> {
+
+        private final Settings settings;
+        private final Injector injector;
+
+        @Inject
+        SessionStorageProvider(Settings settings, Injector injector) {
+            this.settings = settings;
+            this.injector = injector;
+        }
+
+        @Override
+        public SessionStorage get() {
+            String type = settings.getString(SETTINGS_KEY_SESSION_STORAGE);
+            if (type == null) {
+                return new LocalSessionStorage();
+            }
+            try {
+                return injector.getInstance(Class.forName(type).asSubclass(SessionStorage.class));
+            } catch (ClassNotFoundException ex) {
+                return Exceptions.chuck(ex);
+            }
+        }
+    }
+
     @Singleton
     private static final class RequestParametersProvider implements Provider<IRequestParameters> {
 
@@ -24,16 +24,35 @@
 
 package com.mastfrog.acteur.wicket;
 
+import com.google.inject.Provider;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_LOG_PAGE_STORE;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_PAGE_LOCKS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_PAGE_OUTPUT_CACHE;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_PAGE_SERIALIZER;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_RESPONSE_ETAGS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_LOG_PAGE_STORE;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_PAGE_LOCKS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_PAGE_OUTPUT_CACHE;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_PAGE_SERIALIZER;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_RESPONSE_ETAGS;
+import com.mastfrog.settings.Settings;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import javax.inject.Inject;
 import javax.servlet.ServletContext;
 import org.apache.wicket.Application;
+import org.apache.wicket.IApplicationListener;
 import org.apache.wicket.IPageFactory;
+import org.apache.wicket.Session;
+import org.apache.wicket.DefaultPageManagerProvider;
 import org.apache.wicket.ThreadContext;
+import org.apache.wicket.pageStore.IDataStore;
 import org.apache.wicket.protocol.http.WebApplication;
 import org.apache.wicket.protocol.http.WicketFilter;
+import org.apache.wicket.request.Request;
+import org.apache.wicket.serialize.ISerializer;
+import org.apache.wicket.serialize.java.JavaSerializer;
 import org.apache.wicket.session.ISessionStore;
 import org.apache.wicket.util.IProvider;
 
@@ -48,13 +67,25 @@ public class WicketApplicationInitializer implements IProvider<ISessionStore> {
     private final ServletContext ctx;
     private final WicketFilter filter;
     private final ISessionStore store;
+    private final Settings settings;
+    private final Provider<LogPageDataStore> pages;
+    private final Provider<ISerializer> serializer;
+    private final PageLocks locks;
+    private final PageOutputCache pageOutput;
+    private final ClientInfoCache clientInfos;
     
     @Inject
-    WicketApplicationInitializer(IPageFactory factory, ServletContext ctx, WicketFilter filter, ISessionStore store) {
+    WicketApplicationInitializer(IPageFactory factory, ServletContext ctx, WicketFilter filter, ISessionStore store, Settings settings, Provider<LogPageDataStore> pages, Provider<ISerializer> serializer, PageLocks locks, PageOutputCache pageOutput, ClientInfoCache clientInfos) {
         this.factory = factory;
         this.ctx = ctx;
         this.filter = filter;
         this.store = store;
+        this.settings = settings;
+        this.pages = pages;
+        this.serializer = serializer;
+        this.locks = locks;
+        this.pageOutput = pageOutput;
+        this.clientInfos = clientInfos;
     }
     
     protected void init(Application application) throws NoSuchFieldException, IllegalArgumentException, IllegalAccessException, NoSuchMethodException, InvocationTargetException {
@@ -63,9 +94,56 @@ public class WicketApplicationInitializer implements IProvider<ISessionStore> {
         wa.setServletContext(ctx);
         wa.setSessionStoreProvider(this);
         ThreadContext.setApplication(application);
-        application.setName(application.getClass().getName());
+        // Names must be unique in the JVM - usually there is one server per
+        // JVM, but tests may run several nodes of the same application
+        String name = application.getClass().getName();
+        for (int i = 2; Application.get(name) != null; i++) {
+            name = application.getClass().getName() + '-' + i;
+        }
+        application.setName(name);
         application.initApplication();
         wa.setSessionStoreProvider(this);
+        if (store instanceof ActeurSessionStore) {
+            // Snapshot sessions before the page manager is destroyed, or
+            // pages held in them can no longer be serialized
+            final ActeurSessionStore sessions = (ActeurSessionStore) store;
+            application.getApplicationListeners().add(new IApplicationListener() {
+                @Override
+                public void onAfterInitialized(Application application) {
+                }
+
+                @Override
+                public void onBeforeDestroyed(Application application) {
+                    sessions.snapshot();
+                }
+            });
+        }
+        // Application.internalInit() installs the default provider;  only
+        // replace that, not one the application chose itself
+        if (settings.getBoolean(SETTINGS_KEY_LOG_PAGE_STORE, DEFAULT_LOG_PAGE_STORE)
+                && application.getPageManagerProvider().getClass() == DefaultPageManagerProvider.class) {
+            application.setPageManagerProvider(new LogPageManagerProvider(application, pages));
+        }
+        // The page store is created lazily, so the serializer can still be
+        // swapped here;  again only replace Wicket's own
+        if (settings.getBoolean(SETTINGS_KEY_PAGE_SERIALIZER, DEFAULT_PAGE_SERIALIZER)
+                && application.getFrameworkSettings().getSerializer().getClass() == JavaSerializer.class) {
+            application.getFrameworkSettings().setSerializer(serializer.get());
+        }
+        if (settings.getBoolean(SETTINGS_KEY_PAGE_LOCKS, DEFAULT_PAGE_LOCKS)) {
+            application.setMetaData(PageLocks.KEY, locks);
+            store.registerBindListener(new ISessionStore.BindListener() {
+                @Override
+                public void bindingSession(Request request, Session newSession) {
+                    locks.install(newSession);
+                }
+            });
+        }
+        if (settings.getBoolean(SETTINGS_KEY_PAGE_OUTPUT_CACHE, DEFAULT_PAGE_OUTPUT_CACHE)
+                || settings.getBoolean(SETTINGS_KEY_RESPONSE_ETAGS, DEFAULT_RESPONSE_ETAGS)) {
+            application.getRequestCycleListeners().add(pageOutput.listener());
+        }
+        application.getSessionListeners().add(clientInfos.listener());
         Field field = Application.class.getDeclaredField("pageFactory");
         field.setAccessible(true);
         field.set(application, factory);
@@ -78,4 +156,19 @@ public class WicketApplicationInitializer implements IProvider<ISessionStore> {
     public ISessionStore get() {
         return store;
     }
+
+    private static final class LogPageManagerProvider extends DefaultPageManagerProvider {
+
+        private final Provider<LogPageDataStore> pages;
+
+        LogPageManagerProvider(Application application, Provider<LogPageDataStore> pages) {
+            super(application);
+            this.pages = pages;
+        }
+
+        @Override
+        protected IDataStore newDataStore() {
+            return pages.get();
+        }
+    }
 }
@@ -0,0 +1,185 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.google.inject.Singleton;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_REQUEST_CYCLE_EXECUTOR;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_REQUEST_CYCLE_QUEUE_DEPTH;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_REQUEST_CYCLE_THREADS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_REQUEST_CYCLE_EXECUTOR;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_REQUEST_CYCLE_QUEUE_DEPTH;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_REQUEST_CYCLE_THREADS;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import com.mastfrog.settings.Settings;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs Wicket request cycles which should not run on the Acteur thread
+ * handling the request - either because the response is committed while the
+ * page is still rendering, or because page rendering is configured to run on
+ * a dedicated, bounded set of threads so that slow pages cannot starve
+ * everything else.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class WicketExecutor implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(WicketExecutor.class);
+
+    enum Mode {
+        INLINE, POOL, VIRTUAL
+    }
+    private final Mode mode;
+    private final ExecutorService threadPool;
+    /**
+     * Bounds the number of running plus waiting cycles;  a thread pool's
+     * queue does that itself, but virtual threads have none.
+     */
+    private final Semaphore permits;
+    private final LoadShedder shedder;
+
+    @Inject
+    WicketExecutor(ShutdownHookRegistry reg, Settings settings, LoadShedder shedder) {
+        this.shedder = shedder;
+        int threads = settings.getInt(SETTINGS_KEY_REQUEST_CYCLE_THREADS, DEFAULT_REQUEST_CYCLE_THREADS);
+        int queueDepth = settings.getInt(SETTINGS_KEY_REQUEST_CYCLE_QUEUE_DEPTH, DEFAULT_REQUEST_CYCLE_QUEUE_DEPTH);
+        Mode m = mode(settings.getString(SETTINGS_KEY_REQUEST_CYCLE_EXECUTOR, DEFAULT_REQUEST_CYCLE_EXECUTOR));
+        ExecutorService virtual = m == Mode.VIRTUAL ? virtualThreadExecutor() : null;
+        if (m == Mode.VIRTUAL && virtual == null) {
+            log.warn("Virtual threads not available in this JVM - using a thread pool");
+            m = Mode.POOL;
+        }
+        switch (m) {
+            case VIRTUAL:
+                threadPool = virtual;
+                permits = new Semaphore(threads + queueDepth);
+                break;
+            default:
+                // Inline, only streaming responses are run here - they need
+                // a thread of their own, but no more of them than a pool
+                ThreadPoolExecutor tpe = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(Math.max(1, queueDepth)), new RenderThreadFactory());
+                tpe.allowCoreThreadTimeOut(true);
+                threadPool = tpe;
+                permits = null;
+        }
+        mode = m;
+        reg.add(this);
+    }
+
+    static Mode mode(String setting) {
+        try {
+            return Mode.valueOf(setting.trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            log.warn("Unknown {} '{}' - using {}", SETTINGS_KEY_REQUEST_CYCLE_EXECUTOR, setting,
+                    DEFAULT_REQUEST_CYCLE_EXECUTOR);
+            return Mode.valueOf(DEFAULT_REQUEST_CYCLE_EXECUTOR.toUpperCase());
+        }
+    }
+
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception | LinkageError ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Whether page request cycles run on the calling thread.
+     *
+     * @return true if running inline
+     */
+    boolean isInline() {
+        return mode == Mode.INLINE;
+    }
+
+    /**
+     * Run a request cycle, unless the executor is saturated.
+     *
+     * @param cycle The work
+     * @return false if the work was refused because all threads are busy and
+     * the queue is full
+     */
+    boolean tryExecute(final Runnable cycle) {
+        if (permits != null && !permits.tryAcquire()) {
+            return false;
+        }
+        final long enqueued = System.nanoTime();
+        Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                shedder.dequeued();
+                shedder.sample(System.nanoTime() - enqueued);
+                try {
+                    cycle.run();
+                } finally {
+                    if (permits != null) {
+                        permits.release();
+                    }
+                }
+            }
+        };
+        shedder.queued();
+        try {
+            threadPool.execute(r);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            shedder.dequeued();
+            if (permits != null) {
+                permits.release();
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public void run() {
+        threadPool.shutdown();
+    }
+
+    private static final class RenderThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "wicket-request-cycle-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.adapters;
+
+import com.mastfrog.acteur.HttpEvent;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_KEEP_ALIVE;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_KEEP_ALIVE;
+import com.mastfrog.settings.Settings;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * Writes a response body once the headers have been flushed, in slices if
+ * it is large, and closes the connection afterwards unless it is kept
+ * alive.  The body is released once written;  a duplicate of shared
+ * content works, as long as the reference count retained for the request
+ * is the one it shares.  Also decides, for everything which sends bodies
+ * this way, whether a connection is kept alive, and what Connection header
+ * says so.
+ *
+ * @author Tim Boudreau
+ */
+public final class ContentWriter implements ChannelFutureListener {
+
+    private final ByteBuf body;
+    private final int sliceSize;
+    private final boolean keepAlive;
+
+    /**
+     * Create a writer which writes the body in one piece.
+     */
+    public ContentWriter(ByteBuf body, boolean keepAlive) {
+        this(body, Integer.MAX_VALUE, keepAlive);
+    }
+
+    public ContentWriter(ByteBuf body, int sliceSize, boolean keepAlive) {
+        this.body = body;
+        this.sliceSize = sliceSize;
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Whether the connection a request came on should be kept open after
+     * the response - if the client asked for that, and settings allow it.
+     */
+    public static boolean isKeepAlive(Settings settings, HttpEvent evt) {
+        return settings.getBoolean(SETTINGS_KEY_KEEP_ALIVE, DEFAULT_KEEP_ALIVE)
+                && HttpHeaders.isKeepAlive(evt.getRequest());
+    }
+
+    /**
+     * The Connection header a response needs, if any - HTTP 1.1 connections
+     * are kept alive unless it says otherwise, HTTP 1.0 ones the reverse.
+     *
+     * @return The header value, or null if none is needed
+     */
+    public static String connectionHeader(boolean keepAlive, HttpEvent evt) {
+        if (!keepAlive) {
+            return HttpHeaders.Values.CLOSE;
+        }
+        return HttpVersion.HTTP_1_0.equals(evt.getRequest().getProtocolVersion())
+                ? HttpHeaders.Values.KEEP_ALIVE : null;
+    }
+
+    @Override
+    public void operationComplete(ChannelFuture f) throws Exception {
+        if (!f.isSuccess()) {
+            body.release();
+            f.channel().close();
+            return;
+        }
+        int remaining = body.readableBytes();
+        ByteBuf slice = body.readSlice(Math.min(sliceSize, remaining)).retain();
+        if (slice.readableBytes() < remaining) {
+            f.channel().writeAndFlush(new DefaultHttpContent(slice)).addListener(this);
+        } else {
+            body.release();
+            f = f.channel().writeAndFlush(new DefaultLastHttpContent(slice));
+            if (!keepAlive) {
+                f.addListener(CLOSE);
+            }
+        }
+    }
+}
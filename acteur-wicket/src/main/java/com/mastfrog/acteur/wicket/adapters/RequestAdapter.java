@@ -28,9 +28,9 @@ import com.mastfrog.acteur.headers.Headers;
 import com.mastfrog.acteur.server.PathFactory;
 import com.mastfrog.acteur.server.ServerModule;
 import com.mastfrog.settings.Settings;
-import com.mastfrog.util.collections.CollectionUtils;
+import io.netty.handler.codec.http.HttpHeaders;
 import java.nio.charset.Charset;
-import java.util.Arrays;
+import java.text.ParseException;
 import java.util.List;
 import java.util.Locale;
 import javax.inject.Inject;
@@ -51,10 +51,16 @@ public class RequestAdapter extends WebRequest {
     private final Locale locale;
     private final Charset charset;
     private final Url url;
+    private final RequestCookies cookies;
 
-    @Inject
     public RequestAdapter(HttpEvent evt, Locale locale, Charset charset, Settings settings) {
+        this(evt, locale, charset, settings, new RequestCookies(evt));
+    }
+
+    @Inject
+    public RequestAdapter(HttpEvent evt, Locale locale, Charset charset, Settings settings, RequestCookies cookies) {
         this.evt = evt;
+        this.cookies = cookies;
         this.locale = locale;
         this.charset = charset;
         String filterPrefix = settings.getString(PathFactory.BASE_PATH_SETTINGS_KEY, "");
@@ -110,14 +116,12 @@ public class RequestAdapter extends WebRequest {
 
     @Override
     public List<javax.servlet.http.Cookie> getCookies() {
-        io.netty.handler.codec.http.Cookie[] cookies = evt.getHeader(Headers.COOKIE);
-        List<io.netty.handler.codec.http.Cookie> cks = Arrays.asList(cookies);
-        return CollectionUtils.convertedList(cks, new CookieConverter(), io.netty.handler.codec.http.Cookie.class, javax.servlet.http.Cookie.class);
+        return cookies.servletCookies();
     }
 
     @Override
     public List<String> getHeaders(String string) {
-        return CollectionUtils.oneItemList(getHeader(string));
+        return evt.getRequest().headers().getAll(string);
     }
 
     @Override
@@ -131,7 +135,18 @@ public class RequestAdapter extends WebRequest {
         if (hdr == null) {
             return null;
         }
-        DateTime dt = Headers.ISO2822DateFormat.parseDateTime(hdr);
-        return Time.valueOf(dt.toDate());
+        // Wicket answers If-Modified-Since with a 304 for resources using
+        // this, so a malformed or differently formatted date from a client
+        // must not fail the request
+        try {
+            DateTime dt = Headers.ISO2822DateFormat.parseDateTime(hdr.trim());
+            return Time.valueOf(dt.toDate());
+        } catch (IllegalArgumentException ex) {
+            try {
+                return Time.valueOf(HttpHeaders.getDateHeader(evt.getRequest(), string));
+            } catch (ParseException ex1) {
+                return null;
+            }
+        }
     }
 }
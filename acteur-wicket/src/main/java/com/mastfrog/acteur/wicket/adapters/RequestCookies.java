@@ -0,0 +1,165 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.adapters;
+
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.headers.Headers;
+import io.netty.handler.codec.http.Cookie;
+import io.netty.handler.codec.http.HttpHeaders;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The cookies sent with a request, decoded at most once and shared by
+ * everything that needs them for the duration of the request.  Looking up a
+ * single cookie's value scans the raw header and decodes nothing else.
+ *
+ * @author Tim Boudreau
+ */
+public final class RequestCookies {
+
+    private final HttpEvent evt;
+    private final String header;
+    private List<Cookie> cookies;
+    private List<javax.servlet.http.Cookie> servletCookies;
+
+    public RequestCookies(HttpEvent evt) {
+        this.evt = evt;
+        this.header = evt.getRequest().headers().get(HttpHeaders.Names.COOKIE);
+    }
+
+    /**
+     * Get the value of one cookie directly from the raw header, without
+     * decoding any others.  Cookies may be separated by semicolons or, as
+     * some clients and proxies which merge Cookie headers send them, commas.
+     * If the cookie occurs more than once, the last occurrence wins.
+     *
+     * @param name The cookie name
+     * @return The value, or null if no such cookie was sent
+     */
+    public String value(String name) {
+        return value(header, name);
+    }
+
+    /**
+     * All of the cookies, decoded on first use.
+     *
+     * @return An unmodifiable list of cookies
+     */
+    public List<Cookie> cookies() {
+        if (cookies == null) {
+            Cookie[] all = header == null ? null : evt.getHeader(Headers.COOKIE);
+            cookies = all == null || all.length == 0
+                    ? Collections.<Cookie>emptyList()
+                    : Collections.unmodifiableList(Arrays.asList(all));
+        }
+        return cookies;
+    }
+
+    /**
+     * All of the cookies as servlet cookies, for Wicket.
+     *
+     * @return An unmodifiable list of cookies
+     */
+    public List<javax.servlet.http.Cookie> servletCookies() {
+        if (servletCookies == null) {
+            List<Cookie> all = cookies();
+            List<javax.servlet.http.Cookie> result = new ArrayList<>(all.size());
+            for (Cookie ck : all) {
+                result.add(CookieConverter.INSTANCE.convert(ck));
+            }
+            servletCookies = Collections.unmodifiableList(result);
+        }
+        return servletCookies;
+    }
+
+    static String value(String header, String name) {
+        if (header == null) {
+            return null;
+        }
+        int len = header.length();
+        int nameLength = name.length();
+        int start = -1;
+        int end = -1;
+        int pos = 0;
+        while (pos < len) {
+            // Skip separators and whitespace to the start of a name
+            char c = header.charAt(pos);
+            if (c == ' ' || c == '\t' || c == ';' || c == ',') {
+                pos++;
+                continue;
+            }
+            int nameEnd = pos + nameLength;
+            boolean matches = nameEnd <= len && header.regionMatches(pos, name, 0, nameLength);
+            if (matches) {
+                int eq = nameEnd;
+                while (eq < len && header.charAt(eq) == ' ') {
+                    eq++;
+                }
+                matches = eq < len && header.charAt(eq) == '=';
+                if (matches) {
+                    int valueStart = eq + 1;
+                    while (valueStart < len && header.charAt(valueStart) == ' ') {
+                        valueStart++;
+                    }
+                    int valueEnd = separator(header, valueStart);
+                    start = valueStart;
+                    end = valueEnd;
+                    pos = valueEnd;
+                    continue;
+                }
+            }
+            pos = separator(header, pos);
+        }
+        if (start < 0) {
+            return null;
+        }
+        while (end > start && header.charAt(end - 1) == ' ') {
+            end--;
+        }
+        if (end - start >= 2 && header.charAt(start) == '"' && header.charAt(end - 1) == '"') {
+            start++;
+            end--;
+        }
+        return header.substring(start, end);
+    }
+
+    /**
+     * Find the end of the cookie starting at or before a position - cookie
+     * values cannot contain either separator, quoted or not.
+     */
+    private static int separator(String header, int pos) {
+        int len = header.length();
+        while (pos < len) {
+            char c = header.charAt(pos);
+            if (c == ';' || c == ',') {
+                return pos;
+            }
+            pos++;
+        }
+        return len;
+    }
+}
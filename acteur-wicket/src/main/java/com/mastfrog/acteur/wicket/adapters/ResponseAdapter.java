@@ -23,76 +23,530 @@
  */
 package com.mastfrog.acteur.wicket.adapters;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.net.MediaType;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.headers.HeaderValueType;
 import com.mastfrog.acteur.headers.Headers;
 import com.mastfrog.acteur.server.PathFactory;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_CHUNKED_RESPONSE_THRESHOLD;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_DIRECT_RESPONSE_BUFFERS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_RESPONSE_ETAGS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_STREAMING_RESPONSES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_CHUNKED_RESPONSE_THRESHOLD;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_DIRECT_RESPONSE_BUFFERS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_RESPONSE_ETAGS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_STREAMING_RESPONSES;
+import com.mastfrog.settings.Settings;
 import com.mastfrog.url.Path;
 import com.mastfrog.util.Exceptions;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
-import io.netty.channel.ChannelFuture;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.handler.codec.http.DefaultCookie;
-import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
-import io.netty.handler.codec.http.LastHttpContent;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import javax.inject.Inject;
 import javax.servlet.http.Cookie;
 import org.apache.wicket.request.http.WebResponse;
 import org.apache.wicket.util.time.Time;
 import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Wraps an Acteur Response object and exposes it as a Wicket WebResponse
- * object.
+ * object.  Output is written directly into pooled buffers from the injected
+ * allocator - markup in UTF-8 is encoded straight into them without an
+ * intermediate String or byte array - and sent when the request cycle is
+ * finished.
+ * <p>
+ * In streaming mode, the response is committed as soon as the closing
+ * &lt;/head&gt; tag of a page has been written:  the status and headers are
+ * final from then on, and the body is handed to the channel a segment at a
+ * time while the rest of the page renders.
+ * <p>
+ * Headers are recorded here and added to an Acteur response with
+ * {@link #applyTo} once the response is committed, so the request cycle can
+ * run on a thread other than the one which replies.
+ * <p>
+ * If {@link ResponseCompression} is enabled, responses of the configured
+ * content types are gzipped or deflated for clients which accept it - when
+ * streaming, each segment as it is handed off, flushing the compressor so
+ * the browser can render what it has so far.
+ * <p>
+ * Optionally, buffered responses get an ETag hashed from their body as
+ * written, and are replaced with a 304 if the client already has it.
  *
  * @author Tim Boudreau
  */
 public class ResponseAdapter extends WebResponse {
 
+    private static final Logger log = LoggerFactory.getLogger(ResponseAdapter.class);
+
     private final com.mastfrog.acteur.Response resp;
     private final Charset charset;
-    private CFL cfl;
+    private CompositeByteBuf body;
+    private ByteBuf current;
+    private final boolean direct;
+    private final boolean utf8;
     private final ByteBufAllocator alloc;
     private HttpResponseStatus status;
     private final PathFactory paths;
     private boolean redir;
     boolean flushed;
+    private final HttpEvent evt;
+    private final boolean keepAlive;
+    private long contentLength = -1;
+    private final int chunkThreshold;
+    private boolean streaming;
+    private StreamingBodyWriter streamer;
+    /**
+     * Headers, recorded rather than added to an Acteur response as they are
+     * set, since the request cycle may finish on another thread after the
+     * acteur which started it has returned - see {@link #applyTo}.
+     */
+    private final List<Header<?>> headers = new ArrayList<>();
+    private boolean chunked;
+    private ChannelFutureListener bodyWriter;
+    private String message;
+    private Runnable onCommit;
+    private MediaType contentType;
+    private String cacheControl;
+    private long lastModified = -1;
+    private boolean cookies;
+    private boolean encoded;
+    private boolean tagged;
+    private boolean statelessPage;
+    private final boolean etags;
+    private final ResponseCompression compression;
+    private ResponseCompression.Compressor compressor;
+    private Runnable beforeCommit;
+    /**
+     * The last few characters written before the response was committed, so
+     * a &lt;/head&gt; split across writes is still found.
+     */
+    private String headTail = "";
+    /**
+     * Size of the slices a large body is written in when streaming it chunked.
+     */
+    private static final int CHUNK_SIZE = 65536;
+    /**
+     * Max components before the composite buffer consolidates - high enough
+     * that it never copies for an ordinary page.
+     */
+    private static final int MAX_COMPONENTS = 1024;
+    /**
+     * Size of the pooled buffers output is encoded into.
+     */
+    private static final int SEGMENT_SIZE = 16384;
+    /**
+     * The Cache-Control WebResponse.disableCaching() sets, as Wicket does
+     * for every page.
+     */
+    private static final String WICKET_NO_CACHE = "no-cache, no-store";
+
+    public ResponseAdapter(com.mastfrog.acteur.Response resp, Charset charset, ByteBufAllocator alloc, PathFactory paths, HttpEvent evt, Settings settings) {
+        this(resp, charset, alloc, paths, evt, settings, null);
+    }
 
     @Inject
-    public ResponseAdapter(com.mastfrog.acteur.Response resp, Charset charset, ByteBufAllocator alloc, PathFactory paths) {
+    public ResponseAdapter(com.mastfrog.acteur.Response resp, Charset charset, ByteBufAllocator alloc, PathFactory paths, HttpEvent evt, Settings settings, ResponseCompression compression) {
         this.resp = resp;
+        this.compression = compression == null || !compression.isEnabled() ? null : compression;
         this.charset = charset;
         this.alloc = alloc;
         this.paths = paths;
+        this.evt = evt;
+        this.keepAlive = ContentWriter.isKeepAlive(settings, evt);
+        this.chunkThreshold = settings.getInt(SETTINGS_KEY_CHUNKED_RESPONSE_THRESHOLD, DEFAULT_CHUNKED_RESPONSE_THRESHOLD);
+        this.direct = settings.getBoolean(SETTINGS_KEY_DIRECT_RESPONSE_BUFFERS, DEFAULT_DIRECT_RESPONSE_BUFFERS);
+        this.utf8 = StandardCharsets.UTF_8.equals(charset);
+        this.streaming = settings.getBoolean(SETTINGS_KEY_STREAMING_RESPONSES, DEFAULT_STREAMING_RESPONSES);
+        this.etags = settings.getBoolean(SETTINGS_KEY_RESPONSE_ETAGS, DEFAULT_RESPONSE_ETAGS);
     }
     
     public HttpResponseStatus status() {
         return status;
     }
 
+    /**
+     * Whether this is a complete 200 response with a content type which sets
+     * no cookies, so it could be sent again as-is to another client.
+     *
+     * @return true if the response could be replayed
+     */
+    public boolean isReplayable() {
+        return streamer == null && !redir && !cookies && contentType != null
+                && (status == null || status.code() == 200);
+    }
+
+    /**
+     * Whether this is a replayable response Wicket marked as cacheable by
+     * anyone - such as a package resource.
+     *
+     * @return true if the response could be served again as-is
+     */
+    public boolean isPubliclyCacheable() {
+        return isReplayable() && cacheControl != null && cacheControl.contains("public");
+    }
+
+    public MediaType contentType() {
+        return contentType;
+    }
+
+    public String cacheControl() {
+        return cacheControl;
+    }
+
+    /**
+     * Note that the body is the rendering of a stateless bookmarkable page -
+     * the only kind of response given an ETag, since the markup of a
+     * stateful page refers to the page instance just rendered and stored,
+     * which a client showing its old copy would never see.
+     */
+    public void statelessPage() {
+        statelessPage = true;
+    }
+
+    /**
+     * The last modified time Wicket set, if any.
+     *
+     * @return A time in milliseconds, or -1
+     */
+    public long lastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Copy the buffered body into an unpooled direct buffer, for serving
+     * again later.  Must be called before {@link #finish()}.
+     *
+     * @return A buffer, or null if there is no body
+     */
+    public ByteBuf copyBody() {
+        sealCurrent();
+        if (body == null || !body.isReadable()) {
+            return null;
+        }
+        ByteBuf copy = Unpooled.directBuffer(body.readableBytes());
+        copy.writeBytes(body, body.readerIndex(), body.readableBytes());
+        return copy;
+    }
+
+    /**
+     * Whether this response may be committed before the request cycle
+     * finishes, so the request cycle should be run on a thread other than
+     * the one which will send the headers.
+     *
+     * @return true if streaming is enabled
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Buffer this response whole even if streaming is enabled, for a
+     * request cycle run on the thread which will send the headers.
+     */
+    public void disableStreaming() {
+        streaming = false;
+    }
+
+    /**
+     * Set something to run on the rendering thread just before the response
+     * is committed early, while headers can still be added - such as
+     * issuing a session id whose cookie must go out with them.
+     *
+     * @param beforeCommit A runnable
+     */
+    public void beforeCommit(Runnable beforeCommit) {
+        this.beforeCommit = beforeCommit;
+    }
+
+    /**
+     * Whether the response was committed before the request cycle finished,
+     * so headers and cookies added since were not sent.
+     *
+     * @return true if streaming
+     */
+    public boolean isCommittedEarly() {
+        return streamer != null;
+    }
+
+    /**
+     * Set something to run once - when the response is committed early,
+     * or the request cycle has finished and {@link #finish()} or
+     * {@link #discard()} has been called - so the status, headers and body
+     * writer can be handed to the acteur which will reply.
+     *
+     * @param onCommit A runnable
+     */
+    public void onCommit(Runnable onCommit) {
+        this.onCommit = onCommit;
+    }
+
+    /**
+     * Add the recorded headers and body writer to the response an acteur
+     * will reply with.  Call only once the response has been committed.
+     *
+     * @param target The response
+     */
+    public void applyTo(com.mastfrog.acteur.Response target) {
+        for (Header<?> header : headers) {
+            header.applyTo(target);
+        }
+        if (chunked) {
+            target.setChunked(true);
+        }
+        if (message != null) {
+            target.setMessage(message);
+        }
+        if (bodyWriter != null) {
+            target.setBodyWriter(bodyWriter);
+        }
+    }
+
+    private <T> void header(HeaderValueType<T> type, T value) {
+        headers.add(new Header<>(type, value));
+    }
+
+    private void committed() {
+        Runnable r = onCommit;
+        onCommit = null;
+        if (r != null) {
+            r.run();
+        }
+    }
+
     @Override
     public void write(CharSequence cs) {
-        write(cs.toString().getBytes(charset));
+        int len = cs.length();
+        if (len == 0) {
+            return;
+        }
+        if (!utf8) {
+            byte[] bytes = cs.toString().getBytes(charset);
+            write(bytes, 0, bytes.length);
+        } else {
+            // Encode in pieces that fit a segment, never splitting a surrogate pair
+            int maxChars = SEGMENT_SIZE / 3;
+            for (int start = 0; start < len;) {
+                int end = Math.min(len, start + maxChars);
+                if (end < len && Character.isHighSurrogate(cs.charAt(end - 1))) {
+                    end++;
+                }
+                writeUtf8(writable((end - start) * 3), cs, start, end);
+                start = end;
+            }
+        }
+        if (streaming && streamer == null && closesHead(cs)) {
+            commitStreaming();
+        }
+    }
+
+    private boolean closesHead(CharSequence cs) {
+        int len = cs.length();
+        // The tag may have started in an earlier write
+        StringBuilder edge = new StringBuilder(headTail).append(cs, 0, Math.min(len, 6));
+        if (containsHeadClose(edge) || containsHeadClose(cs)) {
+            return true;
+        }
+        edge.setLength(0);
+        edge.append(headTail).append(cs, Math.max(0, len - 6), len);
+        headTail = edge.substring(Math.max(0, edge.length() - 6));
+        return false;
+    }
+
+    private static boolean containsHeadClose(CharSequence cs) {
+        for (int i = 0, max = cs.length() - 7; i <= max; i++) {
+            if (cs.charAt(i) == '<' && cs.charAt(i + 1) == '/' && cs.charAt(i + 6) == '>') {
+                String tag = cs.subSequence(i + 2, i + 6).toString();
+                if ("head".equalsIgnoreCase(tag)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void commitStreaming() {
+        if (beforeCommit != null) {
+            beforeCommit.run();
+        }
+        sealCurrent();
+        streamer = new StreamingBodyWriter(keepAlive);
+        chunked = true;
+        addConnectionHeaders();
+        // The size is not known yet, so the minimum does not apply
+        compressor = startCompression(0);
+        bodyWriter = streamer;
+        if (body != null) {
+            offer(body);
+            body = null;
+        }
+        committed();
     }
 
     @Override
     public void write(byte[] bytes) {
-        CFL cfl = cfl();
-        cfl.add(bytes);
+        // Always copied - callers reuse their arrays, and the body is only
+        // sent after they have returned
+        write(bytes, 0, bytes.length);
     }
 
     @Override
     public void write(byte[] bytes, int offset, int length) {
-        byte[] copy = new byte[length];
-        System.arraycopy(bytes, offset, copy, 0, length);
-        write(copy);
+        if (length > 0) {
+            writable(length).writeBytes(bytes, offset, length);
+        }
+    }
+
+    /**
+     * Get a buffer with room for at least the passed number of bytes,
+     * starting a new segment if the current one is too full.
+     */
+    private ByteBuf writable(int bytes) {
+        if (current != null && current.capacity() - current.writerIndex() >= bytes) {
+            return current;
+        }
+        sealCurrent();
+        int size = Math.max(SEGMENT_SIZE, bytes);
+        return current = direct ? alloc.directBuffer(size) : alloc.heapBuffer(size);
+    }
+
+    private void sealCurrent() {
+        if (current != null) {
+            if (current.isReadable()) {
+                append(current);
+            } else {
+                current.release();
+            }
+            current = null;
+        }
+    }
+
+    private void append(ByteBuf buf) {
+        if (streamer != null) {
+            offer(buf);
+            return;
+        }
+        if (body == null) {
+            body = alloc.compositeBuffer(MAX_COMPONENTS);
+        }
+        body.addComponent(buf);
+        body.writerIndex(body.writerIndex() + buf.readableBytes());
+    }
+
+    private void offer(ByteBuf buf) {
+        if (compressor != null) {
+            buf = compressor.compress(buf, false);
+            if (!buf.isReadable()) {
+                // An empty chunk would end the response
+                buf.release();
+                return;
+            }
+        }
+        streamer.offer(buf);
+    }
+
+    /**
+     * Decide whether to compress the body, and if so, add the headers for
+     * that and start a compressor.
+     *
+     * @param size The size of the body, or 0 if not known yet
+     * @return A compressor or null
+     */
+    private ResponseCompression.Compressor startCompression(int size) {
+        if (compression == null || encoded || redir || !compression.accepts(contentType)
+                || (status != null && status.code() != 200)) {
+            return null;
+        }
+        header(Headers.stringHeader(HttpHeaders.Names.VARY), HttpHeaders.Names.ACCEPT_ENCODING);
+        String encoding = ResponseCompression.negotiate(evt.getHeader(HttpHeaders.Names.ACCEPT_ENCODING));
+        if (encoding == null || (size > 0 && size < compression.minBytes())) {
+            return null;
+        }
+        header(Headers.stringHeader(HttpHeaders.Names.CONTENT_ENCODING), encoding);
+        return compression.open(encoding, alloc);
+    }
+
+    /**
+     * Encode characters as UTF-8 directly into a buffer known to have room for
+     * three bytes per character.
+     */
+    static void writeUtf8(ByteBuf buf, CharSequence cs, int start, int end) {
+        if (buf.hasArray()) {
+            byte[] arr = buf.array();
+            int base = buf.arrayOffset();
+            int pos = encodeUtf8(arr, base + buf.writerIndex(), cs, start, end);
+            buf.writerIndex(pos - base);
+            return;
+        }
+        int ix = buf.writerIndex();
+        for (int i = start; i < end; i++) {
+            char c = cs.charAt(i);
+            if (c < 0x80) {
+                buf.setByte(ix++, c);
+            } else if (c < 0x800) {
+                buf.setByte(ix++, 0xC0 | (c >> 6));
+                buf.setByte(ix++, 0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(cs.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, cs.charAt(++i));
+                    buf.setByte(ix++, 0xF0 | (cp >> 18));
+                    buf.setByte(ix++, 0x80 | ((cp >> 12) & 0x3F));
+                    buf.setByte(ix++, 0x80 | ((cp >> 6) & 0x3F));
+                    buf.setByte(ix++, 0x80 | (cp & 0x3F));
+                } else {
+                    buf.setByte(ix++, '?');
+                }
+            } else {
+                buf.setByte(ix++, 0xE0 | (c >> 12));
+                buf.setByte(ix++, 0x80 | ((c >> 6) & 0x3F));
+                buf.setByte(ix++, 0x80 | (c & 0x3F));
+            }
+        }
+        buf.writerIndex(ix);
+    }
+
+    private static int encodeUtf8(byte[] arr, int ix, CharSequence cs, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = cs.charAt(i);
+            if (c < 0x80) {
+                arr[ix++] = (byte) c;
+            } else if (c < 0x800) {
+                arr[ix++] = (byte) (0xC0 | (c >> 6));
+                arr[ix++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(cs.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, cs.charAt(++i));
+                    arr[ix++] = (byte) (0xF0 | (cp >> 18));
+                    arr[ix++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    arr[ix++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    arr[ix++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    arr[ix++] = '?';
+                }
+            } else {
+                arr[ix++] = (byte) (0xE0 | (c >> 12));
+                arr[ix++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                arr[ix++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return ix;
     }
 
     @Override
@@ -105,38 +559,214 @@ public class ResponseAdapter extends WebResponse {
         return resp;
     }
 
-    private CFL cfl() {
-        if (cfl == null) {
-            cfl = new CFL(alloc);
-            resp.setBodyWriter(cfl);
+    /**
+     * Called once Wicket has finished the request cycle and before the
+     * response is sent, to set up the headers that determine how the body is
+     * delimited and whether the connection can be reused afterwards.  Since
+     * the body is fully buffered at this point, its length is known:  a body
+     * under the chunking threshold goes out with a Content-Length in a single
+     * write and flush;  a larger one is streamed chunked.
+     */
+    public void finish() {
+        sealCurrent();
+        if (streamer != null) {
+            if (compressor != null) {
+                ByteBuf tail = compressor.compress(Unpooled.EMPTY_BUFFER, true);
+                compressor.close();
+                compressor = null;
+                streamer.offer(tail);
+            }
+            streamer.finish();
+            return;
+        }
+        int size = body == null ? 0 : body.readableBytes();
+        if (size > 0 && etags && notModified()) {
+            status = HttpResponseStatus.NOT_MODIFIED;
+            body.release();
+            body = null;
+            size = 0;
+        }
+        if (size > 0 && contentLength < 0) {
+            ResponseCompression.Compressor c = startCompression(size);
+            if (c != null) {
+                try {
+                    body = c.compress(body, true);
+                } finally {
+                    c.close();
+                }
+                size = body.readableBytes();
+            }
         }
-        return cfl;
+        if (size > 0) {
+            if (contentLength < 0) {
+                if (size <= chunkThreshold) {
+                    setContentLength(size);
+                } else {
+                    chunked = true;
+                }
+            }
+            bodyWriter = new ContentWriter(body, size <= chunkThreshold ? size : CHUNK_SIZE, keepAlive);
+            body = null;
+        } else {
+            discard();
+            // A 304's Content-Length would describe the page the client
+            // already has, not this empty body
+            if (contentLength < 0 && keepAlive && status != HttpResponseStatus.NOT_MODIFIED) {
+                setContentLength(0);
+            }
+        }
+        addConnectionHeaders();
+        committed();
+    }
+
+    /**
+     * Add an ETag for the body, if it is a stateless page which Wicket did
+     * not tag itself, sent as a plain 200 to a GET, and check it against the
+     * request's.  Wicket's default Cache-Control for pages forbids storing
+     * them, so a browser would never have a copy to revalidate;  that is
+     * relaxed to no-cache, which still makes it ask every time.
+     *
+     * @return true if the client's copy matches
+     */
+    private boolean notModified() {
+        if (!statelessPage || tagged || redir || (status != null && status.code() != 200)
+                || !HttpMethod.GET.equals(evt.getRequest().getMethod())) {
+            return false;
+        }
+        String etag = "W/\"" + hash(body) + '"';
+        header(Headers.ETAG, etag);
+        if (WICKET_NO_CACHE.equals(cacheControl)) {
+            for (Iterator<Header<?>> it = headers.iterator(); it.hasNext();) {
+                if (HttpHeaders.Names.CACHE_CONTROL.equalsIgnoreCase(it.next().type.name())) {
+                    it.remove();
+                }
+            }
+            cacheControl = HttpHeaders.Values.NO_CACHE;
+            header(Headers.stringHeader(HttpHeaders.Names.CACHE_CONTROL), cacheControl);
+        }
+        String match = evt.getHeader(HttpHeaders.Names.IF_NONE_MATCH);
+        // Weak comparison - the W/ prefix does not matter
+        return match != null && (match.contains(etag.substring(2)) || "*".equals(match.trim()));
+    }
+
+    /**
+     * Hash the body a segment at a time, without consolidating it.
+     */
+    private static String hash(ByteBuf body) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        byte[] scratch = null;
+        for (ByteBuffer seg : body.nioBuffers()) {
+            if (seg.hasArray()) {
+                hasher.putBytes(seg.array(), seg.arrayOffset() + seg.position(), seg.remaining());
+            } else {
+                if (scratch == null) {
+                    scratch = new byte[SEGMENT_SIZE];
+                }
+                while (seg.hasRemaining()) {
+                    int count = Math.min(scratch.length, seg.remaining());
+                    seg.get(scratch, 0, count);
+                    hasher.putBytes(scratch, 0, count);
+                }
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    private void addConnectionHeaders() {
+        String connection = ContentWriter.connectionHeader(keepAlive, evt);
+        if (connection != null) {
+            header(Headers.stringHeader(HttpHeaders.Names.CONNECTION), connection);
+        }
+    }
+
+    /**
+     * Release any buffered body content which will not be sent, for example
+     * because the request was rejected.  If the response has already been
+     * committed, the connection is closed once what was sent so far has been
+     * written, since there is no longer any way to report a failure.
+     */
+    public void discard() {
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+        if (body != null) {
+            body.release();
+            body = null;
+        }
+        if (streamer != null) {
+            streamer.abort();
+        }
+        if (compressor != null) {
+            compressor.close();
+            compressor = null;
+        }
+        committed();
     }
 
     @Override
     public void addCookie(Cookie cookie) {
-        resp.add(Headers.SET_COOKIE, CookieConverter.INSTANCE.unconvert(cookie));
+        if (streamer != null) {
+            dropped("cookie " + cookie.getName());
+            return;
+        }
+        cookies = true;
+        header(Headers.SET_COOKIE, CookieConverter.INSTANCE.unconvert(cookie));
     }
 
     @Override
     public void clearCookie(Cookie cookie) {
+        if (streamer != null) {
+            dropped("cookie " + cookie.getName());
+            return;
+        }
+        cookies = true;
         DefaultCookie ck = (DefaultCookie) CookieConverter.INSTANCE.unconvert(cookie);
         ck.setDiscard(true);
-        resp.add(Headers.SET_COOKIE, ck);
+        header(Headers.SET_COOKIE, ck);
     }
 
     @Override
     public void setHeader(String string, String string1) {
-        resp.add(Headers.stringHeader(string), string1);
+        if (streamer != null) {
+            dropped("header " + string);
+            return;
+        }
+        noteHeader(string, string1);
+        header(Headers.stringHeader(string), string1);
     }
 
     @Override
     public void addHeader(String string, String string1) {
-        resp.add(Headers.stringHeader(string), string1);
+        if (streamer != null) {
+            dropped("header " + string);
+            return;
+        }
+        noteHeader(string, string1);
+        header(Headers.stringHeader(string), string1);
+    }
+
+    private void dropped(String what) {
+        log.warn("Response to {} already committed - {} not sent", evt.getRequest().getUri(), what);
+    }
+
+    private void noteHeader(String name, String value) {
+        if (HttpHeaders.Names.CACHE_CONTROL.equalsIgnoreCase(name)) {
+            cacheControl = value;
+        } else if (HttpHeaders.Names.SET_COOKIE.equalsIgnoreCase(name)) {
+            cookies = true;
+        } else if (HttpHeaders.Names.CONTENT_ENCODING.equalsIgnoreCase(name)) {
+            encoded = true;
+        } else if (HttpHeaders.Names.ETAG.equalsIgnoreCase(name)) {
+            tagged = true;
+        }
     }
 
     @Override
     public void setDateHeader(String string, Time time) {
+        if (HttpHeaders.Names.LAST_MODIFIED.equalsIgnoreCase(string)) {
+            lastModified = time.getMilliseconds();
+        }
         DateTime dt = new DateTime(time.getMilliseconds());
         String value = Headers.ISO2822DateFormat.print(dt);
         addHeader(string, value);
@@ -144,23 +774,41 @@ public class ResponseAdapter extends WebResponse {
 
     @Override
     public void setContentLength(long l) {
-        resp.add(Headers.CONTENT_LENGTH, l);
+        if (streamer != null) {
+            dropped("content length");
+            return;
+        }
+        contentLength = l;
+        header(Headers.CONTENT_LENGTH, l);
     }
 
     @Override
     public void setContentType(String string) {
-        resp.add(Headers.CONTENT_TYPE, MediaType.parse(string));
+        if (streamer != null) {
+            dropped("content type " + string);
+            return;
+        }
+        contentType = MediaType.parse(string);
+        header(Headers.CONTENT_TYPE, contentType);
     }
 
     @Override
     public void setStatus(int i) {
+        if (streamer != null) {
+            dropped("status " + i);
+            return;
+        }
         this.status = HttpResponseStatus.valueOf(i);
     }
 
     @Override
     public void sendError(int i, String string) {
+        if (streamer != null) {
+            dropped("status " + i);
+            return;
+        }
         this.status = HttpResponseStatus.valueOf(i);
-        resp.setMessage(string);
+        message = string;
     }
 
     @Override
@@ -174,9 +822,13 @@ public class ResponseAdapter extends WebResponse {
 
     @Override
     public void sendRedirect(String string) {
+        if (streamer != null) {
+            dropped("redirect to " + string);
+            return;
+        }
         setStatus(307);
         try {
-            resp.add(Headers.LOCATION, new URI(encodeRedirectURL(string)));
+            header(Headers.LOCATION, new URI(encodeRedirectURL(string)));
         } catch (URISyntaxException ex) {
             Exceptions.chuck(ex);
         }
@@ -190,44 +842,25 @@ public class ResponseAdapter extends WebResponse {
 
     @Override
     public void flush() {
-        //do nothing
         flushed = true;
+        if (streamer != null) {
+            // Hand off what has been rendered so far
+            sealCurrent();
+        }
     }
 
-    static class CFL implements ChannelFutureListener {
-
-        private final List<byte[]> bytes = new LinkedList<>();
-        private Iterator<byte[]> iter;
-        private final ByteBufAllocator alloc;
+    private static final class Header<T> {
 
-        public CFL(ByteBufAllocator alloc) {
-            this.alloc = alloc;
-        }
+        private final HeaderValueType<T> type;
+        private final T value;
 
-        CFL add(byte[] bytes) {
-            if (iter != null) {
-                throw new IllegalStateException("Cannot add bytes to write while content is being written");
-            }
-            if (bytes.length > 0) {
-                this.bytes.add(bytes);
-            }
-            return this;
+        Header(HeaderValueType<T> type, T value) {
+            this.type = type;
+            this.value = value;
         }
 
-        @Override
-        public void operationComplete(ChannelFuture f) throws Exception {
-            if (iter == null) {
-                iter = bytes.iterator();
-            }
-            if (!iter.hasNext()) {
-                f = f.channel().writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT).addListener(CLOSE);
-                bytes.clear();
-                iter = null;
-            } else {
-                byte[] bytes = iter.next();
-                ByteBuf buf = alloc.buffer().writeBytes(bytes);
-                f = f.channel().writeAndFlush(new DefaultHttpContent(buf)).addListener(this);
-            }
+        void applyTo(com.mastfrog.acteur.Response target) {
+            target.add(type, value);
         }
     }
 }
@@ -0,0 +1,301 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.adapters;
+
+import com.google.common.net.MediaType;
+import com.google.inject.Singleton;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_RESPONSE_COMPRESSION;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_RESPONSE_COMPRESSION_LEVEL;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_RESPONSE_COMPRESSION_MIN_BYTES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_RESPONSE_COMPRESSION_TYPES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_RESPONSE_COMPRESSION;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_RESPONSE_COMPRESSION_LEVEL;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_RESPONSE_COMPRESSION_MIN_BYTES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_RESPONSE_COMPRESSION_TYPES;
+import com.mastfrog.settings.Settings;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import javax.inject.Inject;
+
+/**
+ * Compression of dynamic responses - rendered pages and Ajax responses -
+ * as they are written.  Whether a response is compressed is decided by its
+ * content type, the client's Accept-Encoding header and, for responses
+ * which are buffered until finished, a minimum size.  Deflaters are
+ * reused across responses rather than allocated for each one.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+public final class ResponseCompression {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    private static final int POOL_SIZE = 64;
+    private static final int SCRATCH_SIZE = 16384;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private final boolean enabled;
+    private final int level;
+    private final int minBytes;
+    private final Set<String> types = new HashSet<>();
+    private final BlockingQueue<Deflater> gzipDeflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final BlockingQueue<Deflater> zlibDeflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[SCRATCH_SIZE];
+        }
+    };
+
+    @Inject
+    ResponseCompression(Settings settings) {
+        enabled = settings.getBoolean(SETTINGS_KEY_RESPONSE_COMPRESSION, DEFAULT_RESPONSE_COMPRESSION);
+        level = settings.getInt(SETTINGS_KEY_RESPONSE_COMPRESSION_LEVEL, DEFAULT_RESPONSE_COMPRESSION_LEVEL);
+        minBytes = settings.getInt(SETTINGS_KEY_RESPONSE_COMPRESSION_MIN_BYTES, DEFAULT_RESPONSE_COMPRESSION_MIN_BYTES);
+        for (String type : settings.getString(SETTINGS_KEY_RESPONSE_COMPRESSION_TYPES, DEFAULT_RESPONSE_COMPRESSION_TYPES).split(",")) {
+            if (!type.trim().isEmpty()) {
+                types.add(type.trim().toLowerCase());
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    int minBytes() {
+        return minBytes;
+    }
+
+    /**
+     * Whether responses of a content type should be compressed.
+     */
+    boolean accepts(MediaType type) {
+        return enabled && type != null && types.contains(type.withoutParameters().toString());
+    }
+
+    /**
+     * Whether a complete body of a content type and size should be
+     * compressed.
+     */
+    public boolean accepts(MediaType type, int size) {
+        return size >= minBytes && accepts(type);
+    }
+
+    /**
+     * Pick gzip or deflate, in that order of preference, if the client
+     * accepts them - either by name or as * - with a non-zero quality.
+     *
+     * @param acceptEncoding The value of an Accept-Encoding header, or null
+     * @return {@link #GZIP}, {@link #DEFLATE} or null for neither
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for (String part : acceptEncoding.split(",")) {
+            int semi = part.indexOf(';');
+            String name = (semi < 0 ? part : part.substring(0, semi)).trim();
+            float q = semi < 0 ? 1 : quality(part.substring(semi + 1));
+            if (GZIP.equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+                gzip = q;
+            } else if (DEFLATE.equalsIgnoreCase(name)) {
+                deflate = q;
+            } else if ("*".equals(name)) {
+                any = q;
+            }
+        }
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    private static float quality(String params) {
+        for (String param : params.split(";")) {
+            param = param.trim();
+            if (param.startsWith("q=") || param.startsWith("Q=")) {
+                try {
+                    return Float.parseFloat(param.substring(2).trim());
+                } catch (NumberFormatException ex) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Start compressing a response.
+     *
+     * @param encoding {@link #GZIP} or {@link #DEFLATE}
+     * @param alloc Allocator for compressed output
+     * @return A compressor, which must be closed
+     */
+    Compressor open(String encoding, ByteBufAllocator alloc) {
+        boolean gzip = GZIP.equals(encoding);
+        Deflater deflater = (gzip ? gzipDeflaters : zlibDeflaters).poll();
+        if (deflater == null) {
+            // gzip wraps raw deflate output in its own header and trailer
+            deflater = new Deflater(level, gzip);
+        }
+        return new Compressor(deflater, gzip, alloc);
+    }
+
+    /**
+     * Compress a complete body in one go, for caching.
+     *
+     * @param content The content, which is not released
+     * @param encoding {@link #GZIP} or {@link #DEFLATE}
+     * @param alloc Allocator for the result
+     * @return The compressed content
+     */
+    public ByteBuf compress(ByteBuf content, String encoding, ByteBufAllocator alloc) {
+        Compressor compressor = open(encoding, alloc);
+        try {
+            return compressor.compress(content.duplicate().retain(), true);
+        } finally {
+            compressor.close();
+        }
+    }
+
+    private void release(Deflater deflater, boolean gzip) {
+        deflater.reset();
+        if (!(gzip ? gzipDeflaters : zlibDeflaters).offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Compresses the body of one response, a buffer at a time.  Not thread
+     * safe - used by whichever thread is rendering the response.
+     */
+    final class Compressor {
+
+        private final Deflater deflater;
+        private final boolean gzip;
+        private final ByteBufAllocator alloc;
+        private final CRC32 crc;
+        private boolean started;
+        private boolean closed;
+
+        Compressor(Deflater deflater, boolean gzip, ByteBufAllocator alloc) {
+            this.deflater = deflater;
+            this.gzip = gzip;
+            this.alloc = alloc;
+            this.crc = gzip ? new CRC32() : null;
+        }
+
+        /**
+         * Compress a buffer, releasing it.
+         *
+         * @param in The uncompressed bytes
+         * @param last If true, finish the stream;  if false, flush it so
+         * that everything so far can be decompressed by the client
+         * @return The compressed bytes, possibly empty
+         */
+        ByteBuf compress(ByteBuf in, boolean last) {
+            ByteBuf out = alloc.buffer(Math.max(64, in.readableBytes() / 4));
+            try {
+                if (!started && gzip) {
+                    out.writeBytes(GZIP_HEADER);
+                }
+                started = true;
+                byte[] buf = scratch.get();
+                while (in.isReadable()) {
+                    int count = Math.min(buf.length / 2, in.readableBytes());
+                    byte[] input;
+                    int offset;
+                    if (in.hasArray()) {
+                        input = in.array();
+                        offset = in.arrayOffset() + in.readerIndex();
+                    } else {
+                        in.getBytes(in.readerIndex(), buf, buf.length / 2, count);
+                        input = buf;
+                        offset = buf.length / 2;
+                    }
+                    in.skipBytes(count);
+                    if (gzip) {
+                        crc.update(input, offset, count);
+                    }
+                    deflater.setInput(input, offset, count);
+                    // Output goes in the first half of the scratch array
+                    while (!deflater.needsInput()) {
+                        deflate(out, buf, Deflater.NO_FLUSH);
+                    }
+                }
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        deflate(out, buf, Deflater.NO_FLUSH);
+                    }
+                    if (gzip) {
+                        // Trailer is little-endian
+                        out.writeInt(Integer.reverseBytes((int) crc.getValue()));
+                        out.writeInt(Integer.reverseBytes(deflater.getTotalIn()));
+                    }
+                } else {
+                    int count;
+                    do {
+                        count = deflate(out, buf, Deflater.SYNC_FLUSH);
+                    } while (count == buf.length / 2);
+                }
+                return out;
+            } catch (RuntimeException | Error e) {
+                out.release();
+                throw e;
+            } finally {
+                in.release();
+            }
+        }
+
+        private int deflate(ByteBuf out, byte[] buf, int flush) {
+            int count = deflater.deflate(buf, 0, buf.length / 2, flush);
+            out.writeBytes(buf, 0, count);
+            return count;
+        }
+
+        void close() {
+            if (!closed) {
+                closed = true;
+                release(deflater, gzip);
+            }
+        }
+    }
+}
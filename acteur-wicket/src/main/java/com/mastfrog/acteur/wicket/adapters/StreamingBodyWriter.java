@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.adapters;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Body writer for a response which is committed while Wicket is still
+ * rendering.  Buffers are offered by the rendering thread as they fill, and
+ * written as chunks by whichever thread gets there first - the rendering
+ * thread if the channel is idle, or the event loop when the previous write
+ * completes - so only one write is ever in flight.
+ *
+ * @author Tim Boudreau
+ */
+final class StreamingBodyWriter implements ChannelFutureListener {
+
+    private final Deque<ByteBuf> pending = new ArrayDeque<>();
+    private final boolean keepAlive;
+    private Channel channel;
+    private boolean writing;
+    private boolean done;
+    private boolean aborted;
+    private boolean closed;
+
+    StreamingBodyWriter(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    void offer(ByteBuf buf) {
+        synchronized (this) {
+            if (aborted || closed) {
+                buf.release();
+                return;
+            }
+            pending.add(buf);
+        }
+        drain();
+    }
+
+    void finish() {
+        synchronized (this) {
+            done = true;
+        }
+        drain();
+    }
+
+    void abort() {
+        synchronized (this) {
+            aborted = true;
+            done = true;
+            releasePending();
+        }
+        drain();
+    }
+
+    private void releasePending() {
+        for (ByteBuf buf : pending) {
+            buf.release();
+        }
+        pending.clear();
+    }
+
+    @Override
+    public void operationComplete(ChannelFuture f) throws Exception {
+        synchronized (this) {
+            channel = f.channel();
+            writing = false;
+            if (!f.isSuccess()) {
+                aborted = true;
+                releasePending();
+            }
+        }
+        drain();
+    }
+
+    private void drain() {
+        Channel ch;
+        ByteBuf[] toWrite;
+        boolean last;
+        synchronized (this) {
+            if (channel == null || writing || closed) {
+                return;
+            }
+            if (aborted) {
+                closed = true;
+                channel.close();
+                return;
+            }
+            if (pending.isEmpty() && !done) {
+                return;
+            }
+            toWrite = pending.toArray(new ByteBuf[pending.size()]);
+            pending.clear();
+            last = done;
+            closed = last;
+            writing = !last;
+            ch = channel;
+        }
+        if (last) {
+            for (ByteBuf buf : toWrite) {
+                ch.write(new DefaultHttpContent(buf));
+            }
+            ChannelFuture f = ch.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+            if (!keepAlive) {
+                f.addListener(CLOSE);
+            }
+        } else {
+            // Listen on the last chunk, so we hear about the flush completing
+            for (int i = 0; i < toWrite.length - 1; i++) {
+                ch.write(new DefaultHttpContent(toWrite[i]));
+            }
+            ch.writeAndFlush(new DefaultHttpContent(toWrite[toWrite.length - 1])).addListener(this);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.replication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decides which classes session attributes received from other nodes may
+ * be deserialized as:  those whose names start with one of a list of
+ * prefixes, loaded only from the application's class loader, less a few
+ * packages whose classes are known to do dangerous things when
+ * deserialized.
+ *
+ * @author Tim Boudreau
+ */
+final class ClassFilter {
+
+    /**
+     * Always allowed - what Wicket keeps in a session is made of these,
+     * what this library sets on Wicket sessions, the application's own
+     * classes and whatever libraries it uses.
+     */
+    static final List<String> DEFAULT_PREFIXES = Collections.unmodifiableList(Arrays.asList(
+            "java.lang.", "java.util.", "java.math.", "java.net.URI", "java.io.File", "java.text.",
+            "java.time.", "org.apache.wicket.", "com.mastfrog.acteur.wicket."));
+    /**
+     * Wicket's file upload items write files when deserialized.
+     */
+    private static final List<String> DENIED_PREFIXES = Collections.unmodifiableList(Arrays.asList(
+            "org.apache.wicket.util.upload."));
+    private final ClassLoader loader;
+    private final List<String> prefixes;
+
+    /**
+     * Create a filter.
+     *
+     * @param loader The class loader classes are resolved against
+     * @param prefixes Class name prefixes allowed besides the defaults
+     */
+    ClassFilter(ClassLoader loader, List<String> prefixes) {
+        this.loader = loader;
+        List<String> all = new ArrayList<>(DEFAULT_PREFIXES);
+        all.addAll(prefixes);
+        this.prefixes = Collections.unmodifiableList(all);
+    }
+
+    /**
+     * Whether a class may be deserialized.
+     *
+     * @param name The class name, or the name of an array class as
+     * returned by Class.getName()
+     * @return true if it is allowed
+     */
+    boolean allows(String name) {
+        int dims = 0;
+        while (dims < name.length() && name.charAt(dims) == '[') {
+            dims++;
+        }
+        if (dims > 0) {
+            if (name.length() == dims + 1) {
+                // Array of primitives
+                return true;
+            }
+            if (name.charAt(dims) != 'L' || !name.endsWith(";")) {
+                return false;
+            }
+            name = name.substring(dims + 1, name.length() - 1);
+        }
+        for (String denied : DENIED_PREFIXES) {
+            if (name.startsWith(denied)) {
+                return false;
+            }
+        }
+        for (String prefix : prefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deserialize an object, refusing classes this filter does not allow.
+     *
+     * @param in The serialized form
+     * @return The object
+     * @throws IOException if the data is bad or contains a class which is
+     * not allowed
+     * @throws ClassNotFoundException if a class is not found
+     */
+    Serializable read(InputStream in) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream oin = new FilteringObjectInputStream(in)) {
+            return (Serializable) oin.readObject();
+        }
+    }
+
+    private final class FilteringObjectInputStream extends ObjectInputStream {
+
+        FilteringObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+            if (!allows(name)) {
+                throw new InvalidClassException(name, "Not allowed in replicated sessions");
+            }
+            return Class.forName(name, false, loader);
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+            for (String name : interfaces) {
+                if (!allows(name)) {
+                    throw new InvalidClassException(name, "Not allowed in replicated sessions");
+                }
+            }
+            return super.resolveProxyClass(interfaces);
+        }
+    }
+}
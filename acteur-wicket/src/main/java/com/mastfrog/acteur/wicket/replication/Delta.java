@@ -0,0 +1,184 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.replication;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Serialized changes to one session, as sent between nodes.  A delta with
+ * the removed flag set means the session was invalidated;  one with the
+ * state flag set carries all of the session's attributes, replacing
+ * whatever the receiver had;  one which sets and removes nothing only
+ * records that the session was used.
+ *
+ * @author Tim Boudreau
+ */
+final class Delta {
+
+    private static final byte CHANGED = 1;
+    private static final byte REMOVED = 2;
+    private static final byte STATE = 3;
+    final String id;
+    final String userAgent;
+    final long created;
+    long lastAccessed;
+    final Map<String, byte[]> set;
+    final Set<String> removed;
+    final boolean sessionRemoved;
+    final boolean state;
+
+    Delta(String id, String userAgent, long created, long lastAccessed, Map<String, byte[]> set, Set<String> removed) {
+        this(id, userAgent, created, lastAccessed, set, removed, false, false);
+    }
+
+    private Delta(String id, String userAgent, long created, long lastAccessed, Map<String, byte[]> set, Set<String> removed, boolean sessionRemoved, boolean state) {
+        this.id = id;
+        this.userAgent = userAgent;
+        this.created = created;
+        this.lastAccessed = lastAccessed;
+        this.set = set;
+        this.removed = removed;
+        this.sessionRemoved = sessionRemoved;
+        this.state = state;
+    }
+
+    static Delta removal(String id) {
+        return new Delta(id, null, 0, 0, new LinkedHashMap<String, byte[]>(), new LinkedHashSet<String>(), true, false);
+    }
+
+    static Delta state(String id, Replica replica) {
+        return new Delta(id, replica.userAgent, replica.created, replica.lastAccessed,
+                new LinkedHashMap<>(replica.attributes), new LinkedHashSet<String>(), false, true);
+    }
+
+    /**
+     * Whether this delta only records that the session was used.
+     */
+    boolean isAccess() {
+        return !sessionRemoved && !state && set.isEmpty() && removed.isEmpty();
+    }
+
+    /**
+     * Fold a later delta for the same session into this one, so a session
+     * changed by several requests before its changes are sent costs one
+     * entry.
+     *
+     * @param later The later delta
+     * @return The merged delta - whichever removes the session, if either
+     * does
+     */
+    Delta merge(Delta later) {
+        if (sessionRemoved) {
+            // Ids are never reused, so nothing after a removal matters
+            return this;
+        } else if (later.sessionRemoved) {
+            return later;
+        }
+        for (Map.Entry<String, byte[]> e : later.set.entrySet()) {
+            set.put(e.getKey(), e.getValue());
+            removed.remove(e.getKey());
+        }
+        for (String name : later.removed) {
+            set.remove(name);
+            removed.add(name);
+        }
+        lastAccessed = Math.max(lastAccessed, later.lastAccessed);
+        return this;
+    }
+
+    /**
+     * Approximate encoded size in bytes, for batching and for limiting how
+     * much unsent data is held.
+     */
+    int size() {
+        int result = 32 + id.length() * 2;
+        for (Map.Entry<String, byte[]> e : set.entrySet()) {
+            result += 8 + e.getKey().length() * 2 + e.getValue().length;
+        }
+        for (String name : removed) {
+            result += 4 + name.length() * 2;
+        }
+        return result;
+    }
+
+    void write(ByteBuf buf) throws IOException {
+        try (ByteBufOutputStream out = new ByteBufOutputStream(buf)) {
+            out.writeByte(sessionRemoved ? REMOVED : state ? STATE : CHANGED);
+            out.writeUTF(id);
+            if (sessionRemoved) {
+                return;
+            }
+            out.writeBoolean(userAgent != null);
+            if (userAgent != null) {
+                out.writeUTF(userAgent);
+            }
+            out.writeLong(created);
+            out.writeLong(lastAccessed);
+            out.writeInt(set.size());
+            for (Map.Entry<String, byte[]> e : set.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().length);
+                out.write(e.getValue());
+            }
+            out.writeInt(removed.size());
+            for (String name : removed) {
+                out.writeUTF(name);
+            }
+        }
+    }
+
+    static Delta read(ByteBuf buf) throws IOException {
+        try (ByteBufInputStream in = new ByteBufInputStream(buf)) {
+            byte type = in.readByte();
+            String id = in.readUTF();
+            if (type == REMOVED) {
+                return removal(id);
+            } else if (type != CHANGED && type != STATE) {
+                throw new IOException("Unknown message type " + type);
+            }
+            String ua = in.readBoolean() ? in.readUTF() : null;
+            long created = in.readLong();
+            long lastAccessed = in.readLong();
+            Map<String, byte[]> set = new LinkedHashMap<>();
+            for (int i = 0, count = in.readInt(); i < count; i++) {
+                String name = in.readUTF();
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                set.put(name, value);
+            }
+            Set<String> removed = new LinkedHashSet<>();
+            for (int i = 0, count = in.readInt(); i < count; i++) {
+                removed.add(in.readUTF());
+            }
+            return new Delta(id, ua, created, lastAccessed, set, removed, false, type == STATE);
+        }
+    }
+}
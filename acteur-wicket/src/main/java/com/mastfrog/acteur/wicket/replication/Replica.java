@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.replication;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The serialized state of a session as known to this node.
+ *
+ * @author Tim Boudreau
+ */
+final class Replica {
+
+    final String userAgent;
+    final long created;
+    volatile long lastAccessed;
+    final Map<String, byte[]> attributes = new ConcurrentHashMap<>();
+
+    Replica(String userAgent, long created, long lastAccessed) {
+        this.userAgent = userAgent;
+        this.created = created;
+        this.lastAccessed = lastAccessed;
+    }
+
+    synchronized void apply(Delta delta) {
+        attributes.putAll(delta.set);
+        for (String name : delta.removed) {
+            attributes.remove(name);
+        }
+        lastAccessed = Math.max(lastAccessed, delta.lastAccessed);
+    }
+
+    /**
+     * Replace all attributes with those in a full-state delta, unless this
+     * copy has been used more recently than the one it was taken from.
+     *
+     * @param delta A delta with the state flag set
+     * @return true if it was applied
+     */
+    synchronized boolean replace(Delta delta) {
+        if (lastAccessed > delta.lastAccessed) {
+            return false;
+        }
+        attributes.keySet().retainAll(delta.set.keySet());
+        attributes.putAll(delta.set);
+        lastAccessed = delta.lastAccessed;
+        return true;
+    }
+}
@@ -0,0 +1,766 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.replication;
+
+import com.google.inject.Singleton;
+import com.mastfrog.acteur.wicket.SessionChange;
+import com.mastfrog.acteur.wicket.SessionStorage;
+import com.mastfrog.acteur.wicket.WicketConfig;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_REPLICATION_BATCH_BYTES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_REPLICATION_HOST;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_REPLICATION_PENDING_BYTES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_REPLICATION_PORT;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.DEFAULT_SESSION_IDLE_TIMEOUT_MINUTES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_REPLICATION_BATCH_BYTES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_REPLICATION_CLASSES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_REPLICATION_HOST;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_REPLICATION_PEERS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_REPLICATION_PENDING_BYTES;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_REPLICATION_PORT;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_REPLICATION_SECRET;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SESSION_IDLE_TIMEOUT_MINUTES;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import com.mastfrog.settings.Settings;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SessionStorage which replicates every session to a fixed set of peer
+ * nodes over a simple length-prefixed TCP protocol, so that any node can
+ * serve any user.
+ * <p>
+ * Changes are serialized on the request thread - which is all the request
+ * pays for - and queued;  changes to the same session are merged while
+ * queued, and sent in batches by a single event loop thread.  If peers
+ * cannot keep up and the queue reaches its size limit, rather than making
+ * requests wait, the queued changes are discarded and peers are instead sent
+ * the full state of every session once they can take it.
+ * <p>
+ * Every node keeps the serialized state of every session, its own included,
+ * so that when a session is changed elsewhere the stale live copy here can
+ * simply be dropped and rebuilt on its next request.  That copy is also
+ * what a peer is sent each time this node connects to it, so a node which
+ * starts late or loses its connection for a while catches up;  a session
+ * invalidated while a peer was unreachable lingers there until it expires.
+ * <p>
+ * Requests which use a session without changing it are replicated too, at
+ * most once a minute per session, so that a session in use on one node does
+ * not expire on the others.
+ * <p>
+ * Replication messages carry serialized Java objects which are deserialized
+ * by the receiver, so the port should only be reachable by other nodes of
+ * the same application.  It listens on the loopback interface by default;
+ * to listen on any other address, a secret shared by all nodes must be set,
+ * and every message then carries an HMAC-SHA256 of its contents keyed by
+ * it, a random nonce the receiver sent when the connection was opened, and
+ * the message's sequence number on that connection - so messages can be
+ * neither forged nor replayed.  A connection which sends a message with a
+ * bad signature is closed.  Attributes are only deserialized as classes
+ * the {@link ClassFilter} allows, from the application's class loader.
+ * Messages are not encrypted.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+public final class ReplicatedSessionStorage implements SessionStorage, Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicatedSessionStorage.class);
+    private static final int MAX_FRAME = 64 * 1024 * 1024;
+    private static final long ACCESS_RESOLUTION_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_BYTES = 32;
+    private static final int NONCE_BYTES = 16;
+    private final ConcurrentMap<String, Replica> replicas = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, Delta> pending = new LinkedHashMap<>();
+    private int pendingBytes;
+    private boolean resync;
+    private final int maxPendingBytes;
+    private final int batchBytes;
+    private final long idleTimeoutMillis;
+    /**
+     * Null if messages are not signed.
+     */
+    private final SecretKeySpec secret;
+    private final SecureRandom random = new SecureRandom();
+    private final ClassFilter classes;
+    private final NioEventLoopGroup group;
+    private final Channel server;
+    private final List<Peer> peers = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicLong resyncs = new AtomicLong();
+    private volatile Listener listener;
+    private volatile boolean closed;
+
+    @Inject
+    public ReplicatedSessionStorage(Settings settings, ShutdownHookRegistry reg, WicketConfig config) throws InterruptedException, IOException {
+        String host = settings.getString(SETTINGS_KEY_REPLICATION_HOST, DEFAULT_REPLICATION_HOST);
+        String secretSetting = settings.getString(SETTINGS_KEY_REPLICATION_SECRET);
+        if (secretSetting == null || secretSetting.isEmpty()) {
+            if (!InetAddress.getByName(host).isLoopbackAddress()) {
+                throw new IllegalArgumentException(SETTINGS_KEY_REPLICATION_HOST + " is " + host
+                        + ", which is not a loopback address, but " + SETTINGS_KEY_REPLICATION_SECRET
+                        + " is not set - anyone who can reach the port could replace any session");
+            }
+            secret = null;
+        } else {
+            secret = new SecretKeySpec(secretSetting.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+        }
+        Class<?> appType = config.applicationClass();
+        List<String> allowed = new ArrayList<>();
+        if (appType.getPackage() != null) {
+            allowed.add(appType.getPackage().getName() + '.');
+        }
+        String extra = settings.getString(SETTINGS_KEY_REPLICATION_CLASSES);
+        if (extra != null) {
+            for (String prefix : extra.split(",")) {
+                if (!prefix.trim().isEmpty()) {
+                    allowed.add(prefix.trim());
+                }
+            }
+        }
+        classes = new ClassFilter(appType.getClassLoader(), allowed);
+        maxPendingBytes = settings.getInt(SETTINGS_KEY_REPLICATION_PENDING_BYTES, DEFAULT_REPLICATION_PENDING_BYTES);
+        batchBytes = settings.getInt(SETTINGS_KEY_REPLICATION_BATCH_BYTES, DEFAULT_REPLICATION_BATCH_BYTES);
+        idleTimeoutMillis = TimeUnit.MINUTES.toMillis(settings.getLong(
+                SETTINGS_KEY_SESSION_IDLE_TIMEOUT_MINUTES, DEFAULT_SESSION_IDLE_TIMEOUT_MINUTES));
+        group = new NioEventLoopGroup(1, new DefaultThreadFactory("wicket-replication", true));
+        reg.add(this);
+        InetSocketAddress addr = new InetSocketAddress(host,
+                settings.getInt(SETTINGS_KEY_REPLICATION_PORT, DEFAULT_REPLICATION_PORT));
+        server = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(MAX_FRAME, 0, 4, 0, 4),
+                                new LengthFieldPrepender(4), new Receiver());
+                    }
+                }).bind(addr).sync().channel();
+        log.info("Session replication listening on {}", server.localAddress());
+        String peerList = settings.getString(SETTINGS_KEY_REPLICATION_PEERS);
+        if (peerList != null) {
+            for (String peer : peerList.split(",")) {
+                peer = peer.trim();
+                int ix = peer.lastIndexOf(':');
+                if (ix <= 0) {
+                    throw new IllegalArgumentException("Bad peer address '" + peer
+                            + "' in " + SETTINGS_KEY_REPLICATION_PEERS);
+                }
+                connect(new InetSocketAddress(peer.substring(0, ix), Integer.parseInt(peer.substring(ix + 1))));
+            }
+        }
+        group.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                expireReplicas();
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * The address this node listens on for changes from its peers - useful
+     * when the port was chosen automatically.
+     *
+     * @return The address
+     */
+    public InetSocketAddress localAddress() {
+        return (InetSocketAddress) server.localAddress();
+    }
+
+    /**
+     * Replicate to another node in addition to those in settings.
+     *
+     * @param address The address the node's replication port listens on
+     */
+    public void connect(InetSocketAddress address) {
+        Peer peer = new Peer(address);
+        peers.add(peer);
+        peer.connect();
+    }
+
+    /**
+     * The number of times too much unsent data was queued, so peers were
+     * sent the full state of every session instead.
+     *
+     * @return A count
+     */
+    public long resyncs() {
+        return resyncs.get();
+    }
+
+    @Override
+    public void attach(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void changed(SessionChange change) {
+        if (change.changed().isEmpty() && change.removed().isEmpty()) {
+            accessed(change);
+            return;
+        }
+        Map<String, byte[]> set = new LinkedHashMap<>();
+        for (Map.Entry<String, Serializable> e : change.changed().entrySet()) {
+            try {
+                set.put(e.getKey(), serialize(e.getValue()));
+            } catch (IOException ex) {
+                log.warn("Could not serialize session attribute " + e.getKey(), ex);
+            }
+        }
+        Delta delta = new Delta(change.id(), change.userAgent(), change.created(),
+                change.lastAccessed(), set, new LinkedHashSet<>(change.removed()));
+        apply(delta);
+        enqueue(delta);
+    }
+
+    private void accessed(SessionChange change) {
+        Replica replica = replicas.get(change.id());
+        long previous = replica == null ? 0 : replica.lastAccessed;
+        Delta delta = new Delta(change.id(), change.userAgent(), change.created(),
+                change.lastAccessed(), new LinkedHashMap<String, byte[]>(), new LinkedHashSet<String>());
+        apply(delta);
+        if (change.lastAccessed() - previous >= ACCESS_RESOLUTION_MILLIS) {
+            enqueue(delta);
+        }
+    }
+
+    @Override
+    public void removed(String sessionId) {
+        replicas.remove(sessionId);
+        enqueue(Delta.removal(sessionId));
+    }
+
+    @Override
+    public SessionChange load(String sessionId) {
+        Replica replica = replicas.get(sessionId);
+        if (replica == null) {
+            return null;
+        }
+        Map<String, Serializable> attributes = new HashMap<>();
+        for (Map.Entry<String, byte[]> e : replica.attributes.entrySet()) {
+            try {
+                attributes.put(e.getKey(), deserialize(e.getValue()));
+            } catch (IOException | ClassNotFoundException ex) {
+                log.warn("Could not deserialize attribute " + e.getKey() + " of session " + sessionId, ex);
+            }
+        }
+        return new SessionChange(sessionId, replica.userAgent, replica.created,
+                replica.lastAccessed, attributes, new HashSet<String>());
+    }
+
+    @Override
+    public void close() {
+        run();
+    }
+
+    @Override
+    public void run() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        server.close();
+        for (Peer peer : peers) {
+            peer.close();
+        }
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    private void apply(Delta delta) {
+        if (delta.sessionRemoved) {
+            replicas.remove(delta.id);
+            return;
+        }
+        Replica replica = replicas.get(delta.id);
+        if (replica == null) {
+            replica = new Replica(delta.userAgent, delta.created, delta.lastAccessed);
+            Replica old = replicas.putIfAbsent(delta.id, replica);
+            if (old != null) {
+                replica = old;
+            }
+        }
+        replica.apply(delta);
+    }
+
+    private void expireReplicas() {
+        // Allow for accesses elsewhere not yet having been sent
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis - ACCESS_RESOLUTION_MILLIS;
+        for (Iterator<Map.Entry<String, Replica>> it = replicas.entrySet().iterator(); it.hasNext();) {
+            if (it.next().getValue().lastAccessed < cutoff) {
+                it.remove();
+            }
+        }
+    }
+
+    private void enqueue(Delta delta) {
+        if (peers.isEmpty()) {
+            return;
+        }
+        int size = delta.size();
+        synchronized (pending) {
+            if (!resync && pendingBytes + size > maxPendingBytes) {
+                // Too far behind to send changes one by one - every change
+                // is already in the replicas, so send those instead.  Only
+                // removals are not, and they are small
+                for (Iterator<Delta> it = pending.values().iterator(); it.hasNext();) {
+                    Delta d = it.next();
+                    if (!d.sessionRemoved) {
+                        it.remove();
+                        pendingBytes -= d.size();
+                    }
+                }
+                resync = true;
+                long count = resyncs.incrementAndGet();
+                log.warn("Session replication fell {} bytes behind - sending peers all sessions "
+                        + "(resync {})", maxPendingBytes, count);
+            }
+            if (resync && !delta.sessionRemoved) {
+                // Will be sent as part of the full state
+                scheduleFlush();
+                return;
+            }
+            Delta existing = pending.remove(delta.id);
+            if (existing != null) {
+                pendingBytes -= existing.size();
+                delta = existing.merge(delta);
+            }
+            pending.put(delta.id, delta);
+            pendingBytes += delta.size();
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (!closed && flushScheduled.compareAndSet(false, true)) {
+            group.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flushScheduled.set(false);
+                    flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * Send any full state peers are owed, then queued changes in batches
+     * while every connected peer can accept more;  if one cannot, stop and
+     * try again when it can, leaving changes queued (and merging) in the
+     * meantime.
+     */
+    private void flush() {
+        List<Peer> connected = new ArrayList<>(peers.size());
+        List<Channel> targets = new ArrayList<>(peers.size());
+        for (Peer peer : peers) {
+            Channel ch = peer.channel;
+            if (ch != null && ch.isActive()) {
+                connected.add(peer);
+                targets.add(ch);
+            }
+        }
+        if (targets.isEmpty()) {
+            // Changes stay queued until a peer is back;  if that takes too
+            // long they are replaced by a resync, which connecting does anyway
+            return;
+        }
+        boolean resyncing;
+        synchronized (pending) {
+            resyncing = resync;
+            resync = false;
+        }
+        boolean sendingState = false;
+        for (int i = 0; i < connected.size(); i++) {
+            Peer peer = connected.get(i);
+            if (resyncing) {
+                // Changes applied from here on are queued again, so
+                // iterating the live map misses nothing
+                peer.state = replicas.entrySet().iterator();
+            }
+            sendingState |= !sendState(peer, targets.get(i));
+        }
+        if (sendingState) {
+            return;
+        }
+        for (;;) {
+            for (Channel ch : targets) {
+                if (!ch.isWritable()) {
+                    return;
+                }
+            }
+            List<Delta> batch = new ArrayList<>();
+            synchronized (pending) {
+                int bytes = 0;
+                for (Iterator<Delta> it = pending.values().iterator(); it.hasNext() && (batch.isEmpty() || bytes < batchBytes);) {
+                    Delta d = it.next();
+                    it.remove();
+                    int size = d.size();
+                    pendingBytes -= size;
+                    bytes += size;
+                    batch.add(d);
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            send(batch, connected);
+        }
+    }
+
+    /**
+     * Send a peer as much of the full state it is owed as it can take.
+     *
+     * @return true if it has been sent all of it
+     */
+    private boolean sendState(Peer peer, Channel ch) {
+        while (peer.state != null && ch.isWritable()) {
+            List<Delta> batch = new ArrayList<>();
+            int bytes = 0;
+            while (peer.state.hasNext() && (batch.isEmpty() || bytes < batchBytes)) {
+                Map.Entry<String, Replica> e = peer.state.next();
+                Delta d = Delta.state(e.getKey(), e.getValue());
+                bytes += d.size();
+                batch.add(d);
+            }
+            if (!peer.state.hasNext()) {
+                peer.state = null;
+            }
+            if (!batch.isEmpty()) {
+                send(batch, Collections.singletonList(peer));
+            }
+        }
+        return peer.state == null;
+    }
+
+    private void send(List<Delta> batch, List<Peer> targets) {
+        ByteBuf frame = server.alloc().buffer(batchBytes);
+        try {
+            frame.writeInt(batch.size());
+            for (Delta d : batch) {
+                d.write(frame);
+            }
+            for (Peer peer : targets) {
+                Channel ch = peer.channel;
+                if (ch == null) {
+                    continue;
+                }
+                if (secret == null) {
+                    ch.writeAndFlush(frame.duplicate().retain());
+                } else {
+                    byte[] signature = sign(peer.nonce, peer.sequence++, frame);
+                    ch.writeAndFlush(Unpooled.wrappedBuffer(frame.duplicate().retain(),
+                            Unpooled.wrappedBuffer(signature)));
+                }
+            }
+        } catch (IOException ex) {
+            log.warn("Could not encode session changes", ex);
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Compute the signature of a message.
+     *
+     * @param nonce The nonce the receiver sent for the connection
+     * @param sequence The message's sequence number on the connection
+     * @param payload The message, which is not consumed
+     * @return The signature
+     */
+    private byte[] sign(byte[] nonce, long sequence, ByteBuf payload) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(secret);
+            mac.update(nonce);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                mac.update((byte) (sequence >>> shift));
+            }
+            mac.update(payload.nioBuffer());
+            return mac.doFinal();
+        } catch (GeneralSecurityException ex) {
+            // HmacSHA256 is required of every JRE
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void received(ByteBuf frame) throws IOException {
+        Listener l = listener;
+        for (int i = 0, count = frame.readInt(); i < count; i++) {
+            Delta delta = Delta.read(frame);
+            if (delta.state) {
+                if (!replace(delta)) {
+                    continue;
+                }
+            } else {
+                apply(delta);
+            }
+            if (l != null) {
+                if (delta.sessionRemoved) {
+                    l.removed(delta.id);
+                } else if (!delta.isAccess()) {
+                    l.stale(delta.id);
+                }
+            }
+        }
+    }
+
+    private boolean replace(Delta state) {
+        Replica replica = replicas.get(state.id);
+        if (replica == null) {
+            replica = new Replica(state.userAgent, state.created, 0);
+            Replica old = replicas.putIfAbsent(state.id, replica);
+            if (old != null) {
+                replica = old;
+            }
+        }
+        return replica.replace(state);
+    }
+
+    /**
+     * Inbound connection from another node, one per connection.
+     */
+    private final class Receiver extends SimpleChannelInboundHandler<ByteBuf> {
+
+        private byte[] nonce;
+        private long sequence;
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            if (secret != null) {
+                // The sender signs every message with this, so messages sent
+                // on another connection cannot be replayed on this one
+                nonce = new byte[NONCE_BYTES];
+                random.nextBytes(nonce);
+                ctx.writeAndFlush(Unpooled.wrappedBuffer(nonce));
+            }
+            super.channelActive(ctx);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+            if (secret == null) {
+                received(msg);
+                return;
+            }
+            int length = msg.readableBytes() - MAC_BYTES;
+            if (length < 0) {
+                throw new IOException("Unsigned replication message");
+            }
+            ByteBuf payload = msg.slice(msg.readerIndex(), length);
+            byte[] signature = new byte[MAC_BYTES];
+            msg.getBytes(msg.readerIndex() + length, signature);
+            if (!MessageDigest.isEqual(signature, sign(nonce, sequence++, payload))) {
+                throw new IOException("Bad signature on replication message - is "
+                        + SETTINGS_KEY_REPLICATION_SECRET + " the same on every node?");
+            }
+            received(payload);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            log.warn("Bad replication message from " + ctx.channel().remoteAddress(), cause);
+            ctx.close();
+        }
+    }
+
+    /**
+     * Outbound connection to another node, reconnected whenever it drops.
+     */
+    private final class Peer extends SimpleChannelInboundHandler<ByteBuf> implements ChannelFutureListener {
+
+        private final InetSocketAddress address;
+        /**
+         * Set once the connection is ready to send on.
+         */
+        volatile Channel channel;
+        /**
+         * The receiver's nonce for the connection, and the sequence number
+         * of the next message sent on it, if messages are signed;  only
+         * used on the event loop.
+         */
+        byte[] nonce;
+        long sequence;
+        /**
+         * Sessions still to be sent in full, or null;  only used on the
+         * event loop.
+         */
+        Iterator<Map.Entry<String, Replica>> state;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        void connect() {
+            if (closed) {
+                return;
+            }
+            new Bootstrap().group(group).channel(NioSocketChannel.class)
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) throws Exception {
+                            ch.pipeline().addLast(new LengthFieldPrepender(4),
+                                    new LengthFieldBasedFrameDecoder(MAX_FRAME, 0, 4, 0, 4), Peer.this);
+                        }
+                    }).connect(address).addListener(this);
+        }
+
+        void close() {
+            Channel ch = channel;
+            if (ch != null) {
+                ch.close();
+            }
+        }
+
+        @Override
+        public boolean isSharable() {
+            return true;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if (future.isSuccess()) {
+                if (secret == null) {
+                    ready(future.channel());
+                }
+                // Otherwise wait for the receiver's nonce
+            } else {
+                log.debug("Could not connect to {} - will retry", address);
+                retry();
+            }
+        }
+
+        private void ready(Channel ch) {
+            // It may have missed anything, so start with everything
+            state = replicas.entrySet().iterator();
+            channel = ch;
+            log.info("Replicating sessions to {}", address);
+            scheduleFlush();
+        }
+
+        private void retry() {
+            if (!closed) {
+                group.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        connect();
+                    }
+                }, 1, TimeUnit.SECONDS);
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            if (ctx.channel().isWritable()) {
+                scheduleFlush();
+            }
+            super.channelWritabilityChanged(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            channel = null;
+            state = null;
+            log.info("Lost replication connection to {}", address);
+            retry();
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+            // The receiver only ever sends its nonce
+            if (secret != null && channel == null && msg.readableBytes() == NONCE_BYTES) {
+                nonce = new byte[NONCE_BYTES];
+                msg.readBytes(nonce);
+                sequence = 0;
+                ready(ctx.channel());
+            } else {
+                throw new IOException("Unexpected message from " + address);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            log.debug("Replication connection to " + address, cause);
+            ctx.close();
+        }
+    }
+
+    static byte[] serialize(Serializable value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private Serializable deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        return classes.read(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.google.inject.Provider;
+import com.mastfrog.acteur.wicket.ActeurSessionStore.SessionImpl;
+import com.mastfrog.acteur.wicket.ActeurSessionStore.ShardStatistics;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_MAX_SESSIONS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SESSION_PASSIVATION_DIR;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SESSION_SHARDS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SESSION_SNAPSHOT_FILE;
+import com.mastfrog.settings.SettingsBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.apache.wicket.markup.MarkupParser;
+import org.apache.wicket.session.ISessionStore.UnboundListener;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for ActeurSessionStore, driven the way requests drive it, without
+ * a Wicket application:  sessions are seeded from a snapshot file, and a
+ * "request" looks up an attribute with the session's id as its cookie.
+ *
+ * @author Tim Boudreau
+ */
+public class ActeurSessionStoreTest {
+
+    private static final String NAME = "value";
+    private final List<ActeurSessionStore> stores = new ArrayList<>();
+    private File dir;
+    private File snapshot;
+    private volatile CurrentSession current;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("session-store").toFile();
+        snapshot = new File(dir, "sessions");
+    }
+
+    @After
+    public void tearDown() {
+        for (ActeurSessionStore store : stores) {
+            store.destroy();
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testIdleSessionsExpire() throws Exception {
+        seed(System.currentTimeMillis(), "a", "b", "c");
+        ActeurSessionStore store = store(2000, 0);
+        List<String> unbound = unboundIds(store);
+        assertEquals("value-a", request(store, "a"));
+        assertEquals("value-c", request(store, "c"));
+        // a is not asked for again and b never is, while c is kept in use
+        long until = System.currentTimeMillis() + 10000;
+        while (unbound.size() < 2 && System.currentTimeMillis() < until) {
+            assertEquals("value-c", request(store, "c"));
+            Thread.sleep(200);
+        }
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), new HashSet<>(unbound));
+        assertNull(request(store, "a"));
+        assertNull(request(store, "b"));
+        assertEquals("value-c", request(store, "c"));
+        long expirations = 0;
+        for (ShardStatistics stats : store.statistics()) {
+            expirations += stats.expirations;
+        }
+        assertEquals(2, expirations);
+    }
+
+    @Test
+    public void testSessionsOverTheLimitAreEvicted() throws Exception {
+        seed(System.currentTimeMillis(), "a", "b", "c", "d");
+        ActeurSessionStore store = store(60000, 0,
+                SETTINGS_KEY_SESSION_SHARDS, "1",
+                SETTINGS_KEY_MAX_SESSIONS, "2");
+        List<String> unbound = unboundIds(store);
+        assertEquals("value-a", request(store, "a"));
+        assertEquals("value-b", request(store, "b"));
+        assertEquals("value-c", request(store, "c"));
+        assertEquals(Arrays.asList("a"), unbound);
+        // Used since the clock hand last passed it, so c goes instead
+        assertEquals("value-b", request(store, "b"));
+        assertEquals("value-d", request(store, "d"));
+        assertEquals(Arrays.asList("a", "c"), unbound);
+        assertNull(request(store, "a"));
+        assertNull(request(store, "c"));
+        assertEquals("value-b", request(store, "b"));
+        ShardStatistics stats = store.statistics().get(0);
+        assertEquals(2, stats.liveSessions);
+        assertEquals(2, stats.evictions);
+    }
+
+    @Test
+    public void testShardsKeepTheirOwnStatistics() throws Exception {
+        String[] ids = new String[20];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = "s" + i;
+        }
+        seed(System.currentTimeMillis(), ids);
+        ActeurSessionStore store = store(60000, 0, SETTINGS_KEY_SESSION_SHARDS, "4");
+        // Each first lookup misses in memory and restores the session, and
+        // each second one hits
+        for (int pass = 0; pass < 2; pass++) {
+            for (String id : ids) {
+                assertEquals("value-" + id, request(store, id));
+            }
+        }
+        assertNull(request(store, "unknown"));
+        List<ShardStatistics> stats = store.statistics();
+        assertEquals(4, stats.size());
+        int live = 0;
+        int occupied = 0;
+        long hits = 0;
+        long misses = 0;
+        for (ShardStatistics shard : stats) {
+            assertEquals(shard.liveSessions == 0, shard.estimatedBytes == 0);
+            live += shard.liveSessions;
+            occupied += shard.liveSessions == 0 ? 0 : 1;
+            hits += shard.hits;
+            misses += shard.misses;
+        }
+        assertEquals(20, live);
+        assertTrue("All sessions in " + occupied + " shard(s)", occupied > 1);
+        assertEquals(20, hits);
+        assertEquals(21, misses);
+    }
+
+    @Test
+    public void testIdleSessionsArePassivatedAndReactivated() throws Exception {
+        seed(System.currentTimeMillis(), "a", "b");
+        ActeurSessionStore store = store(60000, 1000);
+        // A request still running with b
+        CurrentSession held = new CurrentSession(new SessionId("b"));
+        current = held;
+        assertEquals("value-b", store.getAttribute(null, NAME));
+        assertEquals("value-a", request(store, "a"));
+        // a is moved out of memory, b is not while in use
+        assertEquals(1, awaitLiveSessions(store, 1));
+        assertEquals(1, awaitLiveSessions(store, 0));
+        current = held;
+        store.requestCompleted();
+        assertEquals(0, awaitLiveSessions(store, 0));
+        assertEquals("value-a", request(store, "a"));
+        assertEquals("value-b", request(store, "b"));
+        assertEquals(2, liveSessions(store));
+    }
+
+    @Test
+    public void testSessionsSurviveRestart() throws Exception {
+        long now = System.currentTimeMillis();
+        try (SessionSnapshot.Writer writer = new SessionSnapshot.Writer(snapshot)) {
+            for (String id : new String[]{"a", "b", "c"}) {
+                writer.write(session(id, now));
+            }
+            // Idle for longer than the timeout by the time it is restored
+            writer.write(session("old", now - 120000));
+            writer.commit();
+        }
+        ActeurSessionStore first = store(60000, 1000);
+        assertEquals("value-a", request(first, "a"));
+        assertEquals(0, awaitLiveSessions(first, 0));
+        assertEquals("value-c", request(first, "c"));
+        // Shut down with a passivated, b never restored and c in memory
+        stores.remove(first);
+        first.destroy();
+        assertTrue(snapshot.exists());
+
+        ActeurSessionStore second = store(60000, 0);
+        assertEquals("value-a", request(second, "a"));
+        assertEquals("value-b", request(second, "b"));
+        assertEquals("value-c", request(second, "c"));
+        assertNull(request(second, "old"));
+        assertEquals(3, liveSessions(second));
+    }
+
+    private ActeurSessionStore store(long idleTimeoutMillis, long passivateAfterMillis, String... settings) {
+        SettingsBuilder sb = new SettingsBuilder("acteur-wicket")
+                .add(SETTINGS_KEY_SESSION_SNAPSHOT_FILE, snapshot.getPath())
+                .add(SETTINGS_KEY_SESSION_PASSIVATION_DIR, dir.getPath());
+        for (int i = 0; i < settings.length; i += 2) {
+            sb.add(settings[i], settings[i + 1]);
+        }
+        ActeurSessionStore store = new ActeurSessionStore(new Provider<CurrentSession>() {
+            @Override
+            public CurrentSession get() {
+                return current;
+            }
+        }, sb.build(), new LocalSessionStorage(), new SessionIdGenerator(0), new ClientInfoCache(),
+                idleTimeoutMillis, passivateAfterMillis);
+        stores.add(store);
+        return store;
+    }
+
+    /**
+     * Write a snapshot of sessions, each holding one attribute named after
+     * it.
+     */
+    private void seed(long lastAccessed, String... ids) throws IOException {
+        try (SessionSnapshot.Writer writer = new SessionSnapshot.Writer(snapshot)) {
+            for (String id : ids) {
+                writer.write(session(id, lastAccessed));
+            }
+            writer.commit();
+        }
+    }
+
+    private static SessionImpl session(String id, long lastAccessed) {
+        SessionImpl sess = new SessionImpl(id, "test", lastAccessed, lastAccessed);
+        sess.attributes.put(MarkupParser.WICKET + NAME, "value-" + id);
+        return sess;
+    }
+
+    /**
+     * Look up the attribute as a request with the session's cookie would.
+     */
+    private Serializable request(ActeurSessionStore store, String id) {
+        current = new CurrentSession(new SessionId(id));
+        try {
+            return store.getAttribute(null, NAME);
+        } finally {
+            store.requestCompleted();
+        }
+    }
+
+    private static int liveSessions(ActeurSessionStore store) {
+        int result = 0;
+        for (ShardStatistics stats : store.statistics()) {
+            result += stats.liveSessions;
+        }
+        return result;
+    }
+
+    /**
+     * Wait a few seconds for the number of sessions in memory to drop to a
+     * number.
+     *
+     * @return The number there were when done waiting
+     */
+    private static int awaitLiveSessions(ActeurSessionStore store, int expected) throws InterruptedException {
+        long until = System.currentTimeMillis() + 4000;
+        int result = liveSessions(store);
+        while (result > expected && System.currentTimeMillis() < until) {
+            Thread.sleep(100);
+            result = liveSessions(store);
+        }
+        return result;
+    }
+
+    private static List<String> unboundIds(ActeurSessionStore store) {
+        final List<String> result = new CopyOnWriteArrayList<>();
+        store.registerUnboundListener(new UnboundListener() {
+            @Override
+            public void sessionUnbound(String sessionId) {
+                result.add(sessionId);
+            }
+        });
+        return result;
+    }
+}
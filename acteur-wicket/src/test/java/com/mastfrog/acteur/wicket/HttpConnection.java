@@ -0,0 +1,186 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal blocking HTTP/1.1 client over one socket, so tests and benchmarks
+ * can see exactly what went over the wire and whether the connection
+ * survived it.
+ *
+ * @author Tim Boudreau
+ */
+final class HttpConnection implements AutoCloseable {
+
+    private final int port;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    HttpConnection(int port) throws IOException {
+        this.port = port;
+        socket = new Socket("localhost", port);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(30000);
+        in = new BufferedInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+    }
+
+    Reply get(String path, String... headers) throws IOException {
+        return request("GET", path, headers);
+    }
+
+    /**
+     * Send a request and read the whole response.
+     *
+     * @param method The method
+     * @param path The path and query
+     * @param headers Header lines, such as "Connection: close"
+     * @return The response
+     * @throws IOException if the connection fails
+     */
+    Reply request(String method, String path, String... headers) throws IOException {
+        StringBuilder sb = new StringBuilder(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+                .append("Host: localhost:").append(port).append("\r\n");
+        for (String header : headers) {
+            sb.append(header).append("\r\n");
+        }
+        out.write(sb.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        String statusLine = readLine();
+        int status = Integer.parseInt(statusLine.split(" ")[1]);
+        Map<String, String> responseHeaders = new HashMap<>();
+        for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+            int colon = line.indexOf(':');
+            String name = line.substring(0, colon).trim().toLowerCase();
+            String value = line.substring(colon + 1).trim();
+            String old = responseHeaders.get(name);
+            responseHeaders.put(name, old == null ? value : old + ", " + value);
+        }
+        byte[] body;
+        String length = responseHeaders.get("content-length");
+        if ("HEAD".equals(method) || status == 304 || status == 204) {
+            body = new byte[0];
+        } else if ("chunked".equalsIgnoreCase(responseHeaders.get("transfer-encoding"))) {
+            body = readChunked();
+        } else if (length != null) {
+            body = readFully(Integer.parseInt(length));
+        } else {
+            body = readToEnd();
+        }
+        return new Reply(status, responseHeaders, body);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c == -1) {
+                throw new EOFException("Connection closed after " + sb);
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private byte[] readFully(int length) throws IOException {
+        byte[] result = new byte[length];
+        for (int pos = 0; pos < length;) {
+            int count = in.read(result, pos, length - pos);
+            if (count < 0) {
+                throw new EOFException("Expected " + length + " bytes, got " + pos);
+            }
+            pos += count;
+        }
+        return result;
+    }
+
+    private byte[] readChunked() throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        for (;;) {
+            String line = readLine();
+            int semi = line.indexOf(';');
+            int size = Integer.parseInt((semi < 0 ? line : line.substring(0, semi)).trim(), 16);
+            if (size == 0) {
+                // Trailers, if any
+                while (!readLine().isEmpty()) {
+                }
+                return result.toByteArray();
+            }
+            result.write(readFully(size));
+            readLine();
+        }
+    }
+
+    private byte[] readToEnd() throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        for (int count = in.read(buf); count >= 0; count = in.read(buf)) {
+            result.write(buf, 0, count);
+        }
+        return result.toByteArray();
+    }
+
+    static final class Reply {
+
+        final int status;
+        final byte[] body;
+        private final Map<String, String> headers;
+
+        Reply(int status, Map<String, String> headers, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        String header(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        String text() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String toString() {
+            return status + " " + headers + " " + body.length + " bytes";
+        }
+    }
+}
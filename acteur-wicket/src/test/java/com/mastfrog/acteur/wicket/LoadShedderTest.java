@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.wicket.LoadShedder.RequestKind;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_ADMISSION_CONTROL;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_ADMISSION_INTERVAL_MILLIS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_ADMISSION_TARGET_MILLIS;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_REQUEST_CYCLE_EXECUTOR;
+import com.mastfrog.settings.SettingsBuilder;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for LoadShedder.
+ *
+ * @author Tim Boudreau
+ */
+public class LoadShedderTest {
+
+    private static final long INTERVAL_MILLIS = 100;
+
+    @Test
+    public void testStopsDroppingWhenNothingIsQueued() throws Exception {
+        LoadShedder shedder = dropping();
+        assertFalse(shedder.admit(RequestKind.NEW_SESSION_PAGE));
+        assertTrue(shedder.admit(RequestKind.AJAX_OR_RESOURCE));
+        // The last waiting cycle is refused, so no sample follows
+        shedder.dequeued();
+        assertTrue(shedder.admit(RequestKind.NEW_SESSION_PAGE));
+        assertTrue(shedder.admit(RequestKind.PAGE));
+    }
+
+    @Test
+    public void testStopsDroppingWithoutSamples() throws Exception {
+        LoadShedder shedder = dropping();
+        assertFalse(shedder.admit(RequestKind.NEW_SESSION_PAGE));
+        // A cycle is still queued, but none has started for an interval
+        Thread.sleep(INTERVAL_MILLIS + 50);
+        assertTrue(shedder.admit(RequestKind.NEW_SESSION_PAGE));
+    }
+
+    @Test
+    public void testStopsDroppingOnSampleUnderTarget() throws Exception {
+        LoadShedder shedder = dropping();
+        assertFalse(shedder.admit(RequestKind.NEW_SESSION_PAGE));
+        shedder.sample(0);
+        assertTrue(shedder.admit(RequestKind.NEW_SESSION_PAGE));
+    }
+
+    /**
+     * A shedder which has seen queueing delay above its target for an
+     * interval, with one cycle still waiting.
+     */
+    private static LoadShedder dropping() throws IOException, InterruptedException {
+        LoadShedder shedder = new LoadShedder(new SettingsBuilder("acteur-wicket")
+                .add(SETTINGS_KEY_ADMISSION_CONTROL, "true")
+                .add(SETTINGS_KEY_REQUEST_CYCLE_EXECUTOR, "pool")
+                .add(SETTINGS_KEY_ADMISSION_TARGET_MILLIS, "5")
+                .add(SETTINGS_KEY_ADMISSION_INTERVAL_MILLIS, Long.toString(INTERVAL_MILLIS))
+                .build());
+        assertTrue(shedder.isEnabled());
+        long slow = TimeUnit.SECONDS.toNanos(1);
+        for (int i = 0; i < 3; i++) {
+            shedder.queued();
+        }
+        shedder.dequeued();
+        shedder.sample(slow);
+        Thread.sleep(INTERVAL_MILLIS + 20);
+        shedder.dequeued();
+        shedder.sample(slow);
+        return shedder;
+    }
+}
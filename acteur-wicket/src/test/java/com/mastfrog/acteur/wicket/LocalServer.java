@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.google.inject.Module;
+import com.mastfrog.acteur.server.PathFactory;
+import com.mastfrog.acteur.server.ServerBuilder;
+import com.mastfrog.acteur.server.ServerModule;
+import com.mastfrog.acteur.util.Server;
+import com.mastfrog.acteur.util.ServerControl;
+import com.mastfrog.settings.SettingsBuilder;
+import java.io.IOException;
+import java.net.ServerSocket;
+
+/**
+ * Runs an application on a free port on localhost, for tests and
+ * benchmarks.
+ *
+ * @author Tim Boudreau
+ */
+final class LocalServer implements AutoCloseable {
+
+    final int port;
+    private final ServerControl control;
+
+    /**
+     * Start a server.
+     *
+     * @param module A WicketActeurModule subclass with a constructor taking a
+     * ReentrantScope
+     * @param settings Alternating setting keys and values
+     * @throws IOException if the server cannot start
+     */
+    LocalServer(Class<? extends Module> module, String... settings) throws IOException {
+        port = freePort();
+        SettingsBuilder sb = new SettingsBuilder("acteur-wicket")
+                .add(ServerModule.PORT, Integer.toString(port))
+                .add(PathFactory.EXTERNAL_PORT, Integer.toString(port));
+        for (int i = 0; i < settings.length; i += 2) {
+            sb.add(settings[i], settings[i + 1]);
+        }
+        Server server = new ServerBuilder("acteur-wicket")
+                .add(module)
+                .add(sb.build())
+                .build();
+        control = server.start(port);
+    }
+
+    HttpConnection connect() throws IOException {
+        return new HttpConnection(port);
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        control.shutdown(true);
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_PAGES_IN_MEMORY_PER_SESSION;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_PAGE_STORE_DIR;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_SESSION_SNAPSHOT_FILE;
+import com.mastfrog.settings.SettingsBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for LogPageDataStore.  Stores keep one page per session in memory,
+ * so storing a second page writes the first to the file.
+ *
+ * @author Tim Boudreau
+ */
+public class LogPageDataStoreTest {
+
+    private static final int PAGE = 16 * 1024;
+    private File dir;
+    private File snapshot;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("log-page-store").toFile();
+        snapshot = new File(dir, "sessions");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testEvictedPagesReadBack() throws IOException {
+        LogPageDataStore store = store();
+        try {
+            for (int i = 0; i < 20; i++) {
+                store.storeData("s", i, page(i));
+            }
+            store.drain();
+            assertTrue(logFile(0).length() >= 19 * PAGE);
+            for (int i = 0; i < 20; i++) {
+                assertArrayEquals("Page " + i, page(i), store.getData("s", i));
+            }
+            store.removeData("s", 3);
+            assertNull(store.getData("s", 3));
+            assertArrayEquals(page(4), store.getData("s", 4));
+            assertNull(store.getData("t", 4));
+            store.removeData("s");
+            assertNull(store.getData("s", 4));
+        } finally {
+            store.destroy();
+        }
+    }
+
+    @Test
+    public void testDeltasAreRebasedAfterLimit() throws IOException {
+        LogPageDataStore store = store();
+        try {
+            byte[] data = page(1);
+            store.storeData("s", 1, data);
+            store.storeData("s", 1000, filler());
+            store.drain();
+            long size = logFile(0).length();
+            int full = 0;
+            for (int i = 0; i < 40; i++) {
+                data = data.clone();
+                data[(i * 997) % data.length] ^= 0x5A;
+                // Storing page 1 pushes the last filler out, and the next
+                // filler pushes page 1 out
+                store.storeData("s", 1, data);
+                store.storeData("s", 1001 + i, filler());
+                store.drain();
+                long grown = logFile(0).length() - size;
+                size += grown;
+                if (grown >= PAGE) {
+                    full++;
+                } else {
+                    assertTrue("Write " + i + " grew the file by " + grown, grown < PAGE / 2);
+                }
+                assertArrayEquals("Version " + i, data, store.getData("s", 1));
+            }
+            // A full version after each sixteen deltas against the last
+            assertEquals(2, full);
+        } finally {
+            store.destroy();
+        }
+    }
+
+    @Test
+    public void testReadsDuringAndAfterCompaction() throws Exception {
+        final LogPageDataStore store = store();
+        try {
+            for (int s = 0; s < 40; s++) {
+                for (int i = 0; i < 5; i++) {
+                    store.storeData("s" + s, i, page(s * 5 + i));
+                }
+            }
+            for (int s = 0; s < 40; s += 2) {
+                store.removeData("s" + s);
+            }
+            store.drain();
+            long before = logFile(0).length();
+            final AtomicBoolean done = new AtomicBoolean();
+            final AtomicReference<String> failure = new AtomicReference<>();
+            final AtomicInteger reads = new AtomicInteger();
+            Thread[] readers = new Thread[4];
+            for (int r = 0; r < readers.length; r++) {
+                final Random random = new Random(r);
+                readers[r] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        while (!done.get() && failure.get() == null) {
+                            int s = random.nextInt(20) * 2 + 1;
+                            int i = random.nextInt(5);
+                            byte[] data = store.getData("s" + s, i);
+                            if (data == null || !Arrays.equals(page(s * 5 + i), data)) {
+                                failure.set("Wrong data for page " + i + " of s" + s);
+                            }
+                            reads.incrementAndGet();
+                        }
+                    }
+                });
+                readers[r].start();
+            }
+            // Let the readers get going before moving pages under them
+            while (reads.get() < 100 && failure.get() == null) {
+                Thread.sleep(1);
+            }
+            store.compact();
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            assertNull(failure.get(), failure.get());
+            assertFalse(logFile(0).exists());
+            assertTrue(logFile(1).length() < before);
+            for (int s = 0; s < 40; s++) {
+                for (int i = 0; i < 5; i++) {
+                    byte[] data = store.getData("s" + s, i);
+                    if (s % 2 == 0) {
+                        assertNull(data);
+                    } else {
+                        assertArrayEquals("Page " + i + " of s" + s, page(s * 5 + i), data);
+                    }
+                }
+            }
+            // Appends go to the new file, and a second compaction returns
+            // to the first
+            store.storeData("s1", 5, page(1000));
+            store.storeData("s1", 6, page(1001));
+            store.drain();
+            assertArrayEquals(page(1000), store.getData("s1", 5));
+            store.compact();
+            assertFalse(logFile(1).exists());
+            assertArrayEquals(page(1000), store.getData("s1", 5));
+            assertArrayEquals(page(7), store.getData("s1", 2));
+        } finally {
+            store.destroy();
+        }
+    }
+
+    @Test
+    public void testPagesSurviveRestart() throws IOException {
+        assertTrue(snapshot.createNewFile());
+        LogPageDataStore store = store();
+        for (int i = 0; i < 5; i++) {
+            store.storeData("a", i, page(i));
+            store.storeData("b", i, page(100 + i));
+        }
+        store.drain();
+        // Compact, so the index refers to the second file, then store a
+        // delta against a copied base
+        store.compact();
+        byte[] changed = page(2).clone();
+        changed[10] ^= 1;
+        store.storeData("a", 2, changed);
+        store.storeData("a", 5, page(5));
+        store.destroy();
+        assertTrue(new File(snapshot.getPath() + ".pages.index").exists());
+
+        store = store();
+        try {
+            assertFalse(new File(snapshot.getPath() + ".pages.index").exists());
+            for (int i = 0; i < 5; i++) {
+                assertArrayEquals(i == 2 ? changed : page(i), store.getData("a", i));
+                assertArrayEquals(page(100 + i), store.getData("b", i));
+            }
+            // Pages which were in memory at shutdown
+            assertArrayEquals(page(5), store.getData("a", 5));
+            store.storeData("c", 0, page(200));
+            store.storeData("c", 1, page(201));
+            store.drain();
+            assertArrayEquals(page(200), store.getData("c", 0));
+        } finally {
+            store.destroy();
+        }
+    }
+
+    @Test
+    public void testPagesWithoutSnapshotAreDeleted() throws IOException {
+        LogPageDataStore store = store();
+        for (int i = 0; i < 5; i++) {
+            store.storeData("a", i, page(i));
+        }
+        store.drain();
+        store.compact();
+        store.storeData("a", 5, page(5));
+        store.drain();
+        store.destroy();
+        assertTrue(logFile(1).exists());
+        // No session snapshot, so no session to give the pages back to
+        assertFalse(snapshot.exists());
+
+        store = store();
+        try {
+            assertFalse(logFile(1).exists());
+            assertEquals(0, logFile(0).length());
+            assertNull(store.getData("a", 1));
+        } finally {
+            store.destroy();
+        }
+    }
+
+    private LogPageDataStore store() throws IOException {
+        return new LogPageDataStore(new SettingsBuilder("acteur-wicket")
+                .add(SETTINGS_KEY_PAGES_IN_MEMORY_PER_SESSION, "1")
+                .add(SETTINGS_KEY_PAGE_STORE_DIR, dir.getPath())
+                .add(SETTINGS_KEY_SESSION_SNAPSHOT_FILE, snapshot.getPath())
+                .build());
+    }
+
+    private File logFile(int generation) {
+        return new File(snapshot.getPath() + ".pages." + generation);
+    }
+
+    private static byte[] page(int seed) {
+        byte[] result = new byte[PAGE];
+        new Random(seed).nextBytes(result);
+        return result;
+    }
+
+    private static byte[] filler() {
+        return new byte[]{1, 2, 3, 4};
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.wicket.PageLocks.StripedPageAccessSynchronizer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.apache.wicket.page.IPageManager;
+import org.apache.wicket.util.time.Duration;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for PageLocks.
+ *
+ * @author Tim Boudreau
+ */
+public class PageLocksTest {
+
+    @Test
+    public void testMissReleasesLock() throws Exception {
+        final StripedPageAccessSynchronizer sync
+                = new StripedPageAccessSynchronizer(new PageLocks(), Duration.milliseconds(500));
+        IPageManager manager = sync.adapt(emptyPageManager());
+        assertNull(manager.getPage(1));
+        // If the miss left page 1 locked, this would time out and throw
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try {
+            assertTrue(other.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    sync.lockPage(1);
+                    sync.unlockPage(1);
+                    return true;
+                }
+            }).get(10, TimeUnit.SECONDS));
+        } finally {
+            other.shutdown();
+        }
+    }
+
+    /**
+     * A page manager which has no pages.
+     */
+    private static IPageManager emptyPageManager() {
+        return (IPageManager) Proxy.newProxyInstance(PageLocksTest.class.getClassLoader(),
+                new Class<?>[]{IPageManager.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        Class<?> type = method.getReturnType();
+                        return type == boolean.class ? Boolean.FALSE : null;
+                    }
+                });
+    }
+}
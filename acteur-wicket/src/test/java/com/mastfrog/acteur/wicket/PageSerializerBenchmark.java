@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.wicket.borrowed.HomePageApplication;
+import com.mastfrog.acteur.wicket.borrowed.Page1;
+import java.util.concurrent.TimeUnit;
+import org.apache.wicket.Page;
+import org.apache.wicket.ThreadContext;
+import org.apache.wicket.serialize.ISerializer;
+import org.apache.wicket.serialize.java.JavaSerializer;
+import org.apache.wicket.util.tester.WicketTester;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Time to write and to read back one of the borrowed pages with
+ * PageSerializer, plain and deflated, against Wicket's default
+ * JavaSerializer.  The size of each serializer's output is printed at
+ * setup.  Run with the main method.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PageSerializerBenchmark {
+
+    @Param({"java", "nameTable", "nameTableDeflated"})
+    public String serializer;
+    private WicketTester tester;
+    private ISerializer impl;
+    private Page page;
+    private byte[] data;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        tester = new WicketTester(new HomePageApplication());
+        String key = tester.getApplication().getName();
+        switch (serializer) {
+            case "java":
+                impl = new JavaSerializer(key);
+                break;
+            case "nameTable":
+                impl = new PageSerializer(key, false);
+                break;
+            default:
+                impl = new PageSerializer(key, true);
+        }
+        page = tester.startPage(Page1.class);
+        data = impl.serialize(page);
+        System.out.println(serializer + ": " + data.length + " bytes");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tester.destroy();
+    }
+
+    @Setup(Level.Iteration)
+    public void attach() {
+        // The default serializer resolves classes through the application
+        // of the calling thread
+        ThreadContext.setApplication(tester.getApplication());
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return impl.serialize(page);
+    }
+
+    @Benchmark
+    public Object deserialize() {
+        return impl.deserialize(data);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(PageSerializerBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.wicket.borrowed.HomePage;
+import com.mastfrog.acteur.wicket.borrowed.HomePageApplication;
+import com.mastfrog.acteur.wicket.borrowed.Page1;
+import com.mastfrog.acteur.wicket.borrowed.Page2;
+import com.mastfrog.acteur.wicket.borrowed.Page3;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.apache.wicket.Component;
+import org.apache.wicket.Page;
+import org.apache.wicket.serialize.java.JavaSerializer;
+import org.apache.wicket.util.tester.WicketTester;
+import org.apache.wicket.util.visit.IVisit;
+import org.apache.wicket.util.visit.IVisitor;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Round trips pages and the kinds of value Java serialization treats
+ * specially through PageSerializer, plain and deflated.
+ *
+ * @author Tim Boudreau
+ */
+public class PageSerializerTest {
+
+    private WicketTester tester;
+    private String key;
+
+    @Before
+    public void setUp() {
+        tester = new WicketTester(new HomePageApplication());
+        key = tester.getApplication().getName();
+    }
+
+    @After
+    public void tearDown() {
+        tester.destroy();
+    }
+
+    @Test
+    public void testPagesRoundTrip() throws Exception {
+        for (boolean compress : new boolean[]{false, true}) {
+            PageSerializer serializer = new PageSerializer(key, compress);
+            assertRoundTrip(serializer, tester.startPage(HomePage.class));
+            assertRoundTrip(serializer, tester.startPage(Page1.class));
+            assertRoundTrip(serializer, tester.startPage(Page2.class));
+            assertRoundTrip(serializer, tester.startPage(Page3.class));
+        }
+    }
+
+    @Test
+    public void testValuesRoundTrip() throws Exception {
+        for (boolean compress : new boolean[]{false, true}) {
+            PageSerializer serializer = new PageSerializer(key, compress);
+            byte[] data = serializer.serialize(new Values());
+            assertNotNull(data);
+            assertValues((Values) serializer.deserialize(data));
+        }
+    }
+
+    @Test
+    public void testReadsDefaultSerializerOutput() throws Exception {
+        byte[] data = new JavaSerializer(key).serialize(new Values());
+        assertValues((Values) new PageSerializer(key, false).deserialize(data));
+    }
+
+    private void assertRoundTrip(PageSerializer serializer, Page page) {
+        byte[] data = serializer.serialize(page);
+        assertNotNull("Could not serialize " + page, data);
+        Page restored = (Page) serializer.deserialize(data);
+        assertNotNull("Could not deserialize " + page, restored);
+        assertNotSame(page, restored);
+        assertEquals(page.getClass(), restored.getClass());
+        assertEquals(page.getPageId(), restored.getPageId());
+        assertEquals(components(page), components(restored));
+        // And it is still a working page
+        tester.startPage(restored);
+        tester.assertRenderedPage(page.getClass());
+    }
+
+    private static List<String> components(Page page) {
+        final List<String> result = new ArrayList<>();
+        page.visitChildren(new IVisitor<Component, Void>() {
+            @Override
+            public void component(Component component, IVisit<Void> visit) {
+                result.add(component.getPageRelativePath() + " " + component.getClass().getName()
+                        + " " + component.getDefaultModelObjectAsString());
+            }
+        });
+        return result;
+    }
+
+    private static void assertValues(Values values) throws Exception {
+        assertNotNull(values);
+        assertArrayEquals(new int[]{1, 2, 3}, values.ints);
+        assertArrayEquals(new String[]{"a", null, "c"}, values.names[0]);
+        assertEquals(0, values.names[1].length);
+        assertEquals(TimeUnit.SECONDS, values.unit);
+        assertEquals(TimeUnit.MINUTES, values.units[1]);
+        assertEquals("called", values.proxy.call());
+        assertEquals(3, values.point.x);
+        assertEquals(4, values.point.y);
+        assertSame(values.point, values.samePoint);
+    }
+
+    static final class Values implements Serializable {
+
+        final int[] ints = {1, 2, 3};
+        final String[][] names = {{"a", null, "c"}, {}};
+        final TimeUnit unit = TimeUnit.SECONDS;
+        final TimeUnit[] units = {TimeUnit.HOURS, TimeUnit.MINUTES};
+        @SuppressWarnings("unchecked")
+        final Callable<String> proxy = (Callable<String>) Proxy.newProxyInstance(
+                Values.class.getClassLoader(), new Class<?>[]{Callable.class}, new Handler());
+        final Point point = new Point(3, 4);
+        // Back references must resolve to the same object
+        final Point samePoint = point;
+    }
+
+    static final class Handler implements InvocationHandler, Serializable {
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            return "call".equals(method.getName()) ? "called" : null;
+        }
+    }
+
+    public static final class Point implements Externalizable {
+
+        int x;
+        int y;
+
+        public Point() {
+        }
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeInt(x);
+            out.writeInt(y);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException {
+            x = in.readInt();
+            y = in.readInt();
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.wicket.borrowed.HomePage;
+import com.mastfrog.guicy.scope.ReentrantScope;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.apache.wicket.MarkupContainer;
+import org.apache.wicket.Page;
+import org.apache.wicket.markup.IMarkupResourceStreamProvider;
+import org.apache.wicket.markup.head.CssHeaderItem;
+import org.apache.wicket.markup.head.IHeaderResponse;
+import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.markup.html.basic.Label;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.request.resource.CssResourceReference;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.StringResourceStream;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Checks what goes over the wire for pages and resources - encoding,
+ * compression, conditional requests and caching - against a server on a
+ * free port.
+ *
+ * @author Tim Boudreau
+ */
+public class ResponseTest {
+
+    // Two, three and four byte sequences, the last a surrogate pair
+    private static final String TEXT = "caf\u00e9 \u00fcber \u65e5\u672c \ud83d\ude00 ";
+    private static final Pattern STYLESHEET = Pattern.compile("href=\"[^\"]*?(" + ResourceCache.RESOURCE_PATH + "[^\"]+)\"");
+    private static final CssResourceReference STYLE = new CssResourceReference(HomePage.class, "style.css");
+
+    @Test
+    public void testNonAsciiTextIsEncodedWhole() throws Exception {
+        try (LocalServer server = new LocalServer(ResponseModule.class,
+                WicketActeurModule.SETTINGS_KEY_CHUNKED_RESPONSE_THRESHOLD, "4096");
+                HttpConnection conn = server.connect()) {
+            HttpConnection.Reply small = conn.get("/text?repeat=1");
+            assertEquals(200, small.status);
+            assertNull(small.header("Transfer-Encoding"));
+            assertEquals(Integer.toString(small.body.length), small.header("Content-Length"));
+            assertTrue(small.text(), small.text().contains(repeat(1)));
+            // Many segments, so pairs fall across the places the text is split
+            HttpConnection.Reply large = conn.get("/text?repeat=20000");
+            assertEquals(200, large.status);
+            assertEquals("chunked", large.header("Transfer-Encoding"));
+            assertNull(large.header("Content-Length"));
+            assertTrue(large.text().contains(repeat(20000)));
+        }
+    }
+
+    @Test
+    public void testCachedResourcesAreRevalidated() throws Exception {
+        try (LocalServer server = new LocalServer(ResponseModule.class,
+                WicketActeurModule.SETTINGS_KEY_RESOURCE_CACHE, "true");
+                HttpConnection conn = server.connect()) {
+            String path = stylesheet(conn.get("/styled"));
+            // Served by Wicket, which fills the cache
+            HttpConnection.Reply rendered = conn.get(path);
+            assertEquals(200, rendered.status);
+            HttpConnection.Reply cached = conn.get(path);
+            assertEquals(200, cached.status);
+            assertArrayEquals(rendered.body, cached.body);
+            String etag = cached.header("ETag");
+            String lastModified = cached.header("Last-Modified");
+            assertNotNull("No ETag - not from the cache? " + cached, etag);
+            assertNotNull(lastModified);
+
+            HttpConnection.Reply matched = conn.get(path, "If-None-Match: " + etag);
+            assertEquals(304, matched.status);
+            assertEquals(etag, matched.header("ETag"));
+            assertNull(matched.header("Content-Length"));
+            HttpConnection.Reply unmodified = conn.get(path, "If-Modified-Since: " + lastModified);
+            assertEquals(304, unmodified.status);
+            assertNull(unmodified.header("Content-Length"));
+            // Still in step after two bodiless responses
+            HttpConnection.Reply stale = conn.get(path, "If-None-Match: \"stale\"");
+            assertEquals(200, stale.status);
+            assertArrayEquals(rendered.body, stale.body);
+        }
+    }
+
+    @Test
+    public void testCachedResourcesAreCompressedAsAccepted() throws Exception {
+        try (LocalServer server = new LocalServer(ResponseModule.class,
+                WicketActeurModule.SETTINGS_KEY_RESOURCE_CACHE, "true");
+                HttpConnection conn = server.connect()) {
+            String path = stylesheet(conn.get("/styled"));
+            byte[] identity = conn.get(path).body;
+
+            HttpConnection.Reply plain = conn.get(path, "Accept-Encoding: identity");
+            assertEquals(200, plain.status);
+            assertNull(plain.header("Content-Encoding"));
+            assertEquals("Accept-Encoding", plain.header("Vary"));
+            assertArrayEquals(identity, plain.body);
+
+            HttpConnection.Reply gzip = conn.get(path, "Accept-Encoding: deflate;q=0.5, gzip");
+            assertEquals("gzip", gzip.header("Content-Encoding"));
+            assertEquals("Accept-Encoding", gzip.header("Vary"));
+            assertTrue(gzip.body.length < identity.length);
+            assertArrayEquals(identity, decompress(gzip));
+
+            HttpConnection.Reply deflate = conn.get(path, "Accept-Encoding: gzip;q=0, deflate");
+            assertEquals("deflate", deflate.header("Content-Encoding"));
+            assertArrayEquals(identity, decompress(deflate));
+
+            // Different bytes, so each encoding needs its own tag
+            assertEquals(3, new HashSet<>(Arrays.asList(plain.header("ETag"),
+                    gzip.header("ETag"), deflate.header("ETag"))).size());
+            assertEquals(304, conn.get(path, "Accept-Encoding: gzip",
+                    "If-None-Match: " + gzip.header("ETag")).status);
+            assertEquals(200, conn.get(path, "Accept-Encoding: deflate",
+                    "If-None-Match: " + gzip.header("ETag")).status);
+        }
+    }
+
+    @Test
+    public void testPagesAreCompressedAsAccepted() throws Exception {
+        for (String streaming : new String[]{"false", "true"}) {
+            try (LocalServer server = new LocalServer(WicketActeurModuleTest.HomePageApplicationModule.class,
+                    WicketActeurModule.SETTINGS_KEY_RESPONSE_COMPRESSION, "true",
+                    WicketActeurModule.SETTINGS_KEY_STREAMING_RESPONSES, streaming);
+                    HttpConnection conn = server.connect()) {
+                HttpConnection.Reply plain = conn.get("/home");
+                assertEquals(200, plain.status);
+                assertNull(plain.header("Content-Encoding"));
+                assertEquals("Accept-Encoding", plain.header("Vary"));
+                assertTrue(plain.text().contains("Wicket Examples"));
+                for (String encoding : new String[]{"gzip", "deflate"}) {
+                    HttpConnection.Reply compressed = conn.get("/home", "Accept-Encoding: " + encoding);
+                    assertEquals(200, compressed.status);
+                    assertEquals("streaming " + streaming, encoding, compressed.header("Content-Encoding"));
+                    assertEquals("Accept-Encoding", compressed.header("Vary"));
+                    assertTrue(compressed.body.length < plain.body.length);
+                    assertEquals("streaming " + streaming, plain.text(),
+                            new String(decompress(compressed), StandardCharsets.UTF_8));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUnchangedPagesAreNotResent() throws Exception {
+        try (LocalServer server = new LocalServer(WicketActeurModuleTest.HomePageApplicationModule.class,
+                WicketActeurModule.SETTINGS_KEY_RESPONSE_ETAGS, "true");
+                HttpConnection conn = server.connect()) {
+            HttpConnection.Reply page = conn.get("/home");
+            assertEquals(200, page.status);
+            String etag = page.header("ETag");
+            assertNotNull(etag);
+            assertTrue(etag, etag.startsWith("W/\""));
+            // Wicket's no-store would leave browsers nothing to revalidate
+            assertEquals("no-cache", page.header("Cache-Control"));
+
+            HttpConnection.Reply matched = conn.get("/home", "If-None-Match: " + etag);
+            assertEquals(304, matched.status);
+            assertEquals(etag, matched.header("ETag"));
+            assertNull(matched.header("Content-Length"));
+            assertNull(matched.header("Transfer-Encoding"));
+            // Weak comparison, and a list of tags
+            assertEquals(304, conn.get("/home", "If-None-Match: \"other\", " + etag.substring(2)).status);
+
+            HttpConnection.Reply stale = conn.get("/home", "If-None-Match: W/\"stale\"");
+            assertEquals(200, stale.status);
+            assertEquals(etag, stale.header("ETag"));
+            assertArrayEquals(page.body, stale.body);
+        }
+    }
+
+    @Test
+    public void testStatelessPagesAreRenderedOnce() throws Exception {
+        try (LocalServer server = new LocalServer(ResponseModule.class,
+                WicketActeurModule.SETTINGS_KEY_PAGE_OUTPUT_CACHE, "true");
+                HttpConnection conn = server.connect()) {
+            int constructed = TextPage.CONSTRUCTED.get();
+            HttpConnection.Reply first = conn.get("/text?repeat=2&x=1");
+            assertEquals(200, first.status);
+            assertEquals(constructed + 1, TextPage.CONSTRUCTED.get());
+            // The same parameters in another order are the same page
+            HttpConnection.Reply cached = conn.get("/text?x=1&repeat=2");
+            assertEquals(200, cached.status);
+            assertArrayEquals(first.body, cached.body);
+            assertEquals(constructed + 1, TextPage.CONSTRUCTED.get());
+
+            assertEquals(200, conn.get("/text?repeat=3&x=1").status);
+            assertEquals(constructed + 2, TextPage.CONSTRUCTED.get());
+            // Never served to, or cached from, a client with a session
+            assertEquals(200, conn.get("/text?repeat=2&x=1",
+                    "Cookie: " + ActeurSessionStore.COOKIE_NAME + "=" + new SessionIdGenerator(0).next()).status);
+            assertEquals(constructed + 3, TextPage.CONSTRUCTED.get());
+            assertEquals(200, conn.get("/text?repeat=2&x=1").status);
+            assertEquals(constructed + 3, TextPage.CONSTRUCTED.get());
+        }
+    }
+
+    private static byte[] decompress(HttpConnection.Reply reply) throws IOException {
+        ByteArrayInputStream body = new ByteArrayInputStream(reply.body);
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (InputStream in = "gzip".equals(reply.header("Content-Encoding"))
+                ? new GZIPInputStream(body) : new InflaterInputStream(body)) {
+            byte[] buf = new byte[8192];
+            for (int count = in.read(buf); count >= 0; count = in.read(buf)) {
+                result.write(buf, 0, count);
+            }
+        }
+        return result.toByteArray();
+    }
+
+    private static String stylesheet(HttpConnection.Reply page) {
+        assertEquals(200, page.status);
+        Matcher m = STYLESHEET.matcher(page.text());
+        if (!m.find()) {
+            fail("No stylesheet link in " + page.text());
+        }
+        return "/" + m.group(1);
+    }
+
+    private static String repeat(int count) {
+        StringBuilder sb = new StringBuilder(TEXT.length() * count);
+        for (int i = 0; i < count; i++) {
+            sb.append(TEXT);
+        }
+        return sb.toString();
+    }
+
+    static class ResponseModule extends WicketActeurModule {
+
+        ResponseModule(ReentrantScope scope) {
+            super(ResponseApplication.class, scope);
+        }
+    }
+
+    public static class ResponseApplication extends WebApplication {
+
+        @Override
+        public Class<? extends Page> getHomePage() {
+            return TextPage.class;
+        }
+
+        @Override
+        protected void init() {
+            super.init();
+            mountPage("text", TextPage.class);
+            mountPage("styled", StyledPage.class);
+        }
+    }
+
+    /**
+     * A stateless page repeating some non-ASCII text as many times as the
+     * repeat parameter says, which counts how often it is constructed.
+     */
+    public static class TextPage extends WebPage implements IMarkupResourceStreamProvider {
+
+        static final AtomicInteger CONSTRUCTED = new AtomicInteger();
+
+        public TextPage() {
+            CONSTRUCTED.incrementAndGet();
+            int count = getRequest().getQueryParameters().getParameterValue("repeat").toInt(1);
+            add(new Label("text", repeat(count)));
+        }
+
+        @Override
+        public IResourceStream getMarkupResourceStream(MarkupContainer container, Class<?> containerClass) {
+            return new StringResourceStream("<html><head><title>Text</title></head>"
+                    + "<body><p wicket:id=\"text\"></p></body></html>");
+        }
+    }
+
+    /**
+     * A stateless page linking a versioned package resource.
+     */
+    public static class StyledPage extends WebPage implements IMarkupResourceStreamProvider {
+
+        @Override
+        public void renderHead(IHeaderResponse response) {
+            super.renderHead(response);
+            response.render(CssHeaderItem.forReference(STYLE));
+        }
+
+        @Override
+        public IResourceStream getMarkupResourceStream(MarkupContainer container, Class<?> containerClass) {
+            return new StringResourceStream("<html><head><title>Styled</title></head><body></body></html>");
+        }
+    }
+}
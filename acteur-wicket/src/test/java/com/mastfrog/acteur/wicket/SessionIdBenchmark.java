@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Session ids per second from SessionIdGenerator, against the scheme it
+ * replaced - one SecureRandom and one counter shared by every thread, and
+ * two calls to the SecureRandom per id.  Run with the main method.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Threads(8)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SessionIdBenchmark {
+
+    private final SessionIdGenerator generator = new SessionIdGenerator(1);
+    private final AtomicLong ids = new AtomicLong();
+    private final SecureRandom random = new SecureRandom();
+
+    @Benchmark
+    public String stripedGenerators() {
+        return generator.next();
+    }
+
+    @Benchmark
+    public String sharedSecureRandom() {
+        char[] chars = new char[SessionId.LENGTH];
+        encode(1, chars, 0, SessionId.NODE_CHARS);
+        encode(System.currentTimeMillis(), chars, 2, 7);
+        encode(ids.getAndIncrement(), chars, 9, 5);
+        encode(random.nextLong(), chars, 14, 10);
+        encode(random.nextLong(), chars, 24, 8);
+        return new String(chars);
+    }
+
+    private static void encode(long value, char[] into, int offset, int count) {
+        for (int i = offset + count - 1; i >= offset; i--) {
+            into[i] = SessionIdGenerator.ALPHABET[(int) (value & 0x3F)];
+            value >>>= 6;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(SessionIdBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import java.util.HashSet;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests for SessionId and SessionIdGenerator.
+ *
+ * @author Tim Boudreau
+ */
+public class SessionIdTest {
+
+    @Test
+    public void testOwnerNodeIsDecoded() {
+        for (int node : new int[]{0, 1, 63, 64, 1000, SessionId.MAX_NODE_ID}) {
+            SessionIdGenerator ids = new SessionIdGenerator(node);
+            for (int i = 0; i < 100; i++) {
+                String id = ids.next();
+                assertEquals(id, SessionId.LENGTH, id.length());
+                assertEquals(id, node, SessionId.ownerNode(id));
+                assertEquals(id, node, new SessionId(id).ownerNode());
+            }
+        }
+    }
+
+    @Test
+    public void testForeignIdsHaveNoOwner() {
+        String valid = new SessionIdGenerator(5).next();
+        assertEquals(-1, SessionId.ownerNode(null));
+        assertEquals(-1, SessionId.ownerNode(""));
+        assertEquals(-1, SessionId.ownerNode(valid.substring(1)));
+        assertEquals(-1, SessionId.ownerNode(valid + "A"));
+        // The GUIDs session ids used to be
+        assertEquals(-1, SessionId.ownerNode("3f2b8c1e-7a4d-4c7e-9b1a-5d6e7f8a9b0c"));
+        // Right length, but not from the alphabet
+        assertEquals(-1, SessionId.ownerNode("." + valid.substring(1)));
+        assertEquals(-1, SessionId.ownerNode(valid.charAt(0) + "\u00e9" + valid.substring(2)));
+    }
+
+    @Test
+    public void testNodeIdMustFit() {
+        for (int node : new int[]{-1, SessionId.MAX_NODE_ID + 1}) {
+            try {
+                new SessionIdGenerator(node);
+                fail("Accepted node id " + node);
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testIdsAreUniqueAndUrlSafe() {
+        SessionIdGenerator ids = new SessionIdGenerator(7);
+        Set<String> seen = new HashSet<>();
+        String alphabet = new String(SessionIdGenerator.ALPHABET);
+        for (int i = 0; i < 10000; i++) {
+            String id = ids.next();
+            assertTrue("Duplicate " + id, seen.add(id));
+            for (int j = 0; j < id.length(); j++) {
+                assertTrue(id, alphabet.indexOf(id.charAt(j)) >= 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.wicket.replication.ReplicatedSessionStorage;
+import com.mastfrog.guicy.scope.ReentrantScope;
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.wicket.MarkupContainer;
+import org.apache.wicket.Page;
+import org.apache.wicket.Session;
+import org.apache.wicket.markup.IMarkupResourceStreamProvider;
+import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.markup.html.basic.Label;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.StringResourceStream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import org.junit.Test;
+
+/**
+ * Runs two nodes with replicated session storage in this JVM, and moves a
+ * user back and forth between them.
+ *
+ * @author Tim Boudreau
+ */
+public class SessionReplicationTest {
+
+    private static final Pattern COUNT = Pattern.compile("<span[^>]*>(\\d+)</span>");
+    private static final String SECRET = "replication-test";
+
+    @Test
+    public void testSessionFollowsUserBetweenNodes() throws Exception {
+        int replicationA = LocalServer.freePort();
+        int replicationB = LocalServer.freePort();
+        try (LocalServer a = node(0, replicationA, replicationB, SECRET);
+                LocalServer b = node(1, replicationB, replicationA, SECRET)) {
+            HttpConnection.Reply first = get(a, "/counter", null);
+            assertEquals(200, first.status);
+            assertEquals("1", count(first));
+            String cookie = cookie(first);
+            // Issued by a, so a proxy routes it there
+            assertEquals(0, SessionId.ownerNode(cookie.substring(cookie.indexOf('=') + 1)));
+            assertEquals("1", await(b, cookie, "1"));
+            assertEquals("2", count(get(b, "/counter", cookie)));
+            // a must drop its own copy now that b has changed it
+            assertEquals("2", await(a, cookie, "2"));
+            assertEquals("3", count(get(a, "/counter", cookie)));
+            assertEquals("3", await(b, cookie, "3"));
+        }
+    }
+
+    @Test
+    public void testLateJoinerReceivesExistingSessions() throws Exception {
+        int replicationA = LocalServer.freePort();
+        int replicationB = LocalServer.freePort();
+        try (LocalServer a = node(0, replicationA, replicationB, SECRET)) {
+            // Nobody is listening at b's address yet
+            String cookie = cookie(get(a, "/counter", null));
+            assertEquals("2", count(get(a, "/counter", cookie)));
+            try (LocalServer b = node(1, replicationB, replicationA, SECRET)) {
+                assertEquals("2", await(b, cookie, "2"));
+                assertEquals("3", count(get(b, "/counter", cookie)));
+                assertEquals("3", await(a, cookie, "3"));
+            }
+        }
+    }
+
+    @Test
+    public void testNodeWithAnotherSecretIsIgnored() throws Exception {
+        int replicationA = LocalServer.freePort();
+        int replicationB = LocalServer.freePort();
+        try (LocalServer a = node(0, replicationA, replicationB, SECRET);
+                LocalServer b = node(1, replicationB, replicationA, "not-" + SECRET)) {
+            String cookie = cookie(get(a, "/counter", null));
+            assertEquals("2", count(get(a, "/counter", cookie)));
+            // Long enough for a signed message to have arrived
+            Thread.sleep(2000);
+            assertEquals("0", count(get(b, "/counter?peek=true", cookie)));
+            assertEquals("3", count(get(a, "/counter", cookie)));
+        }
+    }
+
+    private static LocalServer node(int id, int replicationPort, int peerPort, String secret) throws IOException {
+        return new LocalServer(CounterModule.class,
+                WicketActeurModule.SETTINGS_KEY_NODE_ID, Integer.toString(id),
+                WicketActeurModule.SETTINGS_KEY_SESSION_STORAGE, ReplicatedSessionStorage.class.getName(),
+                WicketActeurModule.SETTINGS_KEY_REPLICATION_PORT, Integer.toString(replicationPort),
+                WicketActeurModule.SETTINGS_KEY_REPLICATION_PEERS, "127.0.0.1:" + peerPort,
+                WicketActeurModule.SETTINGS_KEY_REPLICATION_SECRET, secret);
+    }
+
+    private static HttpConnection.Reply get(LocalServer node, String path, String cookie) throws IOException {
+        try (HttpConnection conn = node.connect()) {
+            return cookie == null ? conn.get(path) : conn.get(path, "Cookie: " + cookie);
+        }
+    }
+
+    /**
+     * Replication is asynchronous, so look without changing anything until
+     * the node has caught up.
+     */
+    private static String await(LocalServer node, String cookie, String expected) throws Exception {
+        long until = System.currentTimeMillis() + 10000;
+        String result = count(get(node, "/counter?peek=true", cookie));
+        while (!expected.equals(result) && System.currentTimeMillis() < until) {
+            Thread.sleep(50);
+            result = count(get(node, "/counter?peek=true", cookie));
+        }
+        return result;
+    }
+
+    private static String count(HttpConnection.Reply reply) {
+        Matcher m = COUNT.matcher(reply.text());
+        return m.find() ? m.group(1) : null;
+    }
+
+    private static String cookie(HttpConnection.Reply reply) {
+        String header = reply.header("Set-Cookie");
+        assertNotNull("No session cookie", header);
+        int ix = header.indexOf(';');
+        return ix < 0 ? header : header.substring(0, ix);
+    }
+
+    static class CounterModule extends WicketActeurModule {
+
+        CounterModule(ReentrantScope scope) {
+            super(CounterApplication.class, scope);
+        }
+    }
+
+    public static class CounterApplication extends WebApplication {
+
+        @Override
+        public Class<? extends Page> getHomePage() {
+            return CounterPage.class;
+        }
+
+        @Override
+        protected void init() {
+            super.init();
+            mountPage("counter", CounterPage.class);
+        }
+    }
+
+    /**
+     * Counts requests in a session attribute, unless passed peek=true.
+     */
+    public static class CounterPage extends WebPage implements IMarkupResourceStreamProvider {
+
+        public CounterPage() {
+            boolean peek = getRequest().getQueryParameters().getParameterValue("peek").toBoolean(false);
+            Session session = Session.get();
+            Integer count = (Integer) session.getAttribute("count");
+            if (!peek) {
+                session.bind();
+                count = count == null ? 1 : count + 1;
+                session.setAttribute("count", count);
+            }
+            add(new Label("count", String.valueOf(count == null ? 0 : count)));
+        }
+
+        @Override
+        public IResourceStream getMarkupResourceStream(MarkupContainer container, Class<?> containerClass) {
+            return new StringResourceStream("<html><body><span wicket:id=\"count\"></span></body></html>");
+        }
+    }
+}
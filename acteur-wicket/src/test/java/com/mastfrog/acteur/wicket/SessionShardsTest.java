@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket;
+
+import com.mastfrog.acteur.wicket.ActeurSessionStore.SessionImpl;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for SessionShards.
+ *
+ * @author Tim Boudreau
+ */
+public class SessionShardsTest {
+
+    @Test
+    public void testEvictsUnreferencedFirst() {
+        SessionShards shards = new SessionShards(1, 2);
+        SessionImpl a = session("a");
+        SessionImpl b = session("b");
+        assertTrue(shards.put(a).isEmpty());
+        assertTrue(shards.put(b).isEmpty());
+        // Every session starts referenced, so the hand clears each once,
+        // and a, cleared first, goes - unless it is used again meanwhile
+        List<SessionImpl> evicted = shards.put(session("c"));
+        assertEquals(Collections.singletonList(a), evicted);
+        assertNull(shards.get("a"));
+        assertSame(b, shards.get("b"));
+        b.touch();
+        evicted = shards.put(session("d"));
+        assertEquals(1, evicted.size());
+        assertEquals("c", evicted.get(0).id);
+        assertSame(b, shards.get("b"));
+    }
+
+    @Test
+    public void testPutAgainIsNotQueuedTwice() {
+        SessionShards shards = new SessionShards(1, 100);
+        SessionImpl a = session("a");
+        for (int i = 0; i < 50; i++) {
+            assertTrue(shards.put(a).isEmpty());
+        }
+        assertEquals(1, shards.queued());
+        assertSame(a, shards.get("a"));
+    }
+
+    @Test
+    public void testRemovedSessionsLeaveTheQueue() {
+        SessionShards shards = new SessionShards(1, 10000);
+        // Long-lived sessions at the head of the queue
+        for (int i = 0; i < 10; i++) {
+            shards.put(session("long-" + i));
+        }
+        for (int i = 0; i < 5000; i++) {
+            SessionImpl sess = session("short-" + i);
+            shards.put(sess);
+            assertTrue(shards.remove(sess));
+        }
+        assertEquals(10, shards.values().size());
+        assertTrue("Queue holds " + shards.queued(), shards.queued() <= 10 + 17);
+    }
+
+    @Test
+    public void testReplacedSessionsLeaveTheQueue() {
+        SessionShards shards = new SessionShards(1, 10000);
+        shards.put(session("long"));
+        for (int i = 0; i < 5000; i++) {
+            SessionImpl sess = session("replaced");
+            List<SessionImpl> evicted = shards.put(sess);
+            assertEquals(i == 0 ? 0 : 1, evicted.size());
+        }
+        assertEquals(2, shards.values().size());
+        assertTrue("Queue holds " + shards.queued(), shards.queued() <= 2 + 17);
+    }
+
+    private static SessionImpl session(String id) {
+        return new SessionImpl(id, "test", 0, 0);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.adapters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ * Tests for looking up a single cookie in the raw Cookie header.
+ *
+ * @author Tim Boudreau
+ */
+public class RequestCookiesTest {
+
+    @Test
+    public void testSemicolonSeparated() {
+        String header = "a=1; jsessionid=AbC-_123;b=2";
+        assertEquals("1", RequestCookies.value(header, "a"));
+        assertEquals("AbC-_123", RequestCookies.value(header, "jsessionid"));
+        assertEquals("2", RequestCookies.value(header, "b"));
+        assertNull(RequestCookies.value(header, "c"));
+    }
+
+    @Test
+    public void testCommaSeparated() {
+        // As sent by clients and proxies which merge several Cookie headers
+        String header = "a=1, jsessionid=AbC-_123,b=2; c=3";
+        assertEquals("1", RequestCookies.value(header, "a"));
+        assertEquals("AbC-_123", RequestCookies.value(header, "jsessionid"));
+        assertEquals("2", RequestCookies.value(header, "b"));
+        assertEquals("3", RequestCookies.value(header, "c"));
+    }
+
+    @Test
+    public void testLastOccurrenceWins() {
+        assertEquals("2", RequestCookies.value("a=1; a=2", "a"));
+        assertEquals("2", RequestCookies.value("a=1, a=2", "a"));
+    }
+
+    @Test
+    public void testNamesMatchExactly() {
+        assertEquals("2", RequestCookies.value("ab=1; a=2; ba=3", "a"));
+        assertNull(RequestCookies.value("ab=1; ba=3", "a"));
+        // Not a cookie named a, just a value containing a=
+        assertNull(RequestCookies.value("b=a=1; c=2", "a"));
+        assertNull(RequestCookies.value("a; b=2", "a"));
+    }
+
+    @Test
+    public void testWhitespaceAndQuotes() {
+        assertEquals("1", RequestCookies.value(" a = 1 ;b=2", "a"));
+        assertEquals("x", RequestCookies.value("a=\"x\", b=2", "a"));
+        assertEquals("", RequestCookies.value("a=; b=2", "a"));
+        assertEquals("", RequestCookies.value("a=,b=2", "a"));
+        assertEquals("2", RequestCookies.value("a=,b=2", "b"));
+        assertNull(RequestCookies.value(null, "a"));
+        assertNull(RequestCookies.value("", "a"));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.adapters;
+
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_RESPONSE_COMPRESSION;
+import static com.mastfrog.acteur.wicket.WicketActeurModule.SETTINGS_KEY_RESPONSE_COMPRESSION_LEVEL;
+import com.mastfrog.acteur.wicket.borrowed.HomePage;
+import com.mastfrog.acteur.wicket.borrowed.HomePageApplication;
+import com.mastfrog.acteur.wicket.borrowed.Page1;
+import com.mastfrog.acteur.wicket.borrowed.Page2;
+import com.mastfrog.acteur.wicket.borrowed.Page3;
+import com.mastfrog.settings.SettingsBuilder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.apache.wicket.Page;
+import org.apache.wicket.util.tester.WicketTester;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * CPU time to compress the markup of each borrowed page at several deflate
+ * levels, against copying it uncompressed;  the bytes each level saves are
+ * printed at setup, so the two can be weighed against each other.  Run with
+ * the main method.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ResponseCompressionBenchmark {
+
+    @Param({"HomePage", "Page1", "Page2", "Page3"})
+    public String page;
+    @Param({"1", "6", "9"})
+    public String level;
+    @Param({ResponseCompression.GZIP, ResponseCompression.DEFLATE})
+    public String encoding;
+    private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+    private ResponseCompression compression;
+    private ByteBuf markup;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        compression = new ResponseCompression(new SettingsBuilder("acteur-wicket")
+                .add(SETTINGS_KEY_RESPONSE_COMPRESSION, "true")
+                .add(SETTINGS_KEY_RESPONSE_COMPRESSION_LEVEL, level)
+                .build());
+        WicketTester tester = new WicketTester(new HomePageApplication());
+        try {
+            tester.startPage(pageClass());
+            byte[] bytes = tester.getLastResponseAsString().getBytes(StandardCharsets.UTF_8);
+            markup = alloc.directBuffer(bytes.length).writeBytes(bytes);
+        } finally {
+            tester.destroy();
+        }
+        ByteBuf compressed = compression.compress(markup, encoding, alloc);
+        int size = compressed.readableBytes();
+        compressed.release();
+        System.out.println(page + " " + encoding + " level " + level + ": " + markup.readableBytes()
+                + " -> " + size + " bytes, " + (markup.readableBytes() - size) + " saved");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        markup.release();
+    }
+
+    private Class<? extends Page> pageClass() {
+        switch (page) {
+            case "Page1":
+                return Page1.class;
+            case "Page2":
+                return Page2.class;
+            case "Page3":
+                return Page3.class;
+            default:
+                return HomePage.class;
+        }
+    }
+
+    @Benchmark
+    public int compressed() {
+        ByteBuf out = compression.compress(markup, encoding, alloc);
+        try {
+            return out.readableBytes();
+        } finally {
+            out.release();
+        }
+    }
+
+    @Benchmark
+    public int uncompressed() {
+        // What writing the page costs without compression - a copy into a
+        // pooled buffer
+        ByteBuf out = alloc.directBuffer(markup.readableBytes());
+        try {
+            return out.writeBytes(markup, markup.readerIndex(), markup.readableBytes()).readableBytes();
+        } finally {
+            out.release();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(ResponseCompressionBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
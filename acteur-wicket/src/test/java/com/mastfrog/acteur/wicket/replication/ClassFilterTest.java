@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.wicket.replication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests for ClassFilter.
+ *
+ * @author Tim Boudreau
+ */
+public class ClassFilterTest {
+
+    private final ClassFilter filter = new ClassFilter(ClassFilterTest.class.getClassLoader(),
+            Collections.singletonList("com.example.model."));
+
+    @Test
+    public void testAllows() {
+        assertTrue(filter.allows("java.lang.Integer"));
+        assertTrue(filter.allows("java.util.HashMap"));
+        assertTrue(filter.allows("org.apache.wicket.protocol.http.WebSession"));
+        assertTrue(filter.allows("com.example.model.Cart"));
+        assertTrue(filter.allows("[B"));
+        assertTrue(filter.allows("[[Ljava.lang.String;"));
+        assertFalse(filter.allows("com.example.other.Cart"));
+        assertFalse(filter.allows("org.apache.commons.collections.functors.InvokerTransformer"));
+        assertFalse(filter.allows("[Lorg.apache.commons.collections.functors.InvokerTransformer;"));
+        assertFalse(filter.allows("org.apache.wicket.util.upload.DiskFileItem"));
+        assertFalse(filter.allows("java.net.URL"));
+        assertFalse(filter.allows("javax.management.BadAttributeValueExpException"));
+    }
+
+    @Test
+    public void testReadsAllowedGraph() throws Exception {
+        Map<String, List<Integer>> value = new HashMap<>();
+        value.put("a", new ArrayList<>(Arrays.asList(1, 2, 3)));
+        assertEquals(value, filter.read(new ByteArrayInputStream(serialize((Serializable) value))));
+    }
+
+    @Test
+    public void testRefusesClassNotAllowed() throws Exception {
+        // Resolving a URL's hash code looks up its host
+        List<Serializable> value = new ArrayList<>();
+        value.add(new URL("http://example.com/"));
+        try {
+            filter.read(new ByteArrayInputStream(serialize((Serializable) value)));
+            fail("Deserialized a URL");
+        } catch (InvalidClassException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains(URL.class.getName()));
+        }
+    }
+
+    private static byte[] serialize(Serializable value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+}